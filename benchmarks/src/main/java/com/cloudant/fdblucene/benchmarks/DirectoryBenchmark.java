@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloudant.fdblucene.FDBDirectory;
+
+/**
+ * Measures the latency of metadata operations on a directory that already
+ * holds {@code fileCount} files.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DirectoryBenchmark {
+
+    public static class MetadataState extends DirectoryState {
+
+        @Param({ "10", "100", "1000" })
+        public int fileCount;
+
+        final AtomicLong counter = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            final FDBDirectory dir = openDirectory(100_000, 1_000_000);
+            for (int i = 0; i < fileCount; i++) {
+                try (final IndexOutput out = dir.createOutput(existingName(i), IOContext.DEFAULT)) {
+                    out.writeLong(i);
+                }
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void deleteCreatedFiles() throws Exception {
+            for (final String name : dir.listAll()) {
+                if (name.startsWith("created_")) {
+                    dir.deleteFile(name);
+                }
+            }
+        }
+
+        String existingName(final long i) {
+            return "existing_" + (i % fileCount);
+        }
+
+    }
+
+    @Benchmark
+    public IndexOutput createOutput(final MetadataState state) throws Exception {
+        final IndexOutput out = state.dir.createOutput("created_" + state.counter.getAndIncrement(),
+                IOContext.DEFAULT);
+        out.close();
+        return out;
+    }
+
+    @Benchmark
+    public long openInput(final MetadataState state) throws Exception {
+        try (final IndexInput in = state.dir
+                .openInput(state.existingName(state.counter.getAndIncrement()), IOContext.READ)) {
+            return in.length();
+        }
+    }
+
+    @Benchmark
+    public String[] listAll(final MetadataState state) throws Exception {
+        return state.dir.listAll();
+    }
+
+}
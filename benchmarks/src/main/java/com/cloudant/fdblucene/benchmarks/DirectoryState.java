@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+import com.cloudant.fdblucene.FDBDirectory;
+import com.cloudant.fdblucene.MemoryTransactionContext;
+
+/**
+ * Base state for benchmarks that need an {@link FDBDirectory}. Each trial uses
+ * a fresh subspace which is cleared when the trial ends.
+ */
+@State(Scope.Benchmark)
+public abstract class DirectoryState {
+
+    /**
+     * The backend to run against. {@code fdb} uses the default cluster file and
+     * {@code memory} uses a {@link MemoryTransactionContext}.
+     */
+    @Param({ "fdb" })
+    public String backend;
+
+    /**
+     * The latency of each read of the {@code memory} backend.
+     */
+    @Param({ "0" })
+    public long readLatencyMicros;
+
+    /**
+     * The latency of each commit of the {@code memory} backend.
+     */
+    @Param({ "0" })
+    public long commitLatencyMicros;
+
+    /**
+     * The probability of an injected conflict on each commit of the
+     * {@code memory} backend.
+     */
+    @Param({ "0" })
+    public double conflictProbability;
+
+    protected TransactionContext txc;
+    protected FDBDirectory dir;
+
+    protected FDBDirectory openDirectory(final int pageSize, final int txnSize) {
+        final Subspace subspace = new Subspace(Tuple.from("fdblucene-benchmarks", UUID.randomUUID().toString()));
+        txc = transactionContext();
+        dir = FDBDirectory.open(txc, subspace, pageSize, txnSize);
+        return dir;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() throws Exception {
+        if (dir != null) {
+            dir.delete();
+            dir.close();
+        }
+    }
+
+    private TransactionContext transactionContext() {
+        switch (backend) {
+        case "fdb":
+            return FDBHolder.DB;
+        case "memory":
+            final MemoryTransactionContext result = new MemoryTransactionContext();
+            result.setReadLatency(readLatencyMicros, TimeUnit.MICROSECONDS);
+            result.setCommitLatency(commitLatencyMicros, TimeUnit.MICROSECONDS);
+            result.setConflictProbability(conflictProbability);
+            return result;
+        default:
+            throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+    }
+
+    private static final class FDBHolder {
+        private static final TransactionContext DB = FDB.selectAPIVersion(600).open();
+    }
+
+}
@@ -0,0 +1,493 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy.OneMerge;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+import com.cloudant.fdblucene.FDBDirectory;
+import com.cloudant.fdblucene.FDBDirectoryConfig;
+import com.cloudant.fdblucene.FDBDirectoryStats;
+import com.cloudant.fdblucene.MemoryTransactionContext;
+import com.cloudant.fdblucene.PageSizePolicy;
+
+/**
+ * Indexes a synthetic corpus with {@link IndexWriter} and runs a mix of term,
+ * phrase, boolean, sorted and range queries against it, then prints the
+ * results as a single JSON object.
+ *
+ * <p>
+ * Options are given as {@code --name=value}:
+ * <dl>
+ * <dt>directory</dt>
+ * <dd>{@code fdb}, {@code memory} or {@code mmap} (default {@code memory}).</dd>
+ * <dt>docs</dt>
+ * <dd>the number of documents to index (default 100000).</dd>
+ * <dt>queries</dt>
+ * <dd>the number of queries of each type to run (default 1000).</dd>
+ * <dt>pageSize, txnSize</dt>
+ * <dd>the page and transaction size of the directory.</dd>
+ * <dt>randomAccessPageSize</dt>
+ * <dd>if set, the page size of {@link PageSizePolicy#randomAccess(int)}.</dd>
+ * <dt>readLatencyMicros, commitLatencyMicros</dt>
+ * <dd>injected latency of the {@code memory} directory.</dd>
+ * <dt>seed</dt>
+ * <dd>the seed of the corpus and query generator (default 0).</dd>
+ * <dt>output</dt>
+ * <dd>a file to write the JSON to instead of standard output.</dd>
+ * </dl>
+ */
+public final class IndexAndSearchBenchmark {
+
+    private static final int VOCABULARY_SIZE = 50_000;
+    private static final int WORDS_PER_DOC = 200;
+    private static final int COMMIT_INTERVAL = 10_000;
+
+    private static final class TimedMergeScheduler extends ConcurrentMergeScheduler {
+
+        private final AtomicLong mergeNanos = new AtomicLong();
+        private final AtomicLong merges = new AtomicLong();
+
+        @Override
+        protected void doMerge(final IndexWriter writer, final OneMerge merge) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                super.doMerge(writer, merge);
+            } finally {
+                mergeNanos.addAndGet(System.nanoTime() - start);
+                merges.incrementAndGet();
+            }
+        }
+
+    }
+
+    private final Map<String, String> options;
+    private final Random random;
+    private final String[] vocabulary;
+    private final double[] cumulativeFrequencies;
+
+    private IndexAndSearchBenchmark(final Map<String, String> options) {
+        this.options = options;
+        this.random = new Random(getLong("seed", 0L));
+        this.vocabulary = new String[VOCABULARY_SIZE];
+        this.cumulativeFrequencies = new double[VOCABULARY_SIZE];
+
+        // Word frequencies follow Zipf's law, as in natural language text.
+        double sum = 0.0;
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            vocabulary[i] = Long.toString(0x1000L + i * 7919L, Character.MAX_RADIX);
+            sum += 1.0 / (i + 1);
+            cumulativeFrequencies[i] = sum;
+        }
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            cumulativeFrequencies[i] /= sum;
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<String, String>();
+        for (final String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Options must be given as --name=value: " + arg);
+            }
+            final int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new IndexAndSearchBenchmark(options).run();
+    }
+
+    private void run() throws Exception {
+        final String directoryType = getString("directory", "memory");
+        final int docs = (int) getLong("docs", 100_000L);
+        final int queries = (int) getLong("queries", 1_000L);
+        final int pageSize = (int) getLong("pageSize", 100_000L);
+        final int txnSize = (int) getLong("txnSize", 1_000_000L);
+        final int randomAccessPageSize = (int) getLong("randomAccessPageSize", 0L);
+
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        final Map<String, Object> config = new LinkedHashMap<String, Object>();
+        config.put("directory", directoryType);
+        config.put("docs", docs);
+        config.put("queries", queries);
+        config.put("pageSize", pageSize);
+        config.put("txnSize", txnSize);
+        config.put("randomAccessPageSize", randomAccessPageSize);
+        config.put("readLatencyMicros", getLong("readLatencyMicros", 0L));
+        config.put("commitLatencyMicros", getLong("commitLatencyMicros", 0L));
+        config.put("seed", getLong("seed", 0L));
+        result.put("config", config);
+
+        final FDBDirectoryStats stats = new FDBDirectoryStats();
+        TransactionContext txc = null;
+        Path tempDir = null;
+        final Directory dir;
+        switch (directoryType) {
+        case "fdb":
+            txc = FDB.selectAPIVersion(600).open();
+            dir = openFDBDirectory(txc, pageSize, txnSize, randomAccessPageSize, stats);
+            break;
+        case "memory":
+            final MemoryTransactionContext memory = new MemoryTransactionContext();
+            memory.setReadLatency(getLong("readLatencyMicros", 0L), TimeUnit.MICROSECONDS);
+            memory.setCommitLatency(getLong("commitLatencyMicros", 0L), TimeUnit.MICROSECONDS);
+            txc = memory;
+            dir = openFDBDirectory(txc, pageSize, txnSize, randomAccessPageSize, stats);
+            break;
+        case "mmap":
+            tempDir = Files.createTempDirectory("fdblucene-benchmark");
+            dir = new MMapDirectory(tempDir);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown directory: " + directoryType);
+        }
+
+        try {
+            result.put("indexing", index(dir, docs));
+            resetCounters(txc);
+            final Map<String, Long> before = meteredCounters(stats);
+            result.put("search", search(dir, queries));
+            result.put("fdb", counters(txc, stats, before));
+            result.put("files", fileStats(dir, stats));
+        } finally {
+            if (dir instanceof FDBDirectory) {
+                ((FDBDirectory) dir).delete();
+            }
+            dir.close();
+            if (tempDir != null) {
+                IOUtils.rm(tempDir);
+            }
+        }
+
+        final String json = toJson(result);
+        final String output = options.get("output");
+        if (output == null) {
+            System.out.println(json);
+        } else {
+            try (final PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(output)), true,
+                    StandardCharsets.UTF_8.name())) {
+                out.println(json);
+            }
+        }
+    }
+
+    private static FDBDirectory openFDBDirectory(final TransactionContext txc, final int pageSize,
+            final int txnSize, final int randomAccessPageSize, final FDBDirectoryStats stats) {
+        final Subspace subspace = new Subspace(Tuple.from("fdblucene-benchmarks", UUID.randomUUID().toString()));
+        final FDBDirectoryConfig config = new FDBDirectoryConfig().setPageSize(pageSize).setTxnSize(txnSize)
+                .setMetrics(stats);
+        if (randomAccessPageSize > 0) {
+            config.setPageSizePolicy(PageSizePolicy.randomAccess(randomAccessPageSize));
+        }
+        return FDBDirectory.open(txc, subspace, config);
+    }
+
+    private Map<String, Object> index(final Directory dir, final int docs) throws IOException {
+        final TimedMergeScheduler mergeScheduler = new TimedMergeScheduler();
+        final IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setMergeScheduler(mergeScheduler);
+
+        long commitNanos = 0L;
+        long forceMergeNanos;
+        final long start = System.nanoTime();
+        try (final IndexWriter writer = new IndexWriter(dir, config)) {
+            for (int i = 0; i < docs; i++) {
+                writer.addDocument(document(i));
+                if ((i + 1) % COMMIT_INTERVAL == 0) {
+                    final long commitStart = System.nanoTime();
+                    writer.commit();
+                    commitNanos += System.nanoTime() - commitStart;
+                }
+            }
+            final long commitStart = System.nanoTime();
+            writer.commit();
+            commitNanos += System.nanoTime() - commitStart;
+
+            final long forceMergeStart = System.nanoTime();
+            writer.forceMerge(1);
+            writer.commit();
+            forceMergeNanos = System.nanoTime() - forceMergeStart;
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("docsPerSecond", docs / (elapsed / 1e9));
+        result.put("elapsedMillis", millis(elapsed));
+        result.put("commitMillis", millis(commitNanos));
+        result.put("merges", mergeScheduler.merges.get());
+        result.put("mergeMillis", millis(mergeScheduler.mergeNanos.get()));
+        result.put("forceMergeMillis", millis(forceMergeNanos));
+        return result;
+    }
+
+    private Map<String, Object> search(final Directory dir, final int queries) throws IOException {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        try (final DirectoryReader reader = DirectoryReader.open(dir)) {
+            final IndexSearcher searcher = new IndexSearcher(reader);
+            final int maxDoc = reader.maxDoc();
+            final String[] types = { "term", "phrase", "boolean_and", "boolean_or", "sort", "range" };
+            for (final String type : types) {
+                final long[] latencies = new long[queries];
+                long hits = 0L;
+                for (int i = 0; i < queries; i++) {
+                    final long start = System.nanoTime();
+                    switch (type) {
+                    case "sort":
+                        hits += searcher.search(new TermQuery(new Term("body", word())), 10,
+                                new Sort(new SortField("timestamp", SortField.Type.LONG, true))).totalHits.value;
+                        break;
+                    default:
+                        hits += searcher.search(query(type, maxDoc), 10).totalHits.value;
+                    }
+                    latencies[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(latencies);
+                final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+                stats.put("p50Millis", millis(percentile(latencies, 0.50)));
+                stats.put("p99Millis", millis(percentile(latencies, 0.99)));
+                stats.put("maxMillis", millis(latencies[latencies.length - 1]));
+                stats.put("meanHits", (double) hits / queries);
+                result.put(type, stats);
+            }
+        }
+        return result;
+    }
+
+    private Query query(final String type, final int maxDoc) {
+        switch (type) {
+        case "term":
+            return new TermQuery(new Term("body", word()));
+        case "phrase":
+            // Consecutive vocabulary entries are likely to be adjacent in the body
+            // of some document as both are drawn from the head of the distribution.
+            return new PhraseQuery(1, "body", word(), word());
+        case "boolean_and":
+        case "boolean_or": {
+            final Occur occur = type.equals("boolean_and") ? Occur.MUST : Occur.SHOULD;
+            final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            builder.add(new TermQuery(new Term("body", word())), occur);
+            builder.add(new TermQuery(new Term("body", word())), occur);
+            return builder.build();
+        }
+        case "range": {
+            final long from = random.nextInt(Math.max(1, maxDoc));
+            return LongPoint.newRangeQuery("timestamp", from, from + maxDoc / 100);
+        }
+        default:
+            throw new IllegalArgumentException(type);
+        }
+    }
+
+    private Document document(final int id) {
+        final Document doc = new Document();
+        doc.add(new StringField("_id", Integer.toString(id), Store.YES));
+        final StringBuilder title = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            title.append(word()).append(' ');
+        }
+        doc.add(new TextField("title", title.toString(), Store.YES));
+        final StringBuilder body = new StringBuilder();
+        final int words = WORDS_PER_DOC / 2 + random.nextInt(WORDS_PER_DOC);
+        for (int i = 0; i < words; i++) {
+            body.append(word()).append(' ');
+        }
+        doc.add(new TextField("body", body.toString(), Store.NO));
+        doc.add(new LongPoint("timestamp", id));
+        doc.add(new NumericDocValuesField("timestamp", id));
+        return doc;
+    }
+
+    private String word() {
+        int index = Arrays.binarySearch(cumulativeFrequencies, random.nextDouble());
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return vocabulary[Math.min(index, VOCABULARY_SIZE - 1)];
+    }
+
+    private static void resetCounters(final TransactionContext txc) {
+        if (txc instanceof MemoryTransactionContext) {
+            ((MemoryTransactionContext) txc).resetCounters();
+        }
+    }
+
+    /**
+     * @return the operation counts of the search phase, or {@code null} for
+     *         directories other than FDBDirectory. The {@code memory} backend
+     *         counts every operation. A real cluster does not count operations
+     *         per client, so for {@code fdb} these are the counts that the
+     *         directory's metered transactions report to {@code stats}.
+     */
+    private static Map<String, Object> counters(final TransactionContext txc, final FDBDirectoryStats stats,
+            final Map<String, Long> before) {
+        if (txc == null) {
+            return null;
+        }
+        if (!(txc instanceof MemoryTransactionContext)) {
+            final Map<String, Object> result = new LinkedHashMap<String, Object>();
+            for (final Map.Entry<String, Long> e : meteredCounters(stats).entrySet()) {
+                result.put(e.getKey(), e.getValue() - before.get(e.getKey()));
+            }
+            return result;
+        }
+        final MemoryTransactionContext memory = (MemoryTransactionContext) txc;
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("reads", memory.getReads());
+        result.put("rangeReads", memory.getRangeReads());
+        result.put("bytesRead", memory.getBytesRead());
+        result.put("readVersions", memory.getReadVersions());
+        result.put("writes", memory.getWrites());
+        result.put("commits", memory.getCommits());
+        result.put("conflicts", memory.getConflicts());
+        result.put("retries", memory.getRetries());
+        return result;
+    }
+
+    private static Map<String, Long> meteredCounters(final FDBDirectoryStats stats) {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put("transactions", stats.getTransactions());
+        result.put("retries", stats.getRetries());
+        result.put("readVersions", stats.getReadVersions());
+        result.put("cachedReadVersions", stats.getCachedReadVersions());
+        result.put("pagesRead", stats.getPagesRead());
+        result.put("bytesRead", stats.getBytesRead());
+        return result;
+    }
+
+    /**
+     * @return the page I/O of each file extension over the whole run, or
+     *         {@code null} for directories other than FDBDirectory.
+     */
+    private static Map<String, Object> fileStats(final Directory dir, final FDBDirectoryStats stats) {
+        if (!(dir instanceof FDBDirectory)) {
+            return null;
+        }
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (final Map.Entry<String, FDBDirectoryStats.FileStats> e : stats.getFileStats().entrySet()) {
+            final FDBDirectoryStats.FileStats file = e.getValue();
+            final Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("pagesRead", file.getPagesRead());
+            entry.put("bytesRead", file.getBytesRead());
+            entry.put("readP99Millis", millis(file.getReadLatency().getPercentileNanos(99)));
+            entry.put("pagesWritten", file.getPagesWritten());
+            entry.put("bytesWritten", file.getBytesWritten());
+            result.put(e.getKey(), entry);
+        }
+        return result;
+    }
+
+    private static long percentile(final long[] sorted, final double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1e6;
+    }
+
+    private String getString(final String name, final String defaultValue) {
+        final String result = options.get(name);
+        return result == null ? defaultValue : result;
+    }
+
+    private long getLong(final String name, final long defaultValue) {
+        final String result = options.get(name);
+        return result == null ? defaultValue : Long.parseLong(result);
+    }
+
+    private static String toJson(final Object value) {
+        final StringBuilder result = new StringBuilder();
+        appendJson(result, value);
+        return result.toString();
+    }
+
+    private static void appendJson(final StringBuilder out, final Object value) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (final Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendJson(out, e.getKey().toString());
+                out.append(':');
+                appendJson(out, e.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof String) {
+            out.append('"');
+            for (final char c : ((String) value).toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        } else if (value instanceof Double) {
+            final double d = (Double) value;
+            out.append(Double.isFinite(d) ? String.format(Locale.ROOT, "%.3f", d) : "null");
+        } else {
+            out.append(value);
+        }
+    }
+
+}
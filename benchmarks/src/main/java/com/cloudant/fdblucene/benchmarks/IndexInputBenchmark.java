@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures sequential and random reads through {@link IndexInput} and the cost
+ * of {@link IndexInput#clone()} and {@link IndexInput#slice(String, long, long)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexInputBenchmark {
+
+    private static final String FILE_NAME = "bench.dat";
+
+    public static class InputState extends DirectoryState {
+
+        @Param({ "1000", "10000", "100000" })
+        public int pageSize;
+
+        @Param({ "4194304" })
+        public int fileSize;
+
+        /**
+         * The size of each {@code readBytes} call.
+         */
+        @Param({ "16", "4096" })
+        public int readSize;
+
+        IndexInput in;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            openDirectory(pageSize, 10 * pageSize);
+            final byte[] data = new byte[fileSize];
+            new Random(0).nextBytes(data);
+            try (final IndexOutput out = dir.createOutput(FILE_NAME, IOContext.DEFAULT)) {
+                out.writeBytes(data, data.length);
+            }
+            in = dir.openInput(FILE_NAME, IOContext.DEFAULT);
+        }
+
+        @TearDown(Level.Trial)
+        public void closeInput() throws Exception {
+            in.close();
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        final Random random = new Random();
+        byte[] buffer;
+        IndexInput in;
+
+        @Setup(Level.Trial)
+        public void setup(final InputState state) {
+            buffer = new byte[state.readSize];
+            in = state.in.clone();
+        }
+
+    }
+
+    @Benchmark
+    public long sequentialReadBytes(final InputState state, final ThreadState thread) throws Exception {
+        final IndexInput in = thread.in;
+        in.seek(0L);
+        final long length = in.length();
+        while (in.getFilePointer() + thread.buffer.length <= length) {
+            in.readBytes(thread.buffer, 0, thread.buffer.length);
+        }
+        return in.getFilePointer();
+    }
+
+    @Benchmark
+    public byte randomReadBytes(final InputState state, final ThreadState thread) throws Exception {
+        final IndexInput in = thread.in;
+        in.seek(thread.random.nextInt(state.fileSize - thread.buffer.length));
+        in.readBytes(thread.buffer, 0, thread.buffer.length);
+        return thread.buffer[0];
+    }
+
+    @Benchmark
+    public IndexInput cloneInput(final ThreadState thread) {
+        return thread.in.clone();
+    }
+
+    @Benchmark
+    public IndexInput sliceInput(final InputState state, final ThreadState thread) throws Exception {
+        final long offset = thread.random.nextInt(state.fileSize / 2);
+        return thread.in.slice("bench", offset, state.fileSize / 4);
+    }
+
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time to write and close a file of {@code fileSize} bytes with
+ * {@link IndexOutput#writeBytes(byte[], int)} and
+ * {@link IndexOutput#writeByte(byte)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexOutputBenchmark {
+
+    public static class OutputState extends DirectoryState {
+
+        @Param({ "1000", "10000", "100000" })
+        public int pageSize;
+
+        @Param({ "100000", "1000000" })
+        public int txnSize;
+
+        @Param({ "1048576" })
+        public int fileSize;
+
+        /**
+         * The size of each {@code writeBytes} call.
+         */
+        @Param({ "4096" })
+        public int chunkSize;
+
+        byte[] data;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            openDirectory(pageSize, txnSize);
+            data = new byte[fileSize];
+            new Random(0).nextBytes(data);
+        }
+
+    }
+
+    @Benchmark
+    public long writeBytes(final OutputState state) throws Exception {
+        final IndexOutput out = state.dir.createTempOutput("bench", "out", IOContext.DEFAULT);
+        for (int i = 0; i < state.data.length; i += state.chunkSize) {
+            out.writeBytes(state.data, i, Math.min(state.chunkSize, state.data.length - i));
+        }
+        out.close();
+        state.dir.deleteFile(out.getName());
+        return out.getFilePointer();
+    }
+
+    @Benchmark
+    public long writeByte(final OutputState state) throws Exception {
+        final IndexOutput out = state.dir.createTempOutput("bench", "out", IOContext.DEFAULT);
+        for (int i = 0; i < state.data.length; i++) {
+            out.writeByte(state.data[i]);
+        }
+        out.close();
+        state.dir.deleteFile(out.getName());
+        return out.getFilePointer();
+    }
+
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.TransactionContext;
+
+/**
+ * A {@link TransactionContext} that runs every attempt of a transaction at
+ * batch priority.
+ */
+final class BatchPriorityTransactionContext implements TransactionContext {
+
+    private final TransactionContext delegate;
+
+    BatchPriorityTransactionContext(final TransactionContext delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public <T> T run(final Function<? super Transaction, T> retryable) {
+        return delegate.run(txn -> {
+            txn.options().setPriorityBatch();
+            return retryable.apply(txn);
+        });
+    }
+
+    @Override
+    public <T> CompletableFuture<T> runAsync(
+            final Function<? super Transaction, ? extends CompletableFuture<T>> retryable) {
+        return delegate.runAsync(txn -> {
+            txn.options().setPriorityBatch();
+            return retryable.apply(txn);
+        });
+    }
+
+    @Override
+    public <T> T read(final Function<? super ReadTransaction, T> retryable) {
+        return run(retryable);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> readAsync(
+            final Function<? super ReadTransaction, ? extends CompletableFuture<T>> retryable) {
+        return runAsync(retryable);
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return delegate.getExecutor();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchPriorityTransactionContext(%s)", delegate);
+    }
+
+}
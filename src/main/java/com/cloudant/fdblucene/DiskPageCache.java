@@ -0,0 +1,573 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * A cache of pages on local disk, which survives restarts. It is meant to sit
+ * behind a {@link PageCache} on nodes with fast local storage, so that a
+ * restarted node keeps its working set.
+ *
+ * <p>
+ * Each file of a directory is cached in a sparse local file named after the
+ * directory's epoch, a random identifier that changes when the directory is
+ * deleted, and the file's number, which is never reused within an epoch. A
+ * cached file also records the length and page size of the file, which are
+ * checked against the file's metadata whenever it is opened. Pages are
+ * therefore never served for a deleted or recreated file. Each page is stored
+ * with a checksum, so a page that was partially written before a crash is
+ * treated as missing.
+ *
+ * <p>
+ * When the cached pages exceed the capacity, the least recently used files are
+ * removed. Reads and writes go through the operating system's page cache, so
+ * frequently read pages are served from memory. Only a bounded number of
+ * cached files are kept open; the least recently used are closed and reopened
+ * when they are next read.
+ */
+public final class DiskPageCache implements Closeable {
+
+    private static final String SUFFIX = ".pages";
+
+    private static final long MAGIC = 0x4644424c50414745L;
+
+    private static final int DEFAULT_MAX_OPEN_FILES = 128;
+
+    // magic, pageSize, fileNumber, fileLength, and a page count that is no
+    // longer used, since it is stale after a crash.
+    private static final int HEADER_SIZE = 36;
+
+    // length, checksum.
+    private static final int SLOT_HEADER_SIZE = 8;
+
+    /**
+     * The local copy of one file.
+     */
+    final class CachedFile {
+
+        private final String key;
+        private final Path path;
+        private final int pageSize;
+        private final long fileNumber;
+        private final long fileLength;
+        private final AtomicLong pages;
+        private volatile FileChannel channel;
+        private volatile boolean removed;
+
+        private CachedFile(final String key, final Path path, final int pageSize, final long fileNumber,
+                final long fileLength, final long pages) {
+            this.key = key;
+            this.path = path;
+            this.pageSize = pageSize;
+            this.fileNumber = fileNumber;
+            this.fileLength = fileLength;
+            this.pages = new AtomicLong(pages);
+        }
+
+        /**
+         * @return the page, or {@code null} if it is not cached.
+         */
+        byte[] get(final long pageNumber) {
+            used(this);
+            try {
+                final FileChannel channel = channel();
+                if (channel == null) {
+                    return null;
+                }
+                final ByteBuffer header = ByteBuffer.allocate(SLOT_HEADER_SIZE);
+                readFully(channel, header, slot(pageNumber));
+                header.flip();
+                final int length = header.getInt();
+                if (length <= 0 || length > pageSize) {
+                    misses.increment();
+                    return null;
+                }
+                final byte[] result = new byte[length];
+                readFully(channel, ByteBuffer.wrap(result), slot(pageNumber) + SLOT_HEADER_SIZE);
+                if (checksum(result) != header.getInt()) {
+                    misses.increment();
+                    return null;
+                }
+                hits.increment();
+                return result;
+            } catch (final IOException e) {
+                misses.increment();
+                return null;
+            }
+        }
+
+        void put(final long pageNumber, final byte[] page) {
+            final ByteBuffer buf = ByteBuffer.allocate(SLOT_HEADER_SIZE + page.length);
+            buf.putInt(page.length).putInt(checksum(page)).put(page).flip();
+            synchronized (this) {
+                try {
+                    final FileChannel channel = channel();
+                    if (channel == null) {
+                        return;
+                    }
+                    final ByteBuffer length = ByteBuffer.allocate(4);
+                    readFully(channel, length, slot(pageNumber));
+                    if (length.getInt(0) != 0) {
+                        return;
+                    }
+                    writeFully(channel, buf, slot(pageNumber));
+                } catch (final IOException e) {
+                    return;
+                }
+                pages.incrementAndGet();
+                size.addAndGet(slotSize());
+            }
+            if (size.get() > capacity) {
+                evict();
+            }
+        }
+
+        private long slot(final long pageNumber) {
+            return HEADER_SIZE + pageNumber * slotSize();
+        }
+
+        private long slotSize() {
+            return SLOT_HEADER_SIZE + pageSize;
+        }
+
+        private long size() {
+            return pages.get() * slotSize();
+        }
+
+        /**
+         * @return the open channel, or {@code null} if the file was removed.
+         *         The channel may be closed by another thread at any time, as
+         *         other files are opened.
+         */
+        private synchronized FileChannel channel() throws IOException {
+            if (removed) {
+                return null;
+            }
+            // Interrupting a thread that reads from a channel closes it, and so
+            // does closing the least recently used files.
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            touch(this);
+            return channel;
+        }
+
+        private synchronized void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            channel = null;
+        }
+
+        /**
+         * @return the size of the pages that were deleted.
+         */
+        private synchronized long delete() throws IOException {
+            removed = true;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            Files.deleteIfExists(path);
+            return size();
+        }
+
+    }
+
+    private final Path root;
+    private final long capacity;
+    private final int maxOpenFiles;
+    private final Map<String, CachedFile> files = new ConcurrentHashMap<String, CachedFile>();
+    /**
+     * The cached files, least recently used first. Files are added and removed
+     * under its lock together with {@link #files}.
+     */
+    private final LinkedHashMap<CachedFile, Boolean> recentFiles = new LinkedHashMap<CachedFile, Boolean>(16,
+            0.75f, true);
+    /**
+     * The files whose channel may be open, least recently used first.
+     */
+    private final LinkedHashMap<CachedFile, Boolean> openFiles = new LinkedHashMap<CachedFile, Boolean>(16, 0.75f,
+            true);
+    private final AtomicLong size = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Opens the cache stored under {@code root}, creating it if needed. Pages
+     * cached by a previous instance are kept.
+     *
+     * @param root     the local directory to store pages in.
+     * @param capacity the maximum total size of the cached pages, in bytes.
+     */
+    public DiskPageCache(final Path root, final long capacity) throws IOException {
+        this(root, capacity, DEFAULT_MAX_OPEN_FILES);
+    }
+
+    /**
+     * Opens the cache stored under {@code root}, creating it if needed. Pages
+     * cached by a previous instance are kept.
+     *
+     * @param root         the local directory to store pages in.
+     * @param capacity     the maximum total size of the cached pages, in
+     *                     bytes.
+     * @param maxOpenFiles the maximum number of cached files that are kept
+     *                     open.
+     */
+    public DiskPageCache(final Path root, final long capacity, final int maxOpenFiles) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (maxOpenFiles <= 0) {
+            throw new IllegalArgumentException("maxOpenFiles must be positive");
+        }
+        this.root = root;
+        this.capacity = capacity;
+        this.maxOpenFiles = maxOpenFiles;
+        Files.createDirectories(root);
+        load();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    /**
+     * @return the number of cached files that may have an open channel.
+     */
+    int getOpenFiles() {
+        synchronized (openFiles) {
+            return openFiles.size();
+        }
+    }
+
+    /**
+     * @return the total size of the cached pages, in bytes.
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of files removed to stay within the capacity.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Closes all open files. Their pages are kept for the next instance.
+     */
+    @Override
+    public void close() throws IOException {
+        final List<Closeable> toClose = new ArrayList<Closeable>();
+        for (final CachedFile file : files.values()) {
+            toClose.add(file::close);
+        }
+        synchronized (openFiles) {
+            openFiles.clear();
+        }
+        IOUtils.close(toClose);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DiskPageCache(root=%s,capacity=%d,size=%d,hits=%d,misses=%d,evictions=%d)", root,
+                capacity, getSize(), getHits(), getMisses(), getEvictions());
+    }
+
+    /**
+     * @return the cached copy of a file, which is emptied first if it does not
+     *         match the given length and page size.
+     */
+    CachedFile open(final UUID epoch, final long fileNumber, final long fileLength, final int pageSize)
+            throws IOException {
+        final String key = key(epoch, fileNumber);
+        final CachedFile existing = files.get(key);
+        if (existing != null && existing.fileLength == fileLength && existing.pageSize == pageSize) {
+            return existing;
+        }
+        synchronized (this) {
+            CachedFile result = files.get(key);
+            if (result != null && result.fileLength == fileLength && result.pageSize == pageSize) {
+                return result;
+            }
+            if (result != null) {
+                remove(result);
+            }
+            final Path path = root.resolve(epoch.toString()).resolve(fileNumber + SUFFIX);
+            Files.createDirectories(path.getParent());
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(MAGIC).putInt(pageSize).putLong(fileNumber).putLong(fileLength).putLong(0L).flip();
+                writeFully(channel, header, 0L);
+            }
+            result = new CachedFile(key, path, pageSize, fileNumber, fileLength, 0L);
+            add(result);
+            return result;
+        }
+    }
+
+    /**
+     * Removes the cached copy of a file.
+     */
+    void remove(final UUID epoch, final long fileNumber) throws IOException {
+        final CachedFile file = files.get(key(epoch, fileNumber));
+        if (file != null) {
+            remove(file);
+        }
+    }
+
+    /**
+     * Removes the cached copies of all files of an epoch. Files that cannot be
+     * removed now are never used again and are eventually evicted.
+     */
+    void removeAll(final UUID epoch) {
+        final String prefix = epoch + "/";
+        try {
+            for (final CachedFile file : files.values()) {
+                if (file.key.startsWith(prefix)) {
+                    remove(file);
+                }
+            }
+            final Path dir = root.resolve(epoch.toString());
+            if (Files.isDirectory(dir)) {
+                IOUtils.rm(dir);
+            }
+        } catch (final IOException e) {
+            // ignored.
+        }
+    }
+
+    private void add(final CachedFile file) {
+        synchronized (recentFiles) {
+            files.put(file.key, file);
+            recentFiles.put(file, Boolean.TRUE);
+        }
+        size.addAndGet(file.size());
+    }
+
+    private void remove(final CachedFile file) throws IOException {
+        synchronized (recentFiles) {
+            if (!files.remove(file.key, file)) {
+                return;
+            }
+            recentFiles.remove(file);
+        }
+        synchronized (openFiles) {
+            openFiles.remove(file);
+        }
+        size.addAndGet(-file.delete());
+    }
+
+    /**
+     * Marks a file as the most recently used, unless it was removed.
+     */
+    private void used(final CachedFile file) {
+        synchronized (recentFiles) {
+            recentFiles.get(file);
+        }
+    }
+
+    /**
+     * Marks a file as the most recently used open file, closing the channels
+     * of the least recently used ones beyond {@code maxOpenFiles}. They are
+     * closed without taking their locks, so a concurrent read or write of
+     * those files fails and counts as a miss.
+     */
+    private void touch(final CachedFile file) {
+        final List<FileChannel> toClose = new ArrayList<FileChannel>();
+        synchronized (openFiles) {
+            openFiles.put(file, Boolean.TRUE);
+            final Iterator<CachedFile> it = openFiles.keySet().iterator();
+            while (openFiles.size() > maxOpenFiles) {
+                final FileChannel channel = it.next().channel;
+                it.remove();
+                if (channel != null) {
+                    toClose.add(channel);
+                }
+            }
+        }
+        IOUtils.closeWhileHandlingException(toClose);
+    }
+
+    private void evict() {
+        while (size.get() > capacity) {
+            final CachedFile eldest;
+            synchronized (recentFiles) {
+                final Iterator<CachedFile> it = recentFiles.keySet().iterator();
+                if (!it.hasNext()) {
+                    return;
+                }
+                eldest = it.next();
+            }
+            try {
+                remove(eldest);
+            } catch (final IOException e) {
+                // The pages are no longer accounted for; the file is orphaned.
+            }
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Finds the files cached by a previous instance, which are used in the
+     * order they were last written.
+     */
+    private void load() throws IOException {
+        final Map<Path, FileTime> paths = new HashMap<Path, FileTime>();
+        try (final DirectoryStream<Path> epochs = Files.newDirectoryStream(root)) {
+            for (final Path epochDir : epochs) {
+                if (!Files.isDirectory(epochDir)) {
+                    continue;
+                }
+                try (final DirectoryStream<Path> stream = Files.newDirectoryStream(epochDir, "*" + SUFFIX)) {
+                    for (final Path path : stream) {
+                        paths.put(path, Files.getLastModifiedTime(path));
+                    }
+                }
+            }
+        }
+        final List<Path> sorted = new ArrayList<Path>(paths.keySet());
+        sorted.sort(Comparator.comparing(paths::get));
+        for (final Path path : sorted) {
+            load(path.getParent().getFileName().toString(), path);
+        }
+        evict();
+    }
+
+    private void load(final String epoch, final Path path) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        final long pages;
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            readFully(channel, header, 0L);
+            pages = header.getLong(0) != MAGIC ? 0L : countPages(channel, header.getInt(8), header.getLong(20));
+        } catch (final NoSuchFileException e) {
+            return;
+        }
+        header.flip();
+        if (header.getLong() != MAGIC) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        final int pageSize = header.getInt();
+        final long fileNumber = header.getLong();
+        final long fileLength = header.getLong();
+        add(new CachedFile(epoch + "/" + fileNumber, path, pageSize, fileNumber, fileLength, pages));
+    }
+
+    /**
+     * Counts the pages of a cached file from its slots, as any count written
+     * by the previous instance is stale if it crashed.
+     */
+    private static long countPages(final FileChannel channel, final int pageSize, final long fileLength)
+            throws IOException {
+        if (pageSize <= 0) {
+            return 0L;
+        }
+        final long slotSize = SLOT_HEADER_SIZE + pageSize;
+        final long slots = Math.min((fileLength + pageSize - 1) / pageSize,
+                (channel.size() - HEADER_SIZE + slotSize - 1) / slotSize);
+        final ByteBuffer length = ByteBuffer.allocate(4);
+        long result = 0L;
+        for (long i = 0; i < slots; i++) {
+            length.clear();
+            readFully(channel, length, HEADER_SIZE + i * slotSize);
+            final int value = length.getInt(0);
+            if (value > 0 && value <= pageSize) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static String key(final UUID epoch, final long fileNumber) {
+        return epoch + "/" + fileNumber;
+    }
+
+    private static int checksum(final byte[] page) {
+        final CRC32 crc = new CRC32();
+        crc.update(page, 0, page.length);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buf, final long position)
+            throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            final int read = channel.read(buf, pos);
+            if (read == -1) {
+                // Past the end of a sparse file, i.e. not cached.
+                while (buf.hasRemaining()) {
+                    buf.put((byte) 0);
+                }
+                return;
+            }
+            pos += read;
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buf, final long position)
+            throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import org.apache.lucene.codecs.CompoundFormat;
+import org.apache.lucene.codecs.FilterCodec;
+import org.apache.lucene.codecs.lucene80.Lucene80Codec;
+
+/**
+ * The Lucene 8.0 codec with {@link FDBCompoundFormat}, so that compound files
+ * are created without copying data:
+ *
+ * <pre>
+ * final IndexWriterConfig config = new IndexWriterConfig().setCodec(new FDBCodec());
+ * </pre>
+ *
+ * The codec is registered under the name {@code FDBLucene80} and is found
+ * automatically when an index that uses it is opened.
+ */
+public final class FDBCodec extends FilterCodec {
+
+    private final CompoundFormat compoundFormat = new FDBCompoundFormat();
+
+    public FDBCodec() {
+        super("FDBLucene80", new Lucene80Codec());
+    }
+
+    @Override
+    public CompoundFormat compoundFormat() {
+        return compoundFormat;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Reads a composite file, the concatenation of other files, from an input per
+ * file. A slice that lies within one file, such as a file inside a compound
+ * file, is a slice of that file's input.
+ */
+final class FDBCompositeIndexInput extends IndexInput {
+
+    private IndexInput[] parts;
+    /**
+     * The position of each part, followed by the length of this input.
+     */
+    private final long[] starts;
+    private int current;
+    private long pos;
+
+    FDBCompositeIndexInput(final String resourceDescription, final IndexInput[] parts) {
+        super(resourceDescription);
+        this.parts = parts;
+        this.starts = new long[parts.length + 1];
+        for (int i = 0; i < parts.length; i++) {
+            starts[i + 1] = starts[i] + parts[i].length();
+        }
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        if (pos >= length()) {
+            throw new EOFException("read past EOF: " + this);
+        }
+        final byte result = part(pos).readByte();
+        pos++;
+        return result;
+    }
+
+    @Override
+    public void readBytes(final byte[] b, final int offset, final int len) throws IOException {
+        if (len > length() - pos) {
+            throw new EOFException("read past EOF: " + this);
+        }
+        int copied = 0;
+        while (copied < len) {
+            final IndexInput part = part(pos);
+            final int toCopy = (int) Math.min(starts[current + 1] - pos, len - copied);
+            part.readBytes(b, offset + copied, toCopy);
+            pos += toCopy;
+            copied += toCopy;
+        }
+    }
+
+    @Override
+    public long getFilePointer() {
+        return pos;
+    }
+
+    @Override
+    public void seek(final long pos) throws IOException {
+        if (pos < 0 || pos > length()) {
+            throw new EOFException("seek past EOF: pos=" + pos + " vs length=" + length() + ": " + this);
+        }
+        // The part is positioned on the next read.
+        this.pos = pos;
+    }
+
+    @Override
+    public long length() {
+        return starts[parts.length];
+    }
+
+    @Override
+    public IndexInput slice(final String sliceDescription, final long offset, final long length)
+            throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.length()) {
+            throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: offset=" + offset
+                    + ",length=" + length + ",fileLength=" + this.length() + ": " + this);
+        }
+        final long end = offset + length;
+        final List<IndexInput> result = new ArrayList<IndexInput>();
+        for (int i = 0; i < parts.length; i++) {
+            final long from = Math.max(offset, starts[i]);
+            final long to = Math.min(end, starts[i + 1]);
+            if (from < to) {
+                result.add(parts[i].slice(sliceDescription, from - starts[i], to - from));
+            }
+        }
+        if (result.size() == 1) {
+            return result.get(0);
+        }
+        return new FDBCompositeIndexInput(getFullSliceDescription(sliceDescription),
+                result.toArray(new IndexInput[result.size()]));
+    }
+
+    @Override
+    public FDBCompositeIndexInput clone() {
+        final FDBCompositeIndexInput result = (FDBCompositeIndexInput) super.clone();
+        result.parts = new IndexInput[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result.parts[i] = parts[i].clone();
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(parts);
+    }
+
+    /**
+     * @return the part holding the byte at {@code pos}, which must be before
+     *         the end, positioned at that byte.
+     */
+    private IndexInput part(final long pos) throws IOException {
+        while (pos < starts[current]) {
+            current--;
+        }
+        while (pos >= starts[current + 1]) {
+            current++;
+        }
+        final IndexInput result = parts[current];
+        if (result.getFilePointer() != pos - starts[current]) {
+            result.seek(pos - starts[current]);
+        }
+        return result;
+    }
+
+}
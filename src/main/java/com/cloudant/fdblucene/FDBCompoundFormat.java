@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.CompoundFormat;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+
+/**
+ * A compound format whose data file is the plain concatenation of the files
+ * of the segment. In an {@link FDBDirectory} the data file references the
+ * pages of those files instead of copying them, so creating a compound file
+ * writes only the small entries file.
+ *
+ * <p>
+ * In an {@link FDBDirectory} only the codec headers and footers of the files
+ * are checked when the compound file is created; their checksums are verified
+ * by {@link org.apache.lucene.index.CheckIndex} and before merging, as for any
+ * other file. In other directories the data is copied and verified as by the
+ * default compound format.
+ *
+ * <p>
+ * Files:
+ * <ul>
+ * <li>{@code .cfs}: the files of the segment, one after the other in order of
+ * name.</li>
+ * <li>{@code .cfe}: a codec header, the number of files, then the name, offset
+ * and length of each file, and a codec footer.</li>
+ * </ul>
+ */
+public final class FDBCompoundFormat extends CompoundFormat {
+
+    static final String DATA_EXTENSION = "cfs";
+    static final String ENTRIES_EXTENSION = "cfe";
+    static final String ENTRY_CODEC = "FDBCompoundEntries";
+    static final int VERSION_START = 0;
+    static final int VERSION_CURRENT = VERSION_START;
+
+    @Override
+    public Directory getCompoundReader(final Directory dir, final SegmentInfo si, final IOContext context)
+            throws IOException {
+        return new CompoundReader(dir, si, context);
+    }
+
+    @Override
+    public void write(final Directory dir, final SegmentInfo si, final IOContext context) throws IOException {
+        final String dataFile = IndexFileNames.segmentFileName(si.name, "", DATA_EXTENSION);
+        final String entriesFile = IndexFileNames.segmentFileName(si.name, "", ENTRIES_EXTENSION);
+        final List<String> files = new ArrayList<String>(si.files());
+        Collections.sort(files);
+        final Directory unwrapped = FilterDirectory.unwrap(dir);
+
+        try (final IndexOutput data = dir.createOutput(dataFile, context);
+                final IndexOutput entries = dir.createOutput(entriesFile, context)) {
+            CodecUtil.writeIndexHeader(entries, ENTRY_CODEC, VERSION_CURRENT, si.getId(), "");
+            entries.writeVInt(files.size());
+            long offset = 0L;
+            for (final String file : files) {
+                final long length;
+                if (unwrapped instanceof FDBDirectory) {
+                    length = check(dir, file, si);
+                } else {
+                    length = copy(dir, file, si, data);
+                }
+                entries.writeString(IndexFileNames.stripSegmentName(file));
+                entries.writeLong(offset);
+                entries.writeLong(length);
+                offset += length;
+            }
+            CodecUtil.writeFooter(entries);
+        }
+
+        if (unwrapped instanceof FDBDirectory && !files.isEmpty()) {
+            ((FDBDirectory) unwrapped).concatenate(dataFile, files);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FDBCompoundFormat";
+    }
+
+    /**
+     * Checks the codec header and footer of {@code file}.
+     *
+     * @return the length of {@code file}.
+     */
+    private static long check(final Directory dir, final String file, final SegmentInfo si) throws IOException {
+        try (final IndexInput in = dir.openInput(file, IOContext.READ)) {
+            checkHeader(in, si);
+            CodecUtil.retrieveChecksum(in);
+            return in.length();
+        }
+    }
+
+    /**
+     * Appends {@code file} to {@code data}, verifying its checksum.
+     *
+     * @return the length of {@code file}.
+     */
+    private static long copy(final Directory dir, final String file, final SegmentInfo si, final IndexOutput data)
+            throws IOException {
+        try (final ChecksumIndexInput in = dir.openChecksumInput(file, IOContext.READONCE)) {
+            CodecUtil.verifyAndCopyIndexHeader(in, data, si.getId());
+            data.copyBytes(in, in.length() - CodecUtil.footerLength() - in.getFilePointer());
+            final long checksum = CodecUtil.checkFooter(in);
+            data.writeInt(CodecUtil.FOOTER_MAGIC);
+            data.writeInt(0);
+            data.writeLong(checksum);
+            return in.length();
+        }
+    }
+
+    private static void checkHeader(final IndexInput in, final SegmentInfo si) throws IOException {
+        final int magic = in.readInt();
+        if (magic != CodecUtil.CODEC_MAGIC) {
+            throw new CorruptIndexException(
+                    "codec header mismatch: actual header=" + magic + " vs expected header=" + CodecUtil.CODEC_MAGIC,
+                    in);
+        }
+        in.readString();
+        in.readInt();
+        CodecUtil.checkIndexHeaderID(in, si.getId());
+    }
+
+    private static final class FileEntry {
+
+        private final long offset;
+        private final long length;
+
+        private FileEntry(final long offset, final long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * A read-only view of the files inside a compound file.
+     */
+    private static final class CompoundReader extends Directory {
+
+        private final String segmentName;
+        private final Map<String, FileEntry> entries;
+        private final IndexInput handle;
+
+        private CompoundReader(final Directory dir, final SegmentInfo si, final IOContext context)
+                throws IOException {
+            this.segmentName = si.name;
+            this.entries = readEntries(dir, si);
+            final String dataFile = IndexFileNames.segmentFileName(si.name, "", DATA_EXTENSION);
+            this.handle = dir.openInput(dataFile, context);
+            boolean success = false;
+            try {
+                for (final Map.Entry<String, FileEntry> e : entries.entrySet()) {
+                    if (e.getValue().offset + e.getValue().length > handle.length()) {
+                        throw new CorruptIndexException("entry " + e.getKey() + " is past the end of the data file",
+                                handle);
+                    }
+                }
+                success = true;
+            } finally {
+                if (!success) {
+                    handle.close();
+                }
+            }
+        }
+
+        private static Map<String, FileEntry> readEntries(final Directory dir, final SegmentInfo si)
+                throws IOException {
+            final String entriesFile = IndexFileNames.segmentFileName(si.name, "", ENTRIES_EXTENSION);
+            try (final ChecksumIndexInput in = dir.openChecksumInput(entriesFile, IOContext.READONCE)) {
+                Map<String, FileEntry> result = null;
+                Throwable priorE = null;
+                try {
+                    CodecUtil.checkIndexHeader(in, ENTRY_CODEC, VERSION_START, VERSION_CURRENT, si.getId(), "");
+                    final int count = in.readVInt();
+                    result = new HashMap<String, FileEntry>(count);
+                    for (int i = 0; i < count; i++) {
+                        final String id = in.readString();
+                        if (result.put(id, new FileEntry(in.readLong(), in.readLong())) != null) {
+                            throw new CorruptIndexException("duplicate entry " + id, in);
+                        }
+                    }
+                } catch (final Throwable t) {
+                    priorE = t;
+                } finally {
+                    CodecUtil.checkFooter(in, priorE);
+                }
+                return Collections.unmodifiableMap(result);
+            }
+        }
+
+        @Override
+        public String[] listAll() {
+            final String[] result = entries.keySet().toArray(new String[entries.size()]);
+            for (int i = 0; i < result.length; i++) {
+                result[i] = segmentName + result[i];
+            }
+            return result;
+        }
+
+        @Override
+        public long fileLength(final String name) throws IOException {
+            return entry(name).length;
+        }
+
+        @Override
+        public IndexInput openInput(final String name, final IOContext context) throws IOException {
+            final FileEntry entry = entry(name);
+            return handle.slice(name, entry.offset, entry.length);
+        }
+
+        @Override
+        public void deleteFile(final String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public IndexOutput createOutput(final String name, final IOContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public IndexOutput createTempOutput(final String prefix, final String suffix, final IOContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sync(final Collection<String> names) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void syncMetaData() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void rename(final String source, final String dest) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Lock obtainLock(final String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<String> getPendingDeletions() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void close() throws IOException {
+            handle.close();
+        }
+
+        @Override
+        public String toString() {
+            return "FDBCompoundFormat.CompoundReader(" + segmentName + "," + handle + ")";
+        }
+
+        private FileEntry entry(final String name) throws FileNotFoundException {
+            final String id = IndexFileNames.stripSegmentName(name);
+            final FileEntry result = entries.get(id);
+            if (result == null) {
+                throw new FileNotFoundException(
+                        "No sub-file with id " + id + " found in compound file \"" + segmentName + "\"");
+            }
+            return result;
+        }
+
+    }
+
+}
@@ -15,29 +15,44 @@
  *******************************************************************************/
 package com.cloudant.fdblucene;
 
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.Lock;
-
-import com.cloudant.fdblucene.Utils;
+import org.apache.lucene.util.IOUtils;
 
 import com.apple.foundationdb.Database;
 import com.apple.foundationdb.KeyValue;
 import com.apple.foundationdb.Range;
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.Transaction;
 import com.apple.foundationdb.TransactionContext;
 import com.apple.foundationdb.directory.DirectoryLayer;
 import com.apple.foundationdb.directory.DirectorySubspace;
@@ -51,6 +66,15 @@ import com.apple.foundationdb.tuple.Tuple;
  */
 public final class FDBDirectory extends Directory {
 
+    /**
+     * The number and length of a file, and its page size if it differs from the
+     * page size of the directory.
+     *
+     * <p>
+     * A composite file has no pages of its own; it is the concatenation of
+     * other files, its extents, whose pages it references. It is stored as
+     * {@code (-1, fileLength, 0, (extent, ...))}.
+     */
     static class FileMetaData {
 
         private final Tuple asTuple;
@@ -59,8 +83,38 @@ public final class FDBDirectory extends Directory {
             this.asTuple = Tuple.from(fileNumber, fileLength);
         }
 
+        public FileMetaData(final long fileNumber, final long fileLength, final int pageSize) {
+            this.asTuple = Tuple.from(fileNumber, fileLength, pageSize);
+        }
+
+        /**
+         * @param contentAddressed whether the pages of this file hold the hash
+         *                         of their content in a {@link PageStore}.
+         */
+        public FileMetaData(final long fileNumber, final long fileLength, final int pageSize,
+                final boolean contentAddressed) {
+            this.asTuple = contentAddressed ? Tuple.from(fileNumber, fileLength, pageSize, true)
+                    : Tuple.from(fileNumber, fileLength, pageSize);
+        }
+
+        /**
+         * Creates a composite file. The extents of any composite file in
+         * {@code files} are inlined.
+         */
+        public FileMetaData(final List<FileMetaData> files) {
+            long fileLength = 0L;
+            Tuple extents = new Tuple();
+            for (final FileMetaData file : files) {
+                for (final FileMetaData extent : file.getExtents()) {
+                    fileLength += extent.getFileLength();
+                    extents = extents.add(extent.asTuple);
+                }
+            }
+            this.asTuple = Tuple.from(-1L, fileLength, 0L, extents);
+        }
+
         public FileMetaData(final Tuple tuple) {
-            if (tuple.size() != 2) {
+            if (tuple.size() < 2 || tuple.size() > 4) {
                 throw new IllegalArgumentException(tuple + " is not a file metadata tuple");
             }
             this.asTuple = tuple;
@@ -78,7 +132,68 @@ public final class FDBDirectory extends Directory {
             return asTuple.getLong(1);
         }
 
+        /**
+         * @param defaultPageSize the page size of the directory.
+         * @return the page size of this file.
+         */
+        public int getPageSize(final int defaultPageSize) {
+            return asTuple.size() == 3 || isContentAddressed() ? (int) asTuple.getLong(2) : defaultPageSize;
+        }
+
+        public boolean isComposite() {
+            return asTuple.size() == 4 && !(asTuple.get(3) instanceof Boolean);
+        }
+
+        public boolean isContentAddressed() {
+            return asTuple.size() == 4 && asTuple.get(3) instanceof Boolean;
+        }
+
+        /**
+         * @return the files this file is the concatenation of, or this file if
+         *         it is not composite.
+         */
+        public List<FileMetaData> getExtents() {
+            if (!isComposite()) {
+                return Collections.singletonList(this);
+            }
+            final Tuple extents = asTuple.getNestedTuple(3);
+            final List<FileMetaData> result = new ArrayList<FileMetaData>(extents.size());
+            for (int i = 0; i < extents.size(); i++) {
+                result.add(new FileMetaData(extents.getNestedTuple(i)));
+            }
+            return result;
+        }
+
+        /**
+         * @return the distinct numbers of the files whose pages this file
+         *         reads.
+         */
+        public Set<Long> getFileNumbers() {
+            final Set<Long> result = new LinkedHashSet<Long>();
+            for (final FileMetaData extent : getExtents()) {
+                result.add(extent.getFileNumber());
+            }
+            return result;
+        }
+
+        /**
+         * @return the extents of this file, one per file whose pages it reads.
+         */
+        public List<FileMetaData> getDistinctExtents() {
+            final Map<Long, FileMetaData> result = new LinkedHashMap<Long, FileMetaData>();
+            for (final FileMetaData extent : getExtents()) {
+                result.putIfAbsent(extent.getFileNumber(), extent);
+            }
+            return new ArrayList<FileMetaData>(result.values());
+        }
+
         public FileMetaData setFileLength(final long fileLength) {
+            if (isComposite()) {
+                throw new IllegalStateException("the length of a composite file is fixed");
+            }
+            if (asTuple.size() > 2) {
+                return new FileMetaData(getFileNumber(), fileLength, (int) asTuple.getLong(2), isContentAddressed());
+            }
             return new FileMetaData(getFileNumber(), fileLength);
         }
 
@@ -139,9 +254,27 @@ public final class FDBDirectory extends Directory {
      */
     public static FDBDirectory open(final TransactionContext txc, final Path path, final int pageSize,
             final int txnSize) {
+        return open(txc, path, new FDBDirectoryConfig().setPageSize(pageSize).setTxnSize(txnSize));
+    }
+
+    /**
+     * Opens a Directory (or creates an empty one if there is no existing directory)
+     * at the provided {@code path}.
+     *
+     * @param txc    The {@link TransactionContext} that will be used for all
+     *               transactions. This is typically a {@link Database}.
+     * @param path   The (virtual) path where this directory is located. This
+     *               option is provided for compatibility with the Lucene test
+     *               framework. No data will be written to this path of the
+     *               filesystem.
+     * @param config The options of the directory.
+     * @return an instance of FDBDirectory
+     * @throws IllegalArgumentException if txnSize is smaller than pageSize.
+     */
+    public static FDBDirectory open(final TransactionContext txc, final Path path, final FDBDirectoryConfig config) {
         final DirectoryLayer dirLayer = DirectoryLayer.getDefault();
         final DirectorySubspace dir = dirLayer.createOrOpen(txc, pathAsList(path)).join();
-        return open(txc, dir, pageSize, txnSize);
+        return open(txc, dir, config);
     }
 
     /**
@@ -163,9 +296,39 @@ public final class FDBDirectory extends Directory {
      */
     public static FDBDirectory open(final TransactionContext txc, final Subspace subspace, final int pageSize,
             final int txnSize) {
-        return new FDBDirectory(txc, subspace, pageSize, txnSize);
+        return open(txc, subspace, new FDBDirectoryConfig().setPageSize(pageSize).setTxnSize(txnSize));
+    }
+
+    /**
+     * Opens a Directory (or creates an empty one if there is no existing directory)
+     * at the provided {@code path}.
+     *
+     * @param txc      The {@link TransactionContext} that will be used for all
+     *                 transactions. This is typically a {@link Database}.
+     * @param subspace The {@link Subspace} to create all key-value entries under.
+     *                 This is useful if using Lucene indexes in a wider context.
+     * @param config   The options of the directory.
+     * @return an instance of FDBDirectory
+     * @throws IllegalArgumentException if txnSize is smaller than pageSize.
+     */
+    public static FDBDirectory open(final TransactionContext txc, final Subspace subspace,
+            final FDBDirectoryConfig config) {
+        return new FDBDirectory(txc, subspace, config, new ReadVersionCache(config.getMetrics()),
+                config.getMergeThrottle());
     }
 
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    /**
+     * Holds the pins of {@link #pinCommit(long)}.
+     */
+    private static final String DEFAULT_PIN_HOLDER = "";
+
+    /**
+     * The number of pages released from a {@link PageStore} per transaction.
+     */
+    private static final int RECLAIM_BATCH_SIZE = 1_000;
+
     private static List<String> pathAsList(final Path path) {
         final List<String> result = new ArrayList<String>();
         for (final Path p : path) {
@@ -174,21 +337,72 @@ public final class FDBDirectory extends Directory {
         return result;
     }
 
+    private final TransactionContext database;
     private final TransactionContext txc;
+    private final TransactionContext mergeTxc;
+    private final TransactionContext batchTxc;
     private final Subspace subspace;
+    /**
+     * The key prefix of file metadata, to which file names are appended.
+     */
+    private final byte[] metaPrefix;
     private boolean closed;
     private final int pageSize;
     private final int txnSize;
+    private final FDBDirectoryMetrics metrics;
+    private final Tracer tracer;
+    private final PageSizePolicy pageSizePolicy;
+    private final PageCache pageCache;
+    private final long pageCacheQuota;
+    private volatile long cacheOwner;
+    private final DiskPageCache diskPageCache;
+    private final PageStore pageStore;
+    private volatile UUID epoch;
+    private final ReadVersionCache readVersions;
+    private final int readAheadPages;
+    private final int mergeWritePipelineDepth;
+    private final IOThrottle mergeThrottle;
+    private final boolean asyncClose;
+    /**
+     * The last transactions of outputs closed asynchronously, by file name,
+     * until they succeed or their failure is reported.
+     */
+    private final Map<String, CompletableFuture<Void>> pendingCloses =
+            new ConcurrentHashMap<String, CompletableFuture<Void>>();
 
     private final UUID uuid;
 
-    private FDBDirectory(final TransactionContext txc, final Subspace subspace, final int pageSize, final int txnSize) {
-        this.txc = txc;
+    /**
+     * @param readVersions  a cache of read versions shared by all inputs and
+     *                      outputs.
+     * @param mergeThrottle overrides the merge throttle of {@code config}.
+     */
+    FDBDirectory(final TransactionContext txc, final Subspace subspace, final FDBDirectoryConfig config,
+            final ReadVersionCache readVersions, final IOThrottle mergeThrottle) {
+        this.metrics = config.getMetrics();
+        this.database = txc;
+        this.txc = metrics == FDBDirectoryMetrics.NOOP ? txc : new MeteredTransactionContext(txc, metrics);
+        this.tracer = Tracer.sampling(config.getTraceSampling());
         this.subspace = subspace;
+        this.metaPrefix = subspace.pack(Tuple.from("_meta"));
         this.closed = false;
         this.uuid = UUID.randomUUID();
-        this.pageSize = getOrSetPageSize(txc, subspace, pageSize);
-        this.txnSize = txnSize;
+        this.pageSize = getOrSetPageSize(this.txc, subspace, config.getPageSize());
+        this.txnSize = config.getTxnSize();
+        this.pageSizePolicy = config.getPageSizePolicy();
+        this.pageCache = config.getPageCache();
+        this.pageCacheQuota = config.getPageCacheQuota();
+        this.cacheOwner = newCacheOwner();
+        this.readVersions = readVersions;
+        this.diskPageCache = config.getDiskPageCache();
+        this.pageStore = config.getPageStore();
+        this.epoch = pageCache == null && diskPageCache == null ? null : getOrSetEpoch();
+        this.readAheadPages = config.getReadAheadPages();
+        this.mergeWritePipelineDepth = config.getMergeWritePipelineDepth();
+        this.mergeThrottle = mergeThrottle;
+        this.asyncClose = config.isAsyncClose();
+        this.batchTxc = new BatchPriorityTransactionContext(this.txc);
+        this.mergeTxc = config.isMergeBatchPriority() ? batchTxc : this.txc;
 
         if (this.txnSize < this.pageSize) {
             throw new IllegalArgumentException("txnSize cannot be smaller than pageSize");
@@ -200,26 +414,53 @@ public final class FDBDirectory extends Directory {
     }
 
     /**
-     * Removes all data related to this directory.
+     * Removes all data related to this directory, releasing its pages in the
+     * {@link PageStore} first.
      */
     public void delete() {
+        if (pageStore != null) {
+            for (final long fileNumber : storedFileNumbers()) {
+                reclaim(fileNumber);
+            }
+        }
         txc.run(txn -> {
-            Utils.trace(txn, "FDBDirectory.delete(%s)", uuid);
+            tracer.trace(txn, "FDBDirectory.delete(%s)", uuid);
             txn.clear(subspace.range());
             return null;
         });
+        // File numbers restart from zero after a delete.
+        if (epoch == null) {
+            return;
+        }
+        synchronized (this) {
+            dropCachedPages();
+            epoch = getOrSetEpoch();
+        }
     }
 
+    /**
+     * Waits for outputs that were closed asynchronously, then closes this
+     * directory.
+     */
     @Override
     public void close() throws IOException {
-        closed = true;
+        try {
+            awaitCloses(pendingCloses.keySet());
+        } finally {
+            closed = true;
+            invalidateCache();
+        }
     }
 
     /**
      * Creates a new {@link FDBIndexOutput} instance.
      *
      * @param name    the name of the output file.
-     * @param context this parameter is ignored. It is safe to pass {@code null} in
+     * @param context passed to the {@link PageSizePolicy}. Outputs created for
+     *                merging keep up to
+     *                {@link FDBDirectoryConfig#setMergeWritePipelineDepth(int)}
+     *                transactions in flight and are subject to the merge
+     *                throttle and priority. It is safe to pass {@code null} in
      *                tests.
      */
     @Override
@@ -228,27 +469,81 @@ public final class FDBDirectory extends Directory {
             throw new AlreadyClosedException(this + " is closed");
         }
 
-        final byte[] key = metaKey(name);
+        final int filePageSize = filePageSize(name, context);
 
-        final long fileNumber = txc.run(txn -> {
-            Utils.trace(txn, "FDBDirectory.createOutput(%s)", name);
-            final byte[] value = txn.get(key).join();
-            if (value != null) {
-                return -1L;
-            }
+        final byte[] metaKey = metaKey(name);
+        final long start = System.nanoTime();
+        final long fileNumber = newFile(name, metaKey, filePageSize, pageStore != null);
+        metrics.metadataOperation("createOutput", System.nanoTime() - start);
 
-            final long result = getAndIncrement(txn, "_fn");
-            txn.set(key, new FileMetaData(result, 0L).pack());
-            return result;
-        });
+        final String resourceDescription = String.format("FDBIndexOutput(name=%s,number=%d)", name, fileNumber);
+        // Flushes must end on a page boundary.
+        final int fileTxnSize = txnSize - txnSize % filePageSize;
+        if (isMerge(context)) {
+            return new FDBIndexOutput(this, resourceDescription, name, mergeTxc, metaKey,
+                    fileSubspace(fileNumber), filePageSize, fileTxnSize, mergeWritePipelineDepth, mergeThrottle,
+                    readVersions, metrics, tracer, pageStore, asyncClose);
+        }
+        return new FDBIndexOutput(this, resourceDescription, name, txc, metaKey, fileSubspace(fileNumber),
+                filePageSize, fileTxnSize, 1, null, readVersions, metrics, tracer, pageStore, asyncClose);
+    }
 
-        if (fileNumber == -1L) {
-            throw new FileAlreadyExistsException(name + " already exists.");
+    /**
+     * Copies a file without passing its bytes through an {@link IndexOutput}.
+     * Within this directory, {@code dest} references the pages of {@code src},
+     * which are kept until both files are deleted. From another FDBDirectory
+     * opened on the same {@link TransactionContext}, the pages are copied in
+     * transactions of up to {@code txnSize}, subject to the merge throttle and
+     * priority if {@code context} is a merge; pages in a {@link PageStore} that
+     * both directories use are referenced rather than copied. The files of a
+     * commit pinned in such a directory, read through
+     * {@link IndexCommit#getDirectory()}, are copied the same way. Anything
+     * else is copied byte by byte.
+     */
+    @Override
+    public void copyFrom(final Directory from, final String src, final String dest, final IOContext context)
+            throws IOException {
+        if (closed) {
+            throw new AlreadyClosedException(this + " is closed");
+        }
+        if (from instanceof FDBDirectory) {
+            ((FDBDirectory) from).awaitClose(src);
         }
 
-        final String resourceDescription = String.format("FDBIndexOutput(name=%s,number=%d)", name, fileNumber);
-        return new FDBIndexOutput(this, resourceDescription, name, txc, metaKey(name), fileSubspace(fileNumber),
-                pageSize, txnSize);
+        if (from == this) {
+            final long start = System.nanoTime();
+            link(src, dest);
+            metrics.metadataOperation("copyFrom", System.nanoTime() - start);
+            return;
+        }
+        FDBDirectory source = null;
+        FileMetaData meta = null;
+        if (from instanceof FDBDirectory) {
+            source = (FDBDirectory) from;
+            meta = source.meta(source.txc, src);
+            if (meta == null) {
+                throw new FileNotFoundException(src + " does not exist.");
+            }
+        } else if (from instanceof FDBPinnedCommit.View) {
+            source = ((FDBPinnedCommit.View) from).directory();
+            meta = ((FDBPinnedCommit.View) from).meta(src);
+        }
+        if (source != null && source.database == database) {
+            if (!meta.isComposite() && meta.getPageSize(source.pageSize) <= txnSize
+                    && (!meta.isContentAddressed() || pageStore != null && pageStore.equals(source.pageStore))) {
+                boolean success = false;
+                try {
+                    copyPages(source, meta, src, dest, context);
+                    success = true;
+                } finally {
+                    if (!success) {
+                        IOUtils.deleteFilesIgnoringExceptions(this, dest);
+                    }
+                }
+                return;
+            }
+        }
+        super.copyFrom(from, src, dest, context);
     }
 
     /**
@@ -272,27 +567,53 @@ public final class FDBDirectory extends Directory {
         }
     }
 
+    /**
+     * Deletes a file. The data of a file that is referenced by a pinned commit,
+     * or by a copy or compound file, is retained until the last such reference
+     * is released.
+     */
     @Override
     public void deleteFile(final String name) throws IOException {
-        final boolean deleted = txc.run(txn -> {
-            Utils.trace(txn, "FDBDirectory.deleteFile(%s)", name);
-            final long fileNumber = fileNumber(txn, name);
-            if (fileNumber != -1L) {
-                txn.clear(metaKey(name));
-                txn.clear(subspace.get(fileNumber).range());
-                return true;
+        discardClose(name);
+        final long start = System.nanoTime();
+        final List<FileMetaData> reclaimed = txc.run(txn -> {
+            tracer.trace(txn, "FDBDirectory.deleteFile(%s)", name);
+            final FileMetaData meta = meta(txn, name);
+            if (meta == null) {
+                return null;
+            }
+            txn.clear(metaKey(name));
+            final List<FileMetaData> result = new ArrayList<FileMetaData>();
+            for (final FileMetaData extent : meta.getDistinctExtents()) {
+                final long fileNumber = extent.getFileNumber();
+                if (release(txn, fileNumber, name) && !isPinned(txn, fileNumber)) {
+                    clearPages(txn, extent);
+                    result.add(extent);
+                }
             }
-            return false;
+            return result;
         });
+        metrics.metadataOperation("deleteFile", System.nanoTime() - start);
 
-        if (!deleted) {
+        if (reclaimed == null) {
             throw new FileNotFoundException(name + " does not exist");
         }
+        for (final FileMetaData extent : reclaimed) {
+            if (extent.isContentAddressed()) {
+                reclaim(extent.getFileNumber());
+            }
+            if (diskPageCache != null) {
+                diskPageCache.remove(epoch, extent.getFileNumber());
+            }
+        }
     }
 
     @Override
     public long fileLength(final String name) throws IOException {
+        awaitClose(name);
+        final long start = System.nanoTime();
         final FileMetaData meta = meta(txc, name);
+        metrics.metadataOperation("fileLength", System.nanoTime() - start);
 
         if (meta == null) {
             throw new FileNotFoundException(name + " does not exist.");
@@ -304,10 +625,12 @@ public final class FDBDirectory extends Directory {
     @Override
     public String[] listAll() throws IOException {
         final Range metaRange = metaRange();
+        final long start = System.nanoTime();
         final List<KeyValue> keyvalues = txc.read(txn -> {
-            Utils.trace(txn, "FDBDirectory.listAll(%s)", uuid);
+            tracer.trace(txn, "FDBDirectory.listAll(%s)", uuid);
             return txn.getRange(metaRange).asList().join();
         });
+        metrics.metadataOperation("listAll", System.nanoTime() - start);
 
         final String[] result = new String[keyvalues.size()];
         for (int i = 0; i < keyvalues.size(); i++) {
@@ -320,68 +643,605 @@ public final class FDBDirectory extends Directory {
 
     @Override
     public Lock obtainLock(final String name) throws IOException {
-        return FDBLock.obtain(txc, subspace, uuid, name);
+        return FDBLock.obtain(txc, subspace, uuid, name, tracer);
     }
 
     /**
      * Creates a new {@link FDBIndexInput} instance.
      *
-     * @param context this parameter is ignored. It is safe to pass {@code null} in
-     *                tests.
+     * @param context inputs opened for merging or to be read once read ahead
+     *                and bypass the {@link PageCache} and
+     *                {@link DiskPageCache}; all others read one page at a time
+     *                through the caches. Inputs opened for merging are
+     *                also subject to the merge throttle and priority. It is
+     *                safe to pass {@code null} in tests.
      */
     @Override
     public IndexInput openInput(final String name, final IOContext context) throws IOException {
         if (closed) {
             throw new AlreadyClosedException(this + " is closed");
         }
+        awaitClose(name);
 
-        final FileMetaData meta = meta(txc, name);
+        final long start = System.nanoTime();
+        final FileMetaData meta = epoch == null ? meta(txc, name) : metaInEpoch(name);
+        metrics.metadataOperation("openInput", System.nanoTime() - start);
 
         if (meta == null) {
             throw new FileNotFoundException(name + " does not exist.");
         }
 
+        return newInput(name, meta, context);
+    }
+
+    /**
+     * Pins the commit with the given generation on behalf of the default
+     * holder, which is shared by all callers of this method and of
+     * {@link #unpinCommit(long)}.
+     *
+     * @see #pinCommit(long, String)
+     */
+    public IndexCommit pinCommit(final long generation) throws IOException {
+        return pinCommit(generation, DEFAULT_PIN_HOLDER);
+    }
+
+    /**
+     * Pins the commit with the given generation on behalf of {@code holder}.
+     * The files referenced by a pinned commit are not reclaimed when they are
+     * deleted from this directory, so the commit remains readable, from this or
+     * any other instance opened on the same subspace, until every holder has
+     * called {@link #unpinCommit(long, String)}. Independent tasks that pin the
+     * same commit therefore cannot release it from under each other. Pinning a
+     * commit again for the same holder has no further effect.
+     *
+     * @param generation the generation of an existing commit.
+     * @param holder     identifies the pin, such as a random UUID per task.
+     * @return the pinned commit, which can be passed to
+     *         {@link org.apache.lucene.index.DirectoryReader#open(IndexCommit)}.
+     * @throws FileNotFoundException if the commit, or any file it references,
+     *                               does not exist.
+     */
+    public IndexCommit pinCommit(final long generation, final String holder) throws IOException {
+        final byte[] holderKey = pinKey(generation, holder);
+        // The files of a pinned commit were recorded by its first holder.
+        final boolean pinned = txc.run(txn -> {
+            tracer.trace(txn, "FDBDirectory.pinCommit(%s,%d)", uuid, generation);
+            if (!isCommitPinned(txn, generation)) {
+                return false;
+            }
+            txn.set(holderKey, EMPTY_VALUE);
+            return true;
+        });
+        if (pinned) {
+            return new FDBPinnedCommit(this, generation);
+        }
+
+        final String segmentsFileName = IndexFileNames.fileNameFromGeneration(IndexFileNames.SEGMENTS, "",
+                generation);
+        final Collection<String> files = SegmentInfos.readCommit(this, segmentsFileName).files(true);
+        awaitCloses(files);
+
+        final String missing = txc.run(txn -> {
+            tracer.trace(txn, "FDBDirectory.pinCommit(%s,%d)", uuid, generation);
+            if (isCommitPinned(txn, generation)) {
+                txn.set(holderKey, EMPTY_VALUE);
+                return null;
+            }
+            final List<String> names = new ArrayList<String>(files);
+            final List<CompletableFuture<byte[]>> values = new ArrayList<CompletableFuture<byte[]>>();
+            for (final String name : names) {
+                values.add(txn.get(metaKey(name)));
+            }
+            for (int i = 0; i < names.size(); i++) {
+                final byte[] value = values.get(i).join();
+                if (value == null) {
+                    return names.get(i);
+                }
+                txn.set(pinFileKey(generation, names.get(i)), value);
+                for (final long fileNumber : new FileMetaData(value).getFileNumbers()) {
+                    txn.set(pinnedKey(fileNumber, generation), EMPTY_VALUE);
+                }
+            }
+            txn.set(holderKey, EMPTY_VALUE);
+            return null;
+        });
+
+        if (missing != null) {
+            throw new FileNotFoundException(missing + " does not exist.");
+        }
+        return new FDBPinnedCommit(this, generation);
+    }
+
+    /**
+     * Returns a commit previously pinned with {@link #pinCommit(long, String)},
+     * possibly by another instance opened on the same subspace. The commit is
+     * not pinned again, so it is only readable while its holders keep it
+     * pinned.
+     *
+     * @param generation the generation of a pinned commit.
+     * @return the pinned commit.
+     * @throws FileNotFoundException if the commit is not pinned.
+     */
+    public IndexCommit pinnedCommit(final long generation) throws IOException {
+        final boolean pinned = txc.read(txn -> {
+            tracer.trace(txn, "FDBDirectory.pinnedCommit(%s,%d)", uuid, generation);
+            return isCommitPinned(txn, generation);
+        });
+        if (!pinned) {
+            throw new FileNotFoundException("commit " + generation + " is not pinned.");
+        }
+        return new FDBPinnedCommit(this, generation);
+    }
+
+    /**
+     * @return the generations of all pinned commits, in ascending order.
+     */
+    public long[] listPinnedCommits() throws IOException {
+        final Range range = subspace.range(Tuple.from("_pin"));
+        final List<KeyValue> keyvalues = txc.read(txn -> {
+            tracer.trace(txn, "FDBDirectory.listPinnedCommits(%s)", uuid);
+            return txn.getRange(range).asList().join();
+        });
+
+        // Keys are ordered by generation, then holder.
+        final List<Long> generations = new ArrayList<Long>();
+        for (final KeyValue kv : keyvalues) {
+            final long generation = subspace.unpack(kv.getKey()).getLong(1);
+            if (generations.isEmpty() || generations.get(generations.size() - 1) != generation) {
+                generations.add(generation);
+            }
+        }
+        final long[] result = new long[generations.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = generations.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Releases the pin of the default holder.
+     *
+     * @see #unpinCommit(long, String)
+     */
+    public void unpinCommit(final long generation) throws IOException {
+        unpinCommit(generation, DEFAULT_PIN_HOLDER);
+    }
+
+    /**
+     * Releases the pin of {@code holder}. Once a commit has no holders left,
+     * the data of files that were deleted while it was pinned is reclaimed
+     * unless another pinned commit references them. Unpinning a commit that
+     * {@code holder} has not pinned has no effect.
+     *
+     * @param generation the generation of a pinned commit.
+     * @param holder     the holder passed to {@link #pinCommit(long, String)}.
+     */
+    public void unpinCommit(final long generation, final String holder) throws IOException {
+        final Range range = pinFileRange(generation);
+        final Range holders = pinRange(generation);
+        final List<Long> reclaimed = txc.run(txn -> {
+            tracer.trace(txn, "FDBDirectory.unpinCommit(%s,%d)", uuid, generation);
+            final List<Long> result = new ArrayList<Long>();
+            // Two keys are enough to tell whether another holder remains.
+            final List<KeyValue> pins = txn.getRange(holders, 2).asList().join();
+            txn.clear(pinKey(generation, holder));
+            for (final KeyValue kv : pins) {
+                if (!holder.equals(subspace.unpack(kv.getKey()).getString(2))) {
+                    return result;
+                }
+            }
+            for (final KeyValue kv : txn.getRange(range).asList().join()) {
+                final String name = subspace.unpack(kv.getKey()).getString(2);
+                for (final FileMetaData extent : new FileMetaData(kv.getValue()).getDistinctExtents()) {
+                    final long fileNumber = extent.getFileNumber();
+                    txn.clear(pinnedKey(fileNumber, generation));
+                    if (!isPinned(txn, fileNumber) && !isReferenced(txn, fileNumber, name)) {
+                        clearPages(txn, extent);
+                        if (extent.isContentAddressed()) {
+                            result.add(fileNumber);
+                        }
+                    }
+                }
+            }
+            txn.clear(range);
+            return result;
+        });
+
+        for (final long fileNumber : reclaimed) {
+            reclaim(fileNumber);
+        }
+    }
+
+    IndexInput newInput(final String name, final FileMetaData meta, final IOContext context) throws IOException {
+        if (meta.isComposite()) {
+            final List<FileMetaData> extents = meta.getExtents();
+            final IndexInput[] parts = new IndexInput[extents.size()];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = newInput(name, extents.get(i), context);
+            }
+            return new FDBCompositeIndexInput(String.format("FDBCompositeIndexInput(name=%s)", name), parts);
+        }
+
+        if (meta.isContentAddressed() && pageStore == null) {
+            throw new IllegalStateException(name + " is in a PageStore but " + this + " has none.");
+        }
         final String resourceDescription = String
                 .format("FDBIndexInput(name=%s,number=%d)", name, meta.getFileNumber());
-        return new FDBIndexInput(resourceDescription, txc, fileSubspace(meta.getFileNumber()), name, 0L,
-                meta.getFileLength(), pageSize);
+        final boolean merge = isMerge(context);
+        final boolean streaming = merge || (context != null && context.readOnce);
+        // Streaming inputs do not populate caches, so they skip the disk cache
+        // rather than create a local file for it.
+        final DiskPageCache.CachedFile diskFile = diskPageCache == null || streaming ? null
+                : diskPageCache.open(epoch, meta.getFileNumber(), meta.getFileLength(), meta.getPageSize(pageSize));
+        return new FDBIndexInput(resourceDescription, merge ? mergeTxc : txc, fileSubspace(meta.getFileNumber()),
+                name, 0L, meta.getFileLength(), meta.getPageSize(pageSize), metrics, tracer, pageCache, cacheOwner,
+                meta.getFileNumber(), streaming ? readAheadPages : 0, merge ? mergeThrottle : null, readVersions,
+                diskFile, meta.isContentAddressed() ? pageStore : null);
+    }
+
+    private static boolean isMerge(final IOContext context) {
+        return context != null && context.context == IOContext.Context.MERGE;
+    }
+
+    private long newCacheOwner() {
+        final long result = PageCache.newOwner();
+        if (pageCache != null) {
+            pageCache.setQuota(result, pageCacheQuota);
+        }
+        return result;
+    }
+
+    private void invalidateCache() {
+        if (pageCache != null) {
+            pageCache.invalidate(cacheOwner);
+        }
+    }
+
+    FileMetaData pinnedMeta(final long generation, final String name) {
+        final byte[] key = pinFileKey(generation, name);
+        final byte[] result = txc.read(txn -> {
+            return txn.get(key).join();
+        });
+
+        if (result == null) {
+            return null;
+        }
+
+        return new FileMetaData(result);
+    }
+
+    String[] listPinnedFiles(final long generation) {
+        final Range range = pinFileRange(generation);
+        final List<KeyValue> keyvalues = txc.read(txn -> {
+            tracer.trace(txn, "FDBDirectory.listPinnedFiles(%s,%d)", uuid, generation);
+            return txn.getRange(range).asList().join();
+        });
+
+        final String[] result = new String[keyvalues.size()];
+        for (int i = 0; i < keyvalues.size(); i++) {
+            result[i] = subspace.unpack(keyvalues.get(i).getKey()).getString(2);
+        }
+        return result;
     }
 
     /**
-     * Atomically renames a file in constant time.
+     * Makes {@code dest}, an existing empty file, the concatenation of
+     * {@code sources} without copying their data: it references their pages,
+     * which are kept until all files referencing them are deleted. {@code dest}
+     * is created by the caller, typically through the same {@link Directory}
+     * wrappers as the sources so that they track it.
+     *
+     * @throws FileNotFoundException if a source does not exist.
+     * @throws IOException           if {@code dest} is not an empty file.
+     */
+    void concatenate(final String dest, final List<String> sources) throws IOException {
+        awaitCloses(sources);
+        awaitClose(dest);
+        final byte[] destKey = metaKey(dest);
+        final long start = System.nanoTime();
+        final String missing = txc.run(txn -> {
+            tracer.trace(txn, "FDBDirectory.concatenate(%s,%s)", dest, sources);
+            final List<CompletableFuture<byte[]>> values = new ArrayList<CompletableFuture<byte[]>>();
+            for (final String name : sources) {
+                values.add(txn.get(metaKey(name)));
+            }
+            final FileMetaData current = meta(txn, dest);
+            if (current == null || current.isComposite() || current.getFileLength() != 0L) {
+                return dest;
+            }
+            final List<FileMetaData> metas = new ArrayList<FileMetaData>();
+            for (int i = 0; i < sources.size(); i++) {
+                final byte[] value = values.get(i).join();
+                if (value == null) {
+                    return sources.get(i);
+                }
+                metas.add(new FileMetaData(value));
+            }
+            txn.set(destKey, new FileMetaData(metas).pack());
+            for (int i = 0; i < sources.size(); i++) {
+                addReferences(txn, sources.get(i), metas.get(i), dest);
+            }
+            return null;
+        });
+        metrics.metadataOperation("concatenate", System.nanoTime() - start);
+
+        if (dest.equals(missing)) {
+            throw new IOException(dest + " is not an empty file.");
+        }
+        if (missing != null) {
+            throw new FileNotFoundException(missing + " does not exist.");
+        }
+    }
+
+    /**
+     * Writes {@code name} from {@code input} with concurrent transactions of up
+     * to {@code txnSize}, one per chunk of the file, run on {@code executor}.
+     * The length of the file is only set once every chunk is written, so an
+     * interrupted import leaves an empty file, which a later import of the
+     * same file resumes by skipping the chunks that were written.
+     *
+     * @param input an input that can be sliced from several threads, such as
+     *              one of an {@link org.apache.lucene.store.MMapDirectory}. It
+     *              must stay open until the returned future completes.
+     * @return completes when the file has been written.
+     * @throws FileAlreadyExistsException if {@code name} exists with another
+     *                                    length.
+     */
+    CompletableFuture<Void> importFile(final String name, final IndexInput input, final Executor executor)
+            throws IOException {
+        if (closed) {
+            throw new AlreadyClosedException(this + " is closed");
+        }
+
+        final long length = input.length();
+        final byte[] key = metaKey(name);
+        FileMetaData meta = meta(txc, name);
+        final boolean resume = meta != null;
+        if (resume) {
+            if (meta.getFileLength() == length && !meta.isComposite()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (meta.getFileLength() != 0L || meta.isComposite()) {
+                throw new FileAlreadyExistsException(name + " already exists.");
+            }
+        } else {
+            final long start = System.nanoTime();
+            newFile(name, key, filePageSize(name, IOContext.DEFAULT), pageStore != null);
+            metrics.metadataOperation("importFile", System.nanoTime() - start);
+            meta = meta(txc, name);
+        }
+        if (meta.isContentAddressed() && pageStore == null) {
+            throw new IllegalStateException(name + " is in a PageStore but " + this + " has none.");
+        }
+
+        final int filePageSize = meta.getPageSize(pageSize);
+        final PageStore store = meta.isContentAddressed() ? pageStore : null;
+        final byte[] prefix = fileSubspace(meta.getFileNumber()).getKey();
+        final String extension = FDBUtil.extension(name);
+        final int chunkSize = txnSize - txnSize % filePageSize;
+        final List<CompletableFuture<Void>> chunks = new ArrayList<CompletableFuture<Void>>();
+        try {
+            for (long offset = 0; offset < length; offset += chunkSize) {
+                final int size = (int) Math.min(chunkSize, length - offset);
+                final long end = offset + size;
+                final IndexInput chunk = input.slice(name, offset, size);
+                chunks.add(CompletableFuture.runAsync(() -> {
+                    final byte[] buffer = new byte[size];
+                    try {
+                        chunk.readBytes(buffer, 0, size);
+                    } catch (final IOException e) {
+                        throw new CompletionException(e);
+                    }
+                    final byte[] lastPageKey = FDBUtil.pack(prefix, FDBUtil.posToPage(end - 1, filePageSize));
+                    final long txnStart = System.nanoTime();
+                    txc.run(txn -> {
+                        tracer.trace(txn, "FDBDirectory.importFile(%s,%s,%d)", uuid, name, end);
+                        // Chunks are written atomically, so one with its last
+                        // page was written by an earlier import.
+                        if (resume && txn.get(lastPageKey).join() != null) {
+                            return null;
+                        }
+                        FDBIndexOutput.flushTxnBuffer(prefix, txn, buffer, size, end, filePageSize, store);
+                        return null;
+                    });
+                    metrics.pagesWritten(extension, (size + filePageSize - 1) / filePageSize, size,
+                            System.nanoTime() - txnStart);
+                }, executor));
+            }
+        } catch (final RuntimeException e) {
+            // The chunks already submitted read from input, so wait for them.
+            final CompletableFuture<Void> result = new CompletableFuture<Void>();
+            CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()]))
+                    .whenComplete((v, t) -> result.completeExceptionally(e));
+            return result;
+        }
+
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()])).thenRun(() -> {
+            final boolean found = txc.run(txn -> {
+                final byte[] value = txn.get(key).join();
+                if (value == null) {
+                    return false;
+                }
+                txn.set(key, new FileMetaData(value).setFileLength(length).pack());
+                return true;
+            });
+            if (!found) {
+                throw new CompletionException(
+                        new FileNotFoundException(name + " was deleted while it was imported."));
+            }
+        });
+    }
+
+    /**
+     * Writes the file described by {@code meta} to {@code channel}. The pages
+     * are read in chunks of up to {@code txnSize} bytes, each with a single
+     * snapshot range read at batch priority, so that exports yield to
+     * searches. Chunks are read and written concurrently on
+     * {@code executor}.
+     *
+     * @param meta    the metadata of the file, which must not be reclaimed
+     *                until the returned future completes, such as that of a
+     *                pinned commit.
+     * @param channel supports concurrent positional writes. It must stay open
+     *                until the returned future completes.
+     * @param throttle charged for each chunk, or {@code null}.
+     * @return completes when the file has been written.
+     */
+    CompletableFuture<Void> exportFile(final String name, final FileMetaData meta, final FileChannel channel,
+            final IOThrottle throttle, final Executor executor) {
+        if (closed) {
+            throw new AlreadyClosedException(this + " is closed");
+        }
+
+        final String extension = FDBUtil.extension(name);
+        final List<FileMetaData> extents = meta.isComposite() ? meta.getExtents() : Collections.singletonList(meta);
+        final List<CompletableFuture<Void>> chunks = new ArrayList<CompletableFuture<Void>>();
+        try {
+            long offset = 0L;
+            for (final FileMetaData extent : extents) {
+                if (extent.isContentAddressed() && pageStore == null) {
+                    throw new IllegalStateException(name + " is in a PageStore but " + this + " has none.");
+                }
+                final byte[] prefix = fileSubspace(extent.getFileNumber()).getKey();
+                final boolean contentAddressed = extent.isContentAddressed();
+                final int filePageSize = extent.getPageSize(pageSize);
+                final long fileLength = extent.getFileLength();
+                final long pages = FDBUtil.posToPage(fileLength + filePageSize - 1, filePageSize);
+                final int pagesPerTxn = Math.max(1, txnSize / filePageSize);
+                final long base = offset;
+                for (long firstPage = 0; firstPage < pages; firstPage += pagesPerTxn) {
+                    final long first = firstPage;
+                    final long last = Math.min(pages, firstPage + pagesPerTxn);
+                    final long length = Math.min(fileLength, last * filePageSize);
+                    chunks.add(CompletableFuture.runAsync(() -> {
+                        if (throttle != null) {
+                            final long nanos = throttle.acquire(length - first * filePageSize);
+                            if (nanos > 0) {
+                                metrics.throttled(extension, nanos);
+                            }
+                        }
+                        final long start = System.nanoTime();
+                        final List<byte[]> values = batchTxc.read(txn -> {
+                            tracer.trace(txn, "FDBDirectory.exportFile(%s,%s,%d)", uuid, name, first);
+                            return readPages(txn.snapshot(), prefix, first, last, contentAddressed);
+                        });
+                        if (values.size() != last - first) {
+                            throw new CompletionException(new EOFException(name + " is shorter than its length."));
+                        }
+                        final long nanos = (System.nanoTime() - start) / values.size();
+                        long position = first * filePageSize;
+                        try {
+                            for (final byte[] value : values) {
+                                if (value == null) {
+                                    throw new EOFException(name + " is missing a stored page.");
+                                }
+                                metrics.pageRead(extension, value.length, nanos);
+                                final ByteBuffer buffer = ByteBuffer.wrap(value, 0,
+                                        (int) Math.min(value.length, length - position));
+                                while (buffer.hasRemaining()) {
+                                    position += channel.write(buffer, base + position);
+                                }
+                            }
+                        } catch (final IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, executor));
+                }
+                offset += fileLength;
+            }
+        } catch (final RuntimeException e) {
+            // The chunks already submitted write to channel, so wait for them.
+            final CompletableFuture<Void> result = new CompletableFuture<Void>();
+            CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()]))
+                    .whenComplete((v, t) -> result.completeExceptionally(e));
+            return result;
+        }
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()]));
+    }
+
+    /**
+     * Reads the pages {@code [first, last)} of a file with a single range read
+     * that fetches the whole range at once.
+     *
+     * @param contentAddressed whether the range holds the hashes of pages in
+     *                         the {@link PageStore}, which are then fetched
+     *                         concurrently.
+     * @return the pages, {@code null} for a hash missing from the store.
+     */
+    private List<byte[]> readPages(final ReadTransaction txn, final byte[] prefix, final long first, final long last,
+            final boolean contentAddressed) {
+        final List<KeyValue> keyvalues = txn.getRange(FDBUtil.pack(prefix, first), FDBUtil.pack(prefix, last),
+                ReadTransaction.ROW_LIMIT_UNLIMITED, false, StreamingMode.WANT_ALL).asList().join();
+        final List<byte[]> result = new ArrayList<byte[]>(keyvalues.size());
+        if (!contentAddressed) {
+            for (final KeyValue kv : keyvalues) {
+                result.add(kv.getValue());
+            }
+            return result;
+        }
+        final List<CompletableFuture<byte[]>> values = new ArrayList<CompletableFuture<byte[]>>(keyvalues.size());
+        for (final KeyValue kv : keyvalues) {
+            values.add(pageStore.get(txn, kv.getValue()));
+        }
+        for (final CompletableFuture<byte[]> value : values) {
+            result.add(value.join());
+        }
+        return result;
+    }
+
+    /**
+     * Atomically renames a file in constant time. Pages that have never been
+     * shared are referenced by the name they were written as, so renaming
+     * them records {@code dest} as a reference; otherwise a pinned commit
+     * that still names the old file would reclaim them when it is unpinned.
      */
     @Override
     public void rename(final String source, final String dest) throws IOException {
+        awaitClose(source);
         final byte[] sourceKey = metaKey(source);
         final byte[] destKey = metaKey(dest);
 
+        final long start = System.nanoTime();
         txc.run(txn -> {
-            Utils.trace(txn, "FDBDirectory.rename(%s,%s)", source, dest);
+            tracer.trace(txn, "FDBDirectory.rename(%s,%s)", source, dest);
             final FileMetaData meta = meta(txn, source);
             txn.clear(sourceKey);
             txn.set(destKey, meta.pack());
+            for (final long fileNumber : meta.getFileNumbers()) {
+                final byte[] refKey = refKey(fileNumber, source);
+                if (txn.get(refKey).join() != null) {
+                    txn.clear(refKey);
+                    txn.set(refKey(fileNumber, dest), EMPTY_VALUE);
+                } else if (!isShared(txn, fileNumber)) {
+                    txn.set(refKey(fileNumber, dest), EMPTY_VALUE);
+                }
+            }
             return null;
         });
+        metrics.metadataOperation("rename", System.nanoTime() - start);
     }
 
     public void unlock(final String name) {
-        FDBLock.unlock(txc, subspace, uuid, name);
+        FDBLock.unlock(txc, subspace, uuid, name, tracer);
     }
 
     /**
-     * this method's implementation is empty.
+     * Waits for the outputs of {@code names} that were closed asynchronously
+     * to commit. Every other write is durable once it returns.
+     *
+     * @throws IOException if the last transaction of an output failed.
      */
     @Override
     public void sync(final Collection<String> names) throws IOException {
-        // intentionally empty
+        awaitCloses(names);
     }
 
     /**
-     * this method's implementation is empty.
+     * Waits for all outputs that were closed asynchronously to commit.
      */
     @Override
     public void syncMetaData() throws IOException {
-        // intentionally empty
+        awaitCloses(pendingCloses.keySet());
     }
 
     @Override
@@ -398,6 +1258,286 @@ public final class FDBDirectory extends Directory {
         return subspace.get(fileNumber);
     }
 
+    /**
+     * Records the last transaction of an output of {@code name} closed
+     * asynchronously.
+     */
+    void closing(final String name, final CompletableFuture<Void> future) {
+        pendingCloses.put(name, future);
+        future.thenRun(() -> pendingCloses.remove(name, future));
+    }
+
+    /**
+     * Waits for the output of {@code name}, if it was closed asynchronously,
+     * so that the file is complete.
+     *
+     * @throws IOException if its last transaction failed, which is reported
+     *                     once.
+     */
+    private void awaitClose(final String name) throws IOException {
+        final CompletableFuture<Void> future = pendingCloses.get(name);
+        if (future == null) {
+            return;
+        }
+        try {
+            future.join();
+        } catch (final CompletionException e) {
+            pendingCloses.remove(name, future);
+            throw new IOException("failed to close " + name, e.getCause());
+        }
+    }
+
+    /**
+     * Waits for the output of {@code name}, which is about to be deleted,
+     * ignoring any failure.
+     */
+    private void discardClose(final String name) {
+        final CompletableFuture<Void> future = pendingCloses.remove(name);
+        if (future != null) {
+            future.exceptionally(e -> null).join();
+        }
+    }
+
+    private void awaitCloses(final Collection<String> names) throws IOException {
+        IOException failure = null;
+        for (final String name : new ArrayList<String>(names)) {
+            try {
+                awaitClose(name);
+            } catch (final IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Removes the pages of {@code extent}, which no file references. The pages
+     * of a file in the {@link PageStore} are released by {@link #reclaim(long)}
+     * once this transaction commits.
+     */
+    private void clearPages(final Transaction txn, final FileMetaData extent) {
+        if (extent.isContentAddressed()) {
+            txn.set(reclaimKey(extent.getFileNumber()), EMPTY_VALUE);
+        } else {
+            txn.clear(fileSubspace(extent.getFileNumber()).range());
+        }
+    }
+
+    /**
+     * Releases the pages of {@code fileNumber} in the {@link PageStore} in
+     * batches, each of which removes the keys it releases so that an
+     * interrupted reclaim can be resumed.
+     */
+    private void reclaim(final long fileNumber) {
+        final Range range = fileSubspace(fileNumber).range();
+        final byte[] reclaimKey = reclaimKey(fileNumber);
+        boolean done = false;
+        while (!done) {
+            done = txc.run(txn -> {
+                tracer.trace(txn, "FDBDirectory.reclaim(%s,%d)", uuid, fileNumber);
+                final List<KeyValue> keyvalues = txn.getRange(range, RECLAIM_BATCH_SIZE).asList().join();
+                final List<byte[]> hashes = new ArrayList<byte[]>(keyvalues.size());
+                for (final KeyValue kv : keyvalues) {
+                    hashes.add(kv.getValue());
+                    txn.clear(kv.getKey());
+                }
+                pageStore.release(txn, hashes);
+                if (keyvalues.size() < RECLAIM_BATCH_SIZE) {
+                    txn.clear(reclaimKey);
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+    /**
+     * @return the numbers of the files of this directory in the
+     *         {@link PageStore}, including those being reclaimed.
+     */
+    private Set<Long> storedFileNumbers() {
+        final List<KeyValue> keyvalues = txc.read(txn -> {
+            final List<KeyValue> result = new ArrayList<KeyValue>();
+            result.addAll(txn.getRange(metaRange()).asList().join());
+            result.addAll(txn.getRange(subspace.range(Tuple.from("_pinfile"))).asList().join());
+            result.addAll(txn.getRange(subspace.range(Tuple.from("_reclaim"))).asList().join());
+            return result;
+        });
+
+        final Set<Long> result = new LinkedHashSet<Long>();
+        for (final KeyValue kv : keyvalues) {
+            final Tuple key = subspace.unpack(kv.getKey());
+            if ("_reclaim".equals(key.getString(0))) {
+                result.add(key.getLong(1));
+                continue;
+            }
+            for (final FileMetaData extent : new FileMetaData(kv.getValue()).getExtents()) {
+                if (extent.isContentAddressed()) {
+                    result.add(extent.getFileNumber());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates {@code dest} as a file that references the pages of {@code src}.
+     */
+    private void link(final String src, final String dest) throws IOException {
+        final byte[] destKey = metaKey(dest);
+        final int result = txc.run(txn -> {
+            tracer.trace(txn, "FDBDirectory.link(%s,%s)", src, dest);
+            final CompletableFuture<byte[]> existing = txn.get(destKey);
+            final FileMetaData meta = meta(txn, src);
+            if (meta == null) {
+                return -1;
+            }
+            if (existing.join() != null) {
+                return -2;
+            }
+            txn.set(destKey, meta.pack());
+            addReferences(txn, src, meta, dest);
+            return 0;
+        });
+
+        if (result == -1) {
+            throw new FileNotFoundException(src + " does not exist.");
+        }
+        if (result == -2) {
+            throw new FileAlreadyExistsException(dest + " already exists.");
+        }
+    }
+
+    /**
+     * Copies the pages of {@code meta}, the metadata of {@code src} in
+     * {@code source}, to the new file {@code dest}. Pages in a
+     * {@link PageStore} are copied as references to the same content.
+     */
+    private void copyPages(final FDBDirectory source, final FileMetaData meta, final String src, final String dest,
+            final IOContext context) throws IOException {
+        final int filePageSize = meta.getPageSize(source.pageSize);
+        final long start = System.nanoTime();
+        final byte[] from = source.fileSubspace(meta.getFileNumber()).getKey();
+        final boolean contentAddressed = meta.isContentAddressed();
+        final byte[] destKey = metaKey(dest);
+        final byte[] to = fileSubspace(newFile(dest, destKey, filePageSize, contentAddressed)).getKey();
+        metrics.metadataOperation("copyFrom", System.nanoTime() - start);
+
+        final boolean merge = isMerge(context);
+        final TransactionContext txc = merge ? mergeTxc : this.txc;
+        final IOThrottle throttle = merge ? mergeThrottle : null;
+        final String extension = FDBUtil.extension(dest);
+        final long fileLength = meta.getFileLength();
+        final long pages = FDBUtil.posToPage(fileLength + filePageSize - 1, filePageSize);
+        final int pagesPerTxn = txnSize / filePageSize;
+
+        for (long firstPage = 0; firstPage < pages; firstPage += pagesPerTxn) {
+            final long first = firstPage;
+            final long last = Math.min(pages, firstPage + pagesPerTxn);
+            final long length = Math.min(fileLength, last * filePageSize);
+            final int bytes = (int) (length - first * filePageSize);
+            if (throttle != null) {
+                final long nanos = throttle.acquire(bytes);
+                if (nanos > 0) {
+                    metrics.throttled(extension, nanos);
+                }
+            }
+
+            final long txnStart = System.nanoTime();
+            final int result = txc.run(txn -> {
+                tracer.trace(txn, "FDBDirectory.copyPages(%s,%s,%d)", uuid, dest, first);
+                final CompletableFuture<byte[]> value = txn.get(destKey);
+                final List<KeyValue> keyvalues = txn.snapshot()
+                        .getRange(FDBUtil.pack(from, first), FDBUtil.pack(from, last)).asList().join();
+                if (value.join() == null) {
+                    return -1;
+                }
+                if (keyvalues.size() != last - first) {
+                    return -2;
+                }
+                if (contentAddressed) {
+                    final List<byte[]> keys = new ArrayList<byte[]>(keyvalues.size());
+                    final List<byte[]> hashes = new ArrayList<byte[]>(keyvalues.size());
+                    for (int i = 0; i < keyvalues.size(); i++) {
+                        keys.add(FDBUtil.pack(to, first + i));
+                        hashes.add(keyvalues.get(i).getValue());
+                    }
+                    pageStore.reference(txn, keys, hashes);
+                } else {
+                    for (int i = 0; i < keyvalues.size(); i++) {
+                        txn.options().setNextWriteNoWriteConflictRange();
+                        txn.set(FDBUtil.pack(to, first + i), keyvalues.get(i).getValue());
+                    }
+                }
+                txn.set(destKey, new FileMetaData(value.join()).setFileLength(length).pack());
+                return 0;
+            });
+
+            if (result == -1) {
+                throw new FileNotFoundException(dest + " was deleted while it was copied.");
+            }
+            if (result == -2) {
+                throw new FileNotFoundException(src + " was deleted while it was copied.");
+            }
+            metrics.pagesWritten(extension, (int) (last - first), bytes, System.nanoTime() - txnStart);
+        }
+    }
+
+    /**
+     * Creates an empty file.
+     *
+     * @param contentAddressed whether the pages of the file are written to the
+     *                         {@link PageStore}.
+     * @return the number of the new file.
+     * @throws FileAlreadyExistsException if the file exists.
+     */
+    private long newFile(final String name, final byte[] key, final int filePageSize, final boolean contentAddressed)
+            throws FileAlreadyExistsException {
+        final long result = txc.run(txn -> {
+            tracer.trace(txn, "FDBDirectory.createOutput(%s)", name);
+            final byte[] value = txn.get(key).join();
+            if (value != null) {
+                return -1L;
+            }
+
+            final long fileNumber = getAndIncrement(txn, "_fn");
+            final FileMetaData meta;
+            if (contentAddressed) {
+                meta = new FileMetaData(fileNumber, 0L, filePageSize, true);
+            } else if (filePageSize == pageSize) {
+                meta = new FileMetaData(fileNumber, 0L);
+            } else {
+                meta = new FileMetaData(fileNumber, 0L, filePageSize);
+            }
+            txn.set(key, meta.pack());
+            return fileNumber;
+        });
+
+        if (result == -1L) {
+            throw new FileAlreadyExistsException(name + " already exists.");
+        }
+        return result;
+    }
+
+    private int filePageSize(final String name, final IOContext context) {
+        final int result = pageSizePolicy.pageSize(name, context, pageSize);
+        if (result <= 0 || result > txnSize) {
+            throw new IllegalArgumentException(
+                    pageSizePolicy + " chose a page size of " + result + " for " + name + " but txnSize is " + txnSize);
+        }
+        if (result > FDBUtil.MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException(pageSizePolicy + " chose a page size of " + result + " for " + name
+                    + " but FoundationDB values are limited to " + FDBUtil.MAX_VALUE_SIZE + " bytes");
+        }
+        return result;
+    }
+
     private long getAndIncrement(final TransactionContext txc, final String counterName) {
         final byte[] key = subspace.pack(Tuple.from("_counter", counterName));
         return txc.run(txn -> {
@@ -413,10 +1553,32 @@ public final class FDBDirectory extends Directory {
         });
     }
 
+    /**
+     * @return the identifier of this incarnation of the directory, which
+     *         changes when it is deleted.
+     */
+    private UUID getOrSetEpoch() {
+        final byte[] key = epochKey();
+        return txc.run(txn -> {
+            tracer.trace(txn, "FDBDirectory.getOrSetEpoch(%s)", uuid);
+            final byte[] value = txn.get(key).join();
+            if (value == null) {
+                final UUID result = UUID.randomUUID();
+                txn.set(key, Tuple.from(result).pack());
+                return result;
+            }
+            return Tuple.fromBytes(value).getUUID(0);
+        });
+    }
+
+    private byte[] epochKey() {
+        return subspace.pack(Tuple.from("_epoch"));
+    }
+
     private int getOrSetPageSize(final TransactionContext txc, final Subspace subspace, final int pageSize) {
         final byte[] key = subspace.pack(Tuple.from("_pagesize"));
         return txc.run(txn -> {
-            Utils.trace(txn, "FDBDirectory.getOrSetPageSize(%s)", uuid);
+            tracer.trace(txn, "FDBDirectory.getOrSetPageSize(%s)", uuid);
             final byte[] pageSizeInFDB = txn.get(key).join();
             if (pageSizeInFDB == null) {
                 txn.set(key, FDBUtil.encodeInt(pageSize));
@@ -427,12 +1589,12 @@ public final class FDBDirectory extends Directory {
         });
     }
 
-    private long fileNumber(final TransactionContext txc, final String name) {
-        final FileMetaData meta = meta(txc, name);
-        if (meta == null) {
-            return -1L;
-        }
-        return meta.getFileNumber();
+    /**
+     * @return the metadata of {@code name}, or {@code null} if it does not
+     *         exist.
+     */
+    FileMetaData meta(final String name) {
+        return meta(txc, name);
     }
 
     private FileMetaData meta(final TransactionContext txc, final String name) {
@@ -448,16 +1610,150 @@ public final class FDBDirectory extends Directory {
         return new FileMetaData(Tuple.fromBytes(result));
     }
 
+    /**
+     * Reads the metadata of a file together with the epoch of the directory,
+     * so that the metadata is never used with pages cached in another epoch
+     * after another instance deleted the directory. File numbers restart from
+     * zero in each epoch.
+     */
+    private FileMetaData metaInEpoch(final String name) {
+        final byte[] key = metaKey(name);
+        final byte[] epochKey = epochKey();
+        final byte[][] result = txc.read(txn -> {
+            final CompletableFuture<byte[]> meta = txn.get(key);
+            final CompletableFuture<byte[]> epoch = txn.get(epochKey);
+            return new byte[][] { meta.join(), epoch.join() };
+        });
+
+        if (result[0] == null) {
+            return null;
+        }
+        renewEpoch(result[1] == null ? null : Tuple.fromBytes(result[1]).getUUID(0));
+        return new FileMetaData(Tuple.fromBytes(result[0]));
+    }
+
+    /**
+     * Drops the pages cached in the current epoch if the directory has since
+     * moved to {@code current}, or to no epoch at all because an instance
+     * without caches deleted it.
+     */
+    private synchronized void renewEpoch(final UUID current) {
+        if (epoch.equals(current)) {
+            return;
+        }
+        dropCachedPages();
+        epoch = current == null ? getOrSetEpoch() : current;
+    }
+
+    /**
+     * Drops the pages cached in the current epoch. The pages of the next
+     * epoch are cached under a new {@link PageCache} owner.
+     */
+    private void dropCachedPages() {
+        invalidateCache();
+        cacheOwner = newCacheOwner();
+        if (diskPageCache != null) {
+            diskPageCache.removeAll(epoch);
+        }
+    }
+
     private byte[] metaKey(final String name) {
-        return subspace.pack(metaTuple(name));
+        return FDBUtil.pack(metaPrefix, name);
     }
 
     private Range metaRange() {
         return subspace.range(Tuple.from("_meta"));
     }
 
-    private Tuple metaTuple(final String name) {
-        return Tuple.from("_meta", name);
+    private boolean isPinned(final Transaction txn, final long fileNumber) {
+        return !txn.getRange(subspace.range(Tuple.from("_pinned", fileNumber)), 1).asList().join().isEmpty();
+    }
+
+    /**
+     * Records that {@code dest} references the pages of {@code meta}, the
+     * metadata of {@code name}. The pages of a file that has never been shared
+     * are referenced by its name alone, which is recorded the first time they
+     * are.
+     */
+    private void addReferences(final Transaction txn, final String name, final FileMetaData meta,
+            final String dest) {
+        for (final long fileNumber : meta.getFileNumbers()) {
+            if (!meta.isComposite() && !isShared(txn, fileNumber)) {
+                txn.set(refKey(fileNumber, name), EMPTY_VALUE);
+            }
+            txn.set(refKey(fileNumber, dest), EMPTY_VALUE);
+        }
+    }
+
+    /**
+     * Releases the reference of {@code name} to the pages of
+     * {@code fileNumber}.
+     *
+     * @return {@code true} if no other file references them.
+     */
+    private boolean release(final Transaction txn, final long fileNumber, final String name) {
+        final List<KeyValue> refs = txn.getRange(refRange(fileNumber)).asList().join();
+        txn.clear(refKey(fileNumber, name));
+        for (final KeyValue kv : refs) {
+            if (!name.equals(subspace.unpack(kv.getKey()).getString(2))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if a file references the pages of
+     *         {@code fileNumber}. Pages that have never been shared or renamed
+     *         can only be referenced by {@code name}, the file they were
+     *         written as.
+     */
+    private boolean isReferenced(final Transaction txn, final long fileNumber, final String name) {
+        if (isShared(txn, fileNumber)) {
+            return true;
+        }
+        final FileMetaData meta = meta(txn, name);
+        return meta != null && meta.getFileNumbers().contains(fileNumber);
+    }
+
+    private boolean isShared(final Transaction txn, final long fileNumber) {
+        return !txn.getRange(refRange(fileNumber), 1).asList().join().isEmpty();
+    }
+
+    private byte[] refKey(final long fileNumber, final String name) {
+        return subspace.pack(Tuple.from("_ref", fileNumber, name));
+    }
+
+    private Range refRange(final long fileNumber) {
+        return subspace.range(Tuple.from("_ref", fileNumber));
+    }
+
+    private byte[] reclaimKey(final long fileNumber) {
+        return subspace.pack(Tuple.from("_reclaim", fileNumber));
+    }
+
+    private byte[] pinKey(final long generation, final String holder) {
+        return subspace.pack(Tuple.from("_pin", generation, holder));
+    }
+
+    private Range pinRange(final long generation) {
+        return subspace.range(Tuple.from("_pin", generation));
+    }
+
+    private boolean isCommitPinned(final ReadTransaction txn, final long generation) {
+        return !txn.getRange(pinRange(generation), 1).asList().join().isEmpty();
+    }
+
+    private byte[] pinFileKey(final long generation, final String name) {
+        return subspace.pack(Tuple.from("_pinfile", generation, name));
+    }
+
+    private Range pinFileRange(final long generation) {
+        return subspace.range(Tuple.from("_pinfile", generation));
+    }
+
+    private byte[] pinnedKey(final long fileNumber, final long generation) {
+        return subspace.pack(Tuple.from("_pinned", fileNumber, generation));
     }
 
 }
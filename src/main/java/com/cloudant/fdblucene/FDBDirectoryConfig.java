@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.util.Objects;
+
+/**
+ * Holds the options of an {@link FDBDirectory}. The setters return this
+ * instance so calls can be chained:
+ *
+ * <pre>
+ * FDBDirectory.open(db, subspace, new FDBDirectoryConfig().setPageSize(10_000).setMetrics(stats));
+ * </pre>
+ *
+ * A config is read when the directory is opened; changing it afterwards has
+ * no effect on directories that are already open.
+ */
+public final class FDBDirectoryConfig {
+
+    private int pageSize = FDBUtil.DEFAULT_PAGE_SIZE;
+    private int txnSize = FDBUtil.DEFAULT_TXN_SIZE;
+    private FDBDirectoryMetrics metrics = FDBDirectoryMetrics.NOOP;
+    private int traceSampling = Tracer.DEFAULT_SAMPLING;
+    private PageSizePolicy pageSizePolicy = PageSizePolicy.FIXED;
+    private PageCache pageCache;
+    private long pageCacheQuota;
+    private DiskPageCache diskPageCache;
+    private PageStore pageStore;
+    private int readAheadPages = 8;
+    private int mergeWritePipelineDepth = 4;
+    private IOThrottle mergeThrottle;
+    private boolean mergeBatchPriority;
+    private boolean asyncClose;
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @param pageSize The size of the value stored in FoundationDB. Must be less
+     *                 that {@code txnSize}. This value is ignored if the directory
+     *                 already exists.
+     */
+    public FDBDirectoryConfig setPageSize(final int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public int getTxnSize() {
+        return txnSize;
+    }
+
+    /**
+     * @param txnSize The maximum size of the transaction FDBDirectory will make
+     *                when writing to FoundationDB. Must be at least as large as
+     *                {@code pageSize}.
+     */
+    public FDBDirectoryConfig setTxnSize(final int txnSize) {
+        if (txnSize <= 0) {
+            throw new IllegalArgumentException("txnSize must be positive");
+        }
+        this.txnSize = txnSize;
+        return this;
+    }
+
+    public FDBDirectoryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics receives the I/O events of the directory. Defaults to
+     *                {@link FDBDirectoryMetrics#NOOP}.
+     */
+    public FDBDirectoryConfig setMetrics(final FDBDirectoryMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        return this;
+    }
+
+    public int getTraceSampling() {
+        return traceSampling;
+    }
+
+    /**
+     * Enables FoundationDB transaction logging for one in {@code oneIn}
+     * transactions, chosen at random, so that some tracing can be left on in
+     * production. {@code 0} disables tracing and {@code 1} traces every
+     * transaction. Defaults to {@code 1} if the
+     * {@code FDB_NETWORK_OPTION_TRACE_ENABLE} environment variable is set and
+     * {@code 0} otherwise.
+     */
+    public FDBDirectoryConfig setTraceSampling(final int oneIn) {
+        if (oneIn < 0) {
+            throw new IllegalArgumentException("oneIn cannot be negative");
+        }
+        this.traceSampling = oneIn;
+        return this;
+    }
+
+    public PageSizePolicy getPageSizePolicy() {
+        return pageSizePolicy;
+    }
+
+    /**
+     * @param pageSizePolicy chooses the page size of each new file. Defaults to
+     *                       {@link PageSizePolicy#FIXED}.
+     */
+    public FDBDirectoryConfig setPageSizePolicy(final PageSizePolicy pageSizePolicy) {
+        this.pageSizePolicy = Objects.requireNonNull(pageSizePolicy, "pageSizePolicy");
+        return this;
+    }
+
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    /**
+     * @param pageCache caches the pages read by searches, or {@code null} to
+     *                  disable caching, which is the default. A cache can be
+     *                  shared by several directories.
+     */
+    public FDBDirectoryConfig setPageCache(final PageCache pageCache) {
+        this.pageCache = pageCache;
+        return this;
+    }
+
+    public long getPageCacheQuota() {
+        return pageCacheQuota;
+    }
+
+    /**
+     * @param pageCacheQuota the maximum size, in bytes, of the pages that the
+     *                       directory may hold in a shared page cache, or
+     *                       {@code 0} for no limit, which is the default.
+     */
+    public FDBDirectoryConfig setPageCacheQuota(final long pageCacheQuota) {
+        if (pageCacheQuota < 0) {
+            throw new IllegalArgumentException("pageCacheQuota cannot be negative");
+        }
+        this.pageCacheQuota = pageCacheQuota;
+        return this;
+    }
+
+    public DiskPageCache getDiskPageCache() {
+        return diskPageCache;
+    }
+
+    /**
+     * @param diskPageCache caches the pages read by searches on local disk, in
+     *                      addition to the page cache, or {@code null} to
+     *                      disable it, which is the default. A cache can be
+     *                      shared by several directories.
+     */
+    public FDBDirectoryConfig setDiskPageCache(final DiskPageCache diskPageCache) {
+        this.diskPageCache = diskPageCache;
+        return this;
+    }
+
+    public PageStore getPageStore() {
+        return pageStore;
+    }
+
+    /**
+     * @param pageStore stores the pages of new files by content so that
+     *                  identical pages are stored once, or {@code null} to
+     *                  store them with each file, which is the default. A
+     *                  directory that has written files to a store must
+     *                  always be opened with it.
+     */
+    public FDBDirectoryConfig setPageStore(final PageStore pageStore) {
+        this.pageStore = pageStore;
+        return this;
+    }
+
+    public int getReadAheadPages() {
+        return readAheadPages;
+    }
+
+    /**
+     * @param readAheadPages the number of pages that inputs opened for merging
+     *                       ({@link org.apache.lucene.store.IOContext.Context#MERGE})
+     *                       or to be read once
+     *                       ({@link org.apache.lucene.store.IOContext#READONCE})
+     *                       fetch with each read. Such inputs do not add pages to
+     *                       the page cache, so that merges do not evict the
+     *                       working set of searches. {@code 1} disables read-ahead.
+     *                       Defaults to 8.
+     */
+    public FDBDirectoryConfig setReadAheadPages(final int readAheadPages) {
+        if (readAheadPages < 1) {
+            throw new IllegalArgumentException("readAheadPages must be at least 1");
+        }
+        this.readAheadPages = readAheadPages;
+        return this;
+    }
+
+    public int getMergeWritePipelineDepth() {
+        return mergeWritePipelineDepth;
+    }
+
+    /**
+     * @param mergeWritePipelineDepth the number of transactions an output
+     *                                created for merging may have in flight.
+     *                                Other outputs have one. Defaults to 4.
+     */
+    public FDBDirectoryConfig setMergeWritePipelineDepth(final int mergeWritePipelineDepth) {
+        if (mergeWritePipelineDepth < 1) {
+            throw new IllegalArgumentException("mergeWritePipelineDepth must be at least 1");
+        }
+        this.mergeWritePipelineDepth = mergeWritePipelineDepth;
+        return this;
+    }
+
+    public IOThrottle getMergeThrottle() {
+        return mergeThrottle;
+    }
+
+    /**
+     * @param mergeThrottle limits the rate at which merges read and write, or
+     *                      {@code null} for no limit, which is the default.
+     *                      Share a parent throttle between directories to also
+     *                      limit the whole process.
+     */
+    public FDBDirectoryConfig setMergeThrottle(final IOThrottle mergeThrottle) {
+        this.mergeThrottle = mergeThrottle;
+        return this;
+    }
+
+    public boolean isMergeBatchPriority() {
+        return mergeBatchPriority;
+    }
+
+    /**
+     * @param mergeBatchPriority if {@code true}, merges read and write at batch
+     *                           priority, which FoundationDB throttles before
+     *                           other work when the cluster is saturated.
+     *                           Defaults to {@code false}.
+     */
+    public FDBDirectoryConfig setMergeBatchPriority(final boolean mergeBatchPriority) {
+        this.mergeBatchPriority = mergeBatchPriority;
+        return this;
+    }
+
+    public boolean isAsyncClose() {
+        return asyncClose;
+    }
+
+    /**
+     * @param asyncClose if {@code true}, closing an output returns without
+     *                   waiting for its last transaction to commit. The file
+     *                   is durable once {@link FDBDirectory#sync} has returned
+     *                   for it, and other operations on the file wait for it.
+     *                   Defaults to {@code false}.
+     */
+    public FDBDirectoryConfig setAsyncClose(final boolean asyncClose) {
+        this.asyncClose = asyncClose;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "FDBDirectoryConfig(pageSize=%d,txnSize=%d,metrics=%s,traceSampling=%d,pageSizePolicy=%s,pageCache=%s,pageCacheQuota=%d,diskPageCache=%s,pageStore=%s,readAheadPages=%d,mergeWritePipelineDepth=%d,mergeThrottle=%s,mergeBatchPriority=%b,asyncClose=%b)",
+                pageSize, txnSize, metrics, traceSampling, pageSizePolicy, pageCache, pageCacheQuota, diskPageCache,
+                pageStore, readAheadPages,
+                mergeWritePipelineDepth, mergeThrottle, mergeBatchPriority, asyncClose);
+    }
+
+}
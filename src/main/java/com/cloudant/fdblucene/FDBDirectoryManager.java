@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+
+/**
+ * Serves many small indexes, each an {@link FDBDirectory} stored under its own
+ * name in a common subspace, from a bounded number of open directories.
+ *
+ * <pre>
+ * final FDBDirectory dir = manager.acquire("tenant1");
+ * try {
+ *     // search or index.
+ * } finally {
+ *     manager.release("tenant1");
+ * }
+ * </pre>
+ *
+ * Directories are opened on first use and stay open while acquired. Once
+ * released they are kept idle, ready for reuse, until there are more than
+ * {@link #setMaxIdleDirectories(int)} idle directories or one has been idle
+ * for longer than {@link #setIdleTimeout(long, TimeUnit)}.
+ *
+ * <p>
+ * All directories share the options of one {@link FDBDirectoryConfig}, and so
+ * its page cache, metrics and merge throttle, and also share read versions.
+ * The page cache quota of the config limits each directory, and
+ * {@link #setTenantMergeThrottle(long, long)} gives each directory its own
+ * merge throttle, with the merge throttle of the config as its parent.
+ */
+public final class FDBDirectoryManager implements Closeable {
+
+    private static final class Entry {
+
+        private final FDBDirectory directory;
+        private int references;
+        private long idleSince;
+
+        private Entry(final FDBDirectory directory) {
+            this.directory = directory;
+        }
+
+    }
+
+    private final TransactionContext txc;
+    private final Subspace root;
+    private final FDBDirectoryConfig config;
+    private final ReadVersionCache readVersions;
+    private final Map<String, Entry> active = new HashMap<String, Entry>();
+    private final LinkedHashMap<String, Entry> idle = new LinkedHashMap<String, Entry>();
+    /**
+     * The names of the directories being deleted, which cannot be acquired
+     * until their data is cleared.
+     */
+    private final Set<String> deleting = new HashSet<String>();
+    /**
+     * The number of deletes started, by which {@link #acquire(String)} detects
+     * a delete that started while it opened a directory.
+     */
+    private long deletes;
+    private int maxIdleDirectories = 1_000;
+    private long idleTimeoutNanos = TimeUnit.MINUTES.toNanos(10);
+    private long tenantBytesPerSecond = IOThrottle.UNLIMITED;
+    private long tenantTransactionsPerSecond = IOThrottle.UNLIMITED;
+    private boolean closed;
+
+    /**
+     * @param txc    the {@link TransactionContext} that will be used for all
+     *               transactions. This is typically a
+     *               {@link com.apple.foundationdb.Database}.
+     * @param root   the subspace under which each directory is stored by name.
+     * @param config the options of every directory.
+     */
+    public FDBDirectoryManager(final TransactionContext txc, final Subspace root, final FDBDirectoryConfig config) {
+        this.txc = txc;
+        this.root = root;
+        this.config = config;
+        this.readVersions = new ReadVersionCache(config.getMetrics());
+    }
+
+    /**
+     * @param maxIdleDirectories the number of released directories to keep
+     *                           open. Defaults to 1000.
+     */
+    public synchronized FDBDirectoryManager setMaxIdleDirectories(final int maxIdleDirectories) {
+        if (maxIdleDirectories < 0) {
+            throw new IllegalArgumentException("maxIdleDirectories cannot be negative");
+        }
+        this.maxIdleDirectories = maxIdleDirectories;
+        return this;
+    }
+
+    /**
+     * @param timeout how long a released directory is kept open. Defaults to ten
+     *                minutes.
+     */
+    public synchronized FDBDirectoryManager setIdleTimeout(final long timeout, final TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout cannot be negative");
+        }
+        this.idleTimeoutNanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * Limits the merge I/O of each directory opened from now on.
+     *
+     * @param bytesPerSecond        the maximum rate of bytes, or
+     *                              {@link IOThrottle#UNLIMITED}.
+     * @param transactionsPerSecond the maximum rate of transactions, or
+     *                              {@link IOThrottle#UNLIMITED}.
+     */
+    public synchronized FDBDirectoryManager setTenantMergeThrottle(final long bytesPerSecond,
+            final long transactionsPerSecond) {
+        // Fail now rather than when a directory is opened.
+        new IOThrottle(bytesPerSecond, transactionsPerSecond);
+        this.tenantBytesPerSecond = bytesPerSecond;
+        this.tenantTransactionsPerSecond = transactionsPerSecond;
+        return this;
+    }
+
+    /**
+     * Returns the directory with the given name, opening or creating it if
+     * needed. Each call must be matched by a call to {@link #release(String)}.
+     * The directory must not be closed by the caller. If the directory is
+     * being deleted, this waits until its data is cleared and then creates it
+     * again.
+     *
+     * @throws AlreadyClosedException     if this manager is closed.
+     * @throws ThreadInterruptedException if interrupted while waiting for a
+     *                                    delete.
+     */
+    public FDBDirectory acquire(final String name) throws IOException {
+        evictIdle();
+        while (true) {
+            final long deletesBefore;
+            synchronized (this) {
+                awaitDelete(name);
+                final Entry result = reuse(name);
+                if (result != null) {
+                    return result.directory;
+                }
+                deletesBefore = deletes;
+            }
+
+            // Opening a directory reads from FoundationDB, which we do not want
+            // to do while holding the lock.
+            final FDBDirectory directory = new FDBDirectory(txc, root.get(name), config, readVersions,
+                    newThrottle());
+            Entry result = null;
+            synchronized (this) {
+                try {
+                    // A delete that started meanwhile may clear the directory
+                    // under us, so we open it again once the delete is done.
+                    if (deletes == deletesBefore) {
+                        result = reuse(name);
+                        if (result == null) {
+                            final Entry entry = new Entry(directory);
+                            entry.references = 1;
+                            active.put(name, entry);
+                            return directory;
+                        }
+                    }
+                } catch (final AlreadyClosedException e) {
+                    IOUtils.closeWhileHandlingException(directory);
+                    throw e;
+                }
+            }
+            // Another thread opened it first, or it was deleted.
+            directory.close();
+            if (result != null) {
+                return result.directory;
+            }
+        }
+    }
+
+    /**
+     * Releases a directory returned by {@link #acquire(String)}.
+     *
+     * @throws IllegalStateException if the directory is not acquired.
+     */
+    public void release(final String name) throws IOException {
+        final List<FDBDirectory> evicted = new ArrayList<FDBDirectory>();
+        synchronized (this) {
+            final Entry entry = active.get(name);
+            if (entry == null) {
+                throw new IllegalStateException(name + " is not acquired");
+            }
+            if (--entry.references > 0) {
+                return;
+            }
+            active.remove(name);
+            if (closed) {
+                evicted.add(entry.directory);
+            } else {
+                entry.idleSince = System.nanoTime();
+                idle.put(name, entry);
+                final Iterator<Entry> it = idle.values().iterator();
+                while (idle.size() > maxIdleDirectories && it.hasNext()) {
+                    evicted.add(it.next().directory);
+                    it.remove();
+                }
+            }
+        }
+        close(evicted);
+    }
+
+    /**
+     * Closes the directories that have been idle for longer than the idle
+     * timeout. This is done on every {@link #acquire(String)}.
+     */
+    public void evictIdle() throws IOException {
+        final List<FDBDirectory> evicted = new ArrayList<FDBDirectory>();
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final Iterator<Entry> it = idle.values().iterator();
+            while (it.hasNext()) {
+                final Entry entry = it.next();
+                // Entries are in the order they were released.
+                if (now - entry.idleSince < idleTimeoutNanos) {
+                    break;
+                }
+                evicted.add(entry.directory);
+                it.remove();
+            }
+        }
+        close(evicted);
+    }
+
+    /**
+     * Removes all data of the directory with the given name. Calls to
+     * {@link #acquire(String)} for the same name wait until it is done.
+     *
+     * @throws IllegalStateException      if the directory is acquired.
+     * @throws ThreadInterruptedException if interrupted while waiting for
+     *                                    another delete of the directory.
+     */
+    public void delete(final String name) throws IOException {
+        final Entry entry;
+        synchronized (this) {
+            awaitDelete(name);
+            if (active.containsKey(name)) {
+                throw new IllegalStateException(name + " is acquired");
+            }
+            entry = idle.remove(name);
+            deleting.add(name);
+            deletes++;
+        }
+        try {
+            if (entry != null) {
+                entry.directory.close();
+            }
+            final Subspace subspace = root.get(name);
+            txc.run(txn -> {
+                txn.clear(subspace.range());
+                return null;
+            });
+        } finally {
+            synchronized (this) {
+                deleting.remove(name);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the number of acquired directories.
+     */
+    public synchronized int getActiveDirectories() {
+        return active.size();
+    }
+
+    /**
+     * @return the number of released directories that are still open.
+     */
+    public synchronized int getIdleDirectories() {
+        return idle.size();
+    }
+
+    /**
+     * Closes all idle directories. Acquired directories are closed when they are
+     * released.
+     */
+    @Override
+    public void close() throws IOException {
+        final List<FDBDirectory> evicted;
+        synchronized (this) {
+            closed = true;
+            evicted = new ArrayList<FDBDirectory>(idle.size());
+            for (final Entry entry : idle.values()) {
+                evicted.add(entry.directory);
+            }
+            idle.clear();
+        }
+        close(evicted);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("FDBDirectoryManager(root=%s,active=%d,idle=%d)", root, active.size(), idle.size());
+    }
+
+    /**
+     * @return the open directory with the given name, with a new reference, or
+     *         {@code null}.
+     */
+    private Entry reuse(final String name) {
+        if (closed) {
+            throw new AlreadyClosedException(this + " is closed");
+        }
+        Entry result = active.get(name);
+        if (result == null) {
+            result = idle.remove(name);
+            if (result == null) {
+                return null;
+            }
+            active.put(name, result);
+        }
+        result.references++;
+        return result;
+    }
+
+    /**
+     * Waits until the directory with the given name is not being deleted. The
+     * caller must hold the lock.
+     */
+    private void awaitDelete(final String name) {
+        while (deleting.contains(name)) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                throw new ThreadInterruptedException(e);
+            }
+        }
+    }
+
+    private synchronized IOThrottle newThrottle() {
+        if (tenantBytesPerSecond == IOThrottle.UNLIMITED && tenantTransactionsPerSecond == IOThrottle.UNLIMITED) {
+            return config.getMergeThrottle();
+        }
+        return new IOThrottle(tenantBytesPerSecond, tenantTransactionsPerSecond, config.getMergeThrottle());
+    }
+
+    private static void close(final List<FDBDirectory> directories) throws IOException {
+        IOUtils.close(directories);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+/**
+ * Receives I/O events from an {@link FDBDirectory} and the inputs and outputs
+ * it creates. Implementations must be thread-safe and should return quickly as
+ * they are called on the read and write paths.
+ *
+ * <p>
+ * {@link FDBDirectoryStats} keeps the events in memory. To publish them to a
+ * metrics library such as Micrometer or Dropwizard Metrics, implement this
+ * interface and forward each event to the corresponding counter or timer,
+ * tagged with the file extension or operation name where one is given.
+ *
+ * <p>
+ * File extensions are those of {@link org.apache.lucene.index.IndexFileNames},
+ * without the leading dot, or the empty string for files without one. Reads
+ * of files inside a compound file are attributed to the extension of the inner
+ * file.
+ */
+public interface FDBDirectoryMetrics {
+
+    /**
+     * Discards all events. This is the default for {@link FDBDirectoryConfig}.
+     */
+    FDBDirectoryMetrics NOOP = new FDBDirectoryMetrics() {
+    };
+
+    /**
+     * Called after a page has been read.
+     *
+     * @param extension the extension of the file the page belongs to.
+     * @param bytes     the size of the page.
+     * @param nanos     the time taken to read the page.
+     */
+    default void pageRead(final String extension, final int bytes, final long nanos) {
+    }
+
+    /**
+     * Called when a page is found in the {@link PageCache}.
+     *
+     * @param extension the extension of the file the page belongs to.
+     * @param bytes     the size of the page.
+     */
+    default void pageCacheHit(final String extension, final int bytes) {
+    }
+
+    /**
+     * Called after a buffer of pages has been written to FoundationDB.
+     *
+     * @param extension the extension of the file the pages belong to.
+     * @param pages     the number of pages written.
+     * @param bytes     the total size of the pages.
+     * @param nanos     the time taken to write and commit the pages.
+     */
+    default void pagesWritten(final String extension, final int pages, final int bytes, final long nanos) {
+    }
+
+    /**
+     * Called when merge I/O was delayed by an {@link IOThrottle}.
+     *
+     * @param extension the extension of the file being read or written.
+     * @param nanos     the time the transaction was delayed by.
+     */
+    default void throttled(final String extension, final long nanos) {
+    }
+
+    /**
+     * Called after a metadata operation of the directory, e.g.
+     * {@code "listAll"} or {@code "rename"}.
+     *
+     * @param operation the name of the {@link FDBDirectory} method.
+     * @param nanos     the time taken by the operation.
+     */
+    default void metadataOperation(final String operation, final long nanos) {
+    }
+
+    /**
+     * Called after a transaction has completed, successfully or not.
+     *
+     * @param attempts the number of times the transaction was attempted. Any
+     *                 attempt after the first is a retry.
+     * @param nanos    the time taken by all attempts.
+     */
+    default void transaction(final int attempts, final long nanos) {
+    }
+
+    /**
+     * Called whenever a transaction needs a read version.
+     *
+     * @param cached {@code true} if a recent read version was reused,
+     *               {@code false} if one was requested from the cluster.
+     */
+    default void readVersion(final boolean cached) {
+    }
+
+}
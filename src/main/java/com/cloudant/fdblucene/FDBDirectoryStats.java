@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An implementation of {@link FDBDirectoryMetrics} that accumulates counters
+ * and latency histograms in memory. An instance may be shared by several
+ * directories to aggregate their I/O.
+ */
+public final class FDBDirectoryStats implements FDBDirectoryMetrics {
+
+    /**
+     * A histogram of latencies with power-of-two buckets, giving percentiles
+     * within a factor of two of the recorded value.
+     */
+    public static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0L);
+
+        void record(final long nanos) {
+            final long value = Math.max(1L, nanos);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * @return the number of recorded values.
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return the sum of all recorded values, in nanoseconds.
+         */
+        public long getTotalNanos() {
+            return sum.sum();
+        }
+
+        /**
+         * @return the largest recorded value, in nanoseconds.
+         */
+        public long getMaxNanos() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile a value between 0 and 100.
+         * @return an upper bound of the given percentile, in nanoseconds, or
+         *         {@code 0} if nothing has been recorded.
+         */
+        public long getPercentileNanos(final double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            final long total = getCount();
+            if (total == 0L) {
+                return 0L;
+            }
+            final long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100));
+            long seen = 0L;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return i == 63 ? Long.MAX_VALUE : Math.min((2L << i) - 1, getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Histogram(count=%d,p50=%d,p99=%d,max=%d)", getCount(), getPercentileNanos(50),
+                    getPercentileNanos(99), getMaxNanos());
+        }
+
+    }
+
+    /**
+     * The I/O of the files with one extension.
+     */
+    public static final class FileStats {
+
+        private final LongAdder pagesRead = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder pagesWritten = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final Histogram readLatency = new Histogram();
+        private final Histogram flushLatency = new Histogram();
+
+        public long getPagesRead() {
+            return pagesRead.sum();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        /**
+         * @return the number of pages found in the page cache.
+         */
+        public long getCacheHits() {
+            return cacheHits.sum();
+        }
+
+        public long getPagesWritten() {
+            return pagesWritten.sum();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        /**
+         * @return the latency of page reads.
+         */
+        public Histogram getReadLatency() {
+            return readLatency;
+        }
+
+        /**
+         * @return the latency of writing a buffer of pages.
+         */
+        public Histogram getFlushLatency() {
+            return flushLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("FileStats(pagesRead=%d,bytesRead=%d,cacheHits=%d,pagesWritten=%d,bytesWritten=%d)",
+                    getPagesRead(), getBytesRead(), getCacheHits(), getPagesWritten(), getBytesWritten());
+        }
+
+    }
+
+    private final Map<String, FileStats> files = new ConcurrentHashMap<String, FileStats>();
+    private final Map<String, Histogram> metadata = new ConcurrentHashMap<String, Histogram>();
+    private final LongAdder transactions = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final Histogram transactionLatency = new Histogram();
+    private final LongAdder readVersions = new LongAdder();
+    private final LongAdder cachedReadVersions = new LongAdder();
+    private final Histogram throttleDelay = new Histogram();
+
+    @Override
+    public void pageRead(final String extension, final int bytes, final long nanos) {
+        final FileStats stats = fileStats(extension);
+        stats.pagesRead.increment();
+        stats.bytesRead.add(bytes);
+        stats.readLatency.record(nanos);
+    }
+
+    @Override
+    public void pageCacheHit(final String extension, final int bytes) {
+        fileStats(extension).cacheHits.increment();
+    }
+
+    @Override
+    public void pagesWritten(final String extension, final int pages, final int bytes, final long nanos) {
+        final FileStats stats = fileStats(extension);
+        stats.pagesWritten.add(pages);
+        stats.bytesWritten.add(bytes);
+        stats.flushLatency.record(nanos);
+    }
+
+    @Override
+    public void throttled(final String extension, final long nanos) {
+        throttleDelay.record(nanos);
+    }
+
+    @Override
+    public void metadataOperation(final String operation, final long nanos) {
+        Histogram histogram = metadata.get(operation);
+        if (histogram == null) {
+            histogram = metadata.computeIfAbsent(operation, k -> new Histogram());
+        }
+        histogram.record(nanos);
+    }
+
+    @Override
+    public void transaction(final int attempts, final long nanos) {
+        transactions.increment();
+        retries.add(attempts - 1);
+        transactionLatency.record(nanos);
+    }
+
+    @Override
+    public void readVersion(final boolean cached) {
+        if (cached) {
+            cachedReadVersions.increment();
+        } else {
+            readVersions.increment();
+        }
+    }
+
+    /**
+     * @return the I/O of each file extension seen so far.
+     */
+    public SortedMap<String, FileStats> getFileStats() {
+        return Collections.unmodifiableSortedMap(new TreeMap<String, FileStats>(files));
+    }
+
+    /**
+     * @return the latency of each metadata operation seen so far.
+     */
+    public SortedMap<String, Histogram> getMetadataLatency() {
+        return Collections.unmodifiableSortedMap(new TreeMap<String, Histogram>(metadata));
+    }
+
+    public long getPagesRead() {
+        long result = 0L;
+        for (final FileStats stats : files.values()) {
+            result += stats.getPagesRead();
+        }
+        return result;
+    }
+
+    public long getBytesRead() {
+        long result = 0L;
+        for (final FileStats stats : files.values()) {
+            result += stats.getBytesRead();
+        }
+        return result;
+    }
+
+    public long getCacheHits() {
+        long result = 0L;
+        for (final FileStats stats : files.values()) {
+            result += stats.getCacheHits();
+        }
+        return result;
+    }
+
+    public long getPagesWritten() {
+        long result = 0L;
+        for (final FileStats stats : files.values()) {
+            result += stats.getPagesWritten();
+        }
+        return result;
+    }
+
+    public long getBytesWritten() {
+        long result = 0L;
+        for (final FileStats stats : files.values()) {
+            result += stats.getBytesWritten();
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of transactions, not counting retries.
+     */
+    public long getTransactions() {
+        return transactions.sum();
+    }
+
+    /**
+     * @return the number of times a transaction was retried.
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return the latency of transactions, including retries.
+     */
+    public Histogram getTransactionLatency() {
+        return transactionLatency;
+    }
+
+    /**
+     * @return the number of read versions requested from the cluster.
+     */
+    public long getReadVersions() {
+        return readVersions.sum();
+    }
+
+    /**
+     * @return the number of times a cached read version was reused.
+     */
+    public long getCachedReadVersions() {
+        return cachedReadVersions.sum();
+    }
+
+    /**
+     * @return the delays imposed on merge I/O by an {@link IOThrottle}.
+     */
+    public Histogram getThrottleDelay() {
+        return throttleDelay;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "FDBDirectoryStats(pagesRead=%d,bytesRead=%d,cacheHits=%d,pagesWritten=%d,bytesWritten=%d,transactions=%d,retries=%d,readVersions=%d,cachedReadVersions=%d,throttled=%d)",
+                getPagesRead(), getBytesRead(), getCacheHits(), getPagesWritten(), getBytesWritten(), getTransactions(),
+                getRetries(), getReadVersions(), getCachedReadVersions(), throttleDelay.getCount());
+    }
+
+    private FileStats fileStats(final String extension) {
+        final FileStats result = files.get(extension);
+        if (result != null) {
+            return result;
+        }
+        return files.computeIfAbsent(extension, k -> new FileStats());
+    }
+
+}
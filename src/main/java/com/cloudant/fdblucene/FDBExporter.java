@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Exports the latest commit of an {@link FDBDirectory} to a directory on local
+ * disk, which can then be opened with an
+ * {@link org.apache.lucene.store.FSDirectory} or imported again with
+ * {@link FDBImporter}:
+ *
+ * <pre>
+ * new FDBExporter(dir, Paths.get("/var/backups/index"), executor).exportIndex();
+ * </pre>
+ *
+ * The commit is pinned for the duration of the export under a pin of the
+ * exporter's own, so the writer may keep committing and deleting files
+ * meanwhile, and other holders of the same commit may unpin it. The pages of
+ * all its files are read with concurrent range reads at batch priority, so
+ * that the export yields to searches, and written in place to the local
+ * files. The {@code segments_N}
+ * file is written last and published by renaming, so the local copy only
+ * becomes a valid index once it is complete.
+ *
+ * <p>
+ * The local directory must be empty or hold an earlier export of the same
+ * index; files that it already has with the right length are not exported
+ * again, so repeated exports only copy new segments. Files are written under
+ * a {@code pending_} name until complete, and an interrupted export may leave
+ * some behind, which the next export overwrites.
+ */
+public final class FDBExporter {
+
+    /**
+     * Prefixes the names of files while they are exported, as
+     * {@code pending_segments_N} does for commits.
+     */
+    private static final String PENDING_PREFIX = IndexFileNames.PENDING_SEGMENTS + "_";
+
+    private final FDBDirectory source;
+    private final Path path;
+    private final Executor executor;
+    private final IOThrottle throttle;
+
+    /**
+     * @param source   the directory to export.
+     * @param path     the local directory to export it to.
+     * @param executor runs the reads of the export. Its number of threads
+     *                 bounds the reads in flight, each of which holds up to
+     *                 {@code txnSize} bytes.
+     */
+    public FDBExporter(final FDBDirectory source, final Path path, final Executor executor) {
+        this(source, path, executor, null);
+    }
+
+    /**
+     * @param source   the directory to export.
+     * @param path     the local directory to export it to.
+     * @param executor runs the reads of the export. Its number of threads
+     *                 bounds the reads in flight, each of which holds up to
+     *                 {@code txnSize} bytes.
+     * @param throttle limits the rate of the reads, or {@code null}.
+     */
+    public FDBExporter(final FDBDirectory source, final Path path, final Executor executor,
+            final IOThrottle throttle) {
+        this.source = source;
+        this.path = path;
+        this.executor = executor;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Exports the latest commit of the directory.
+     *
+     * @return the generation of the exported commit.
+     * @throws IndexNotFoundException if the directory has no commit.
+     */
+    public long exportIndex() throws IOException {
+        Files.createDirectories(path);
+        // A pin of our own, which nobody else can release during the copy.
+        final String holder = UUID.randomUUID().toString();
+        while (true) {
+            final long generation = SegmentInfos.getLastCommitGeneration(source);
+            if (generation == -1) {
+                throw new IndexNotFoundException("no segments* file found in " + source);
+            }
+            final IndexCommit commit;
+            try {
+                commit = source.pinCommit(generation, holder);
+            } catch (final FileNotFoundException | NoSuchFileException e) {
+                // A newer commit replaced this one.
+                continue;
+            }
+            try {
+                export(commit);
+            } finally {
+                source.unpinCommit(generation, holder);
+            }
+            return generation;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FDBExporter(source=%s,path=%s)", source, path);
+    }
+
+    private void export(final IndexCommit commit) throws IOException {
+        final FDBPinnedCommit.View view = (FDBPinnedCommit.View) commit.getDirectory();
+        final String segmentsFileName = commit.getSegmentsFileName();
+        final Path segmentsFile = path.resolve(segmentsFileName);
+        if (Files.exists(segmentsFile) && Files.size(segmentsFile) == view.fileLength(segmentsFileName)) {
+            // Already exported.
+            return;
+        }
+
+        final List<String> files = new ArrayList<String>();
+        for (final String name : commit.getFileNames()) {
+            if (name.equals(segmentsFileName)) {
+                continue;
+            }
+            // Files are never rewritten, so one of the same name and length is
+            // left over from an earlier export.
+            final Path file = path.resolve(name);
+            if (!Files.exists(file) || Files.size(file) != view.fileLength(name)) {
+                files.add(name);
+            }
+        }
+        export(view, files);
+        IOUtils.fsync(path, true);
+        export(view, Collections.singletonList(segmentsFileName));
+        IOUtils.fsync(path, true);
+    }
+
+    /**
+     * Exports the files of {@code view}, all files at once. Each file is
+     * written under a pending name and renamed once it is complete, so an
+     * interrupted export never leaves a partial file under its real name.
+     */
+    private void export(final FDBPinnedCommit.View view, final List<String> files) throws IOException {
+        final List<FileChannel> channels = new ArrayList<FileChannel>(files.size());
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(files.size());
+        IOException failure = null;
+        try {
+            for (final String name : files) {
+                final FDBDirectory.FileMetaData meta = view.meta(name);
+                final Path pendingFile = path.resolve(PENDING_PREFIX + name);
+                final FileChannel channel = FileChannel.open(pendingFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                channels.add(channel);
+                futures.add(source.exportFile(name, meta, channel, throttle, executor).thenRun(() -> {
+                    try {
+                        channel.force(true);
+                        Files.move(pendingFile, path.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+                    } catch (final IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }));
+            }
+        } catch (final IOException | RuntimeException e) {
+            // Wait for the files already submitted, which write to channels.
+            failure = e instanceof IOException ? (IOException) e : new IOException("failed to export to " + path, e);
+        }
+        for (final CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (final CompletionException e) {
+                final IOException cause = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        try {
+            IOUtils.close(channels);
+        } catch (final IOException e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accounts for the pages that {@link FDBIndexInput} reads from FoundationDB
+ * on the current thread while the scope is open, typically for the duration
+ * of a search:
+ *
+ * <pre>
+ * try (final FDBIOScope scope = FDBIOScope.open()) {
+ *     topDocs = searcher.search(query, 10);
+ *     if (slow) {
+ *         logger.info(query + " " + scope);
+ *     }
+ * }
+ * </pre>
+ *
+ * Scopes nest: pages read inside an inner scope are also counted by the scopes
+ * that enclose it. An {@link org.apache.lucene.search.IndexSearcher} that
+ * searches segments concurrently should be given an executor wrapped with
+ * {@link #wrap(Executor)} so that reads made by its worker threads are
+ * counted too.
+ */
+public final class FDBIOScope implements Closeable {
+
+    /**
+     * The pages read from one file.
+     */
+    public static final class FileIO {
+
+        private final LongAdder pagesRead = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder readNanos = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+
+        public long getPagesRead() {
+            return pagesRead.sum();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        /**
+         * @return the time spent waiting for FoundationDB, in nanoseconds.
+         */
+        public long getReadNanos() {
+            return readNanos.sum();
+        }
+
+        /**
+         * @return the number of pages found in the page cache.
+         */
+        public long getCacheHits() {
+            return cacheHits.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("FileIO(pagesRead=%d,bytesRead=%d,readMillis=%d,cacheHits=%d)", getPagesRead(),
+                    getBytesRead(), TimeUnit.NANOSECONDS.toMillis(getReadNanos()), getCacheHits());
+        }
+
+    }
+
+    private static final ThreadLocal<FDBIOScope> CURRENT = new ThreadLocal<FDBIOScope>();
+
+    /**
+     * Opens a scope on the current thread. It must be closed on the same
+     * thread, after any scope opened within it.
+     */
+    public static FDBIOScope open() {
+        final FDBIOScope result = new FDBIOScope(CURRENT.get());
+        CURRENT.set(result);
+        return result;
+    }
+
+    /**
+     * @return the innermost scope of the current thread, or {@code null}.
+     */
+    public static FDBIOScope current() {
+        return CURRENT.get();
+    }
+
+    static void pageRead(final String fileName, final int bytes, final long nanos) {
+        for (FDBIOScope scope = CURRENT.get(); scope != null; scope = scope.parent) {
+            scope.record(fileName, bytes, nanos);
+        }
+    }
+
+    static void pageCacheHit(final String fileName) {
+        for (FDBIOScope scope = CURRENT.get(); scope != null; scope = scope.parent) {
+            scope.file(fileName).cacheHits.increment();
+            scope.cacheHits.increment();
+        }
+    }
+
+    private final FDBIOScope parent;
+    private final Map<String, FileIO> files = new ConcurrentHashMap<String, FileIO>();
+    private final LongAdder pagesRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private boolean closed;
+
+    private FDBIOScope(final FDBIOScope parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Returns an executor that runs each task with this scope as the current
+     * scope of the thread that runs it.
+     */
+    public Executor wrap(final Executor executor) {
+        return task -> {
+            executor.execute(() -> {
+                final FDBIOScope previous = CURRENT.get();
+                CURRENT.set(this);
+                try {
+                    task.run();
+                } finally {
+                    restore(previous);
+                }
+            });
+        };
+    }
+
+    public long getPagesRead() {
+        return pagesRead.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * @return the time spent waiting for FoundationDB, in nanoseconds, summed
+     *         over all threads.
+     */
+    public long getReadNanos() {
+        return readNanos.sum();
+    }
+
+    /**
+     * @return the number of pages found in the page cache instead of being
+     *         read.
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return the pages read from each file, keyed by file name. Files inside a
+     *         compound file are listed by their own name.
+     */
+    public SortedMap<String, FileIO> getFiles() {
+        return Collections.unmodifiableSortedMap(new TreeMap<String, FileIO>(files));
+    }
+
+    /**
+     * Restores the scope that was current when this one was opened.
+     *
+     * @throws IllegalStateException if this is not the innermost scope of the
+     *                               current thread.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        if (CURRENT.get() != this) {
+            throw new IllegalStateException(this + " is not the current scope of this thread");
+        }
+        closed = true;
+        restore(parent);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        result.append(String.format("FDBIOScope(pagesRead=%d,bytesRead=%d,readMillis=%d,cacheHits=%d,files={",
+                getPagesRead(), getBytesRead(), TimeUnit.NANOSECONDS.toMillis(getReadNanos()), getCacheHits()));
+        boolean first = true;
+        for (final Map.Entry<String, FileIO> e : getFiles().entrySet()) {
+            if (!first) {
+                result.append(',');
+            }
+            first = false;
+            result.append(e.getKey()).append('=').append(e.getValue().getPagesRead());
+        }
+        return result.append("})").toString();
+    }
+
+    private void record(final String fileName, final int bytes, final long nanos) {
+        pagesRead.increment();
+        bytesRead.add(bytes);
+        readNanos.add(nanos);
+        final FileIO file = file(fileName);
+        file.pagesRead.increment();
+        file.bytesRead.add(bytes);
+        file.readNanos.add(nanos);
+    }
+
+    private FileIO file(final String fileName) {
+        final FileIO result = files.get(fileName);
+        if (result != null) {
+            return result;
+        }
+        return files.computeIfAbsent(fileName, k -> new FileIO());
+    }
+
+    private static void restore(final FDBIOScope scope) {
+        if (scope == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(scope);
+        }
+    }
+
+}
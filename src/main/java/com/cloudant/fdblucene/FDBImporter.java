@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Imports the latest commit of an index on local disk into an
+ * {@link FDBDirectory}, writing the pages of all its files with concurrent
+ * transactions rather than one file and one transaction at a time:
+ *
+ * <pre>
+ * new FDBImporter(Paths.get("/var/lib/index"), dir, executor).importIndex();
+ * </pre>
+ *
+ * The files are memory-mapped and their checksums verified before they are
+ * written, and each imported copy is read back in full and its checksum
+ * verified again once written. The {@code segments_N} file is published last, by renaming, so the
+ * index only becomes visible once it is complete. An interrupted import is
+ * resumed by importing again into the same directory: complete files are
+ * skipped and partial files only have their missing chunks written.
+ *
+ * <p>
+ * The directory must be empty or hold an interrupted import of the same
+ * index, and must not be written to during the import.
+ */
+public final class FDBImporter {
+
+    private final Path path;
+    private final FDBDirectory target;
+    private final Executor executor;
+
+    /**
+     * @param path     the directory of the index to import.
+     * @param target   the directory to import it into.
+     * @param executor runs the transactions of the import. Its number of
+     *                 threads bounds the transactions in flight, each of which
+     *                 holds up to {@code txnSize} bytes.
+     */
+    public FDBImporter(final Path path, final FDBDirectory target, final Executor executor) {
+        this.path = path;
+        this.target = target;
+        this.executor = executor;
+    }
+
+    /**
+     * Imports the latest commit of the index.
+     *
+     * @return the generation of the imported commit.
+     * @throws CorruptIndexException if the checksum of a file does not match.
+     */
+    public long importIndex() throws IOException {
+        try (final Directory source = new MMapDirectory(path)) {
+            final SegmentInfos infos = SegmentInfos.readLatestCommit(source);
+            final String segmentsFileName = infos.getSegmentsFileName();
+            if (Arrays.asList(target.listAll()).contains(segmentsFileName)) {
+                // Already imported.
+                return infos.getGeneration();
+            }
+            final List<String> files = new ArrayList<String>(infos.files(false));
+            final List<IndexInput> inputs = new ArrayList<IndexInput>(files.size());
+            try {
+                for (final String name : files) {
+                    inputs.add(source.openInput(name, IOContext.READONCE));
+                }
+                importFiles(files, inputs);
+            } finally {
+                IOUtils.close(inputs);
+            }
+
+            final String pendingFileName = IndexFileNames.fileNameFromGeneration(IndexFileNames.PENDING_SEGMENTS, "",
+                    infos.getGeneration());
+            try {
+                target.deleteFile(pendingFileName);
+            } catch (final FileNotFoundException | NoSuchFileException e) {
+                // No earlier attempt.
+            }
+            target.copyFrom(source, segmentsFileName, pendingFileName, IOContext.READONCE);
+            target.sync(Collections.singleton(pendingFileName));
+            target.rename(pendingFileName, segmentsFileName);
+            target.syncMetaData();
+            return infos.getGeneration();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FDBImporter(path=%s,target=%s)", path, target);
+    }
+
+    /**
+     * Verifies the checksum of each file, writes its chunks and then verifies
+     * the imported copy, all files at once.
+     */
+    private void importFiles(final List<String> files, final List<IndexInput> inputs) throws IOException {
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(files.size());
+        IOException failure = null;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                final String name = files.get(i);
+                final IndexInput input = inputs.get(i);
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        CodecUtil.checksumEntireFile(input.clone());
+                        return target.importFile(name, input, executor);
+                    } catch (final IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor).thenCompose(future -> future).thenRunAsync(() -> {
+                    try {
+                        verify(name, input);
+                    } catch (final IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+            }
+        } catch (final RuntimeException e) {
+            // Wait for the files already submitted, which read from inputs.
+            failure = new IOException("failed to import " + path, e);
+        }
+        for (final CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (final CompletionException e) {
+                final IOException cause = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Checks that the whole imported copy of {@code name} matches its
+     * checksum, and that the checksum is that of the original.
+     */
+    private void verify(final String name, final IndexInput input) throws IOException {
+        try (final IndexInput in = target.openInput(name, IOContext.READONCE)) {
+            if (in.length() != input.length()
+                    || CodecUtil.checksumEntireFile(in) != CodecUtil.retrieveChecksum(input.clone())) {
+                throw new CorruptIndexException("imported file does not match " + path.resolve(name), in);
+            }
+        }
+    }
+
+}
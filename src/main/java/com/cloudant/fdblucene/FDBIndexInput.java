@@ -15,70 +15,248 @@ package com.cloudant.fdblucene;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicLong;
-import org.apache.lucene.store.BufferedIndexInput;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
 import com.apple.foundationdb.TransactionContext;
 import com.apple.foundationdb.subspace.Subspace;
 
 /**
  * A concrete implementation of {@link IndexInput} that reads {@code pages} from FoundationDB.
+ *
+ * <p>
+ * Reads are served directly from the current page, which is never modified once read and may be
+ * shared with the page cache and with clones. Unlike a {@code BufferedIndexInput}, clones and slices
+ * have no buffer of their own.
+ *
+ * <p>
+ * The positional reads of {@link RandomAccessInput}, used by doc values and norms, resolve the page
+ * directly and do not move the file pointer.
  */
-public class FDBIndexInput extends BufferedIndexInput {
+public class FDBIndexInput extends IndexInput implements RandomAccessInput {
+
+  private static final String COMPOUND_FILE_EXTENSION = "cfs";
+  /**
+   * The number of page hashes of a file in a {@link PageStore} read at a time.
+   */
+  private static final int HASH_CHUNK = 128;
 
   private final TransactionContext txc;
   private final Subspace subspace;
+  /**
+   * The key prefix of {@code subspace}, to which page numbers are appended.
+   */
+  private final byte[] prefix;
   private final String name;
   private final long off;
   private final long end;
   private final int pageSize;
+  private final FDBDirectoryMetrics metrics;
+  private final String fileName;
+  private final String extension;
+  private final Tracer tracer;
+  private final PageCache cache;
+  private final long cacheOwner;
+  private final long fileNumber;
+  private final int readAhead;
+  private final IOThrottle throttle;
+  private final ReadVersionCache sharedReadVersions;
+  private final DiskPageCache.CachedFile diskFile;
+  private final PageStore store;
+  /**
+   * The hashes of the pages read so far from {@code store}, by chunk, shared
+   * with slices and clones.
+   */
+  private final Map<Long, byte[][]> hashes;
   private ReadVersionCache readVersionCache;
+  private long readAheadFirst = -1L;
+  private byte[][] readAheadPages;
+  private long pos;
+  private long currentPageNumber = -1L;
+  private byte[] currentPage;
+  /**
+   * The position in the file of the first byte of {@code currentPage}, and the position after the
+   * last byte of it that this input may read, so that reads within the page need no division.
+   */
+  private long currentPageStart;
+  private long currentPageLimit;
 
   public FDBIndexInput(final String resourceDescription, final TransactionContext txc,
       final Subspace subspace, final String name, final long off, final long length,
       final int pageSize) {
-    super(resourceDescription, pageSize);
+    this(resourceDescription, txc, subspace, name, off, length, pageSize,
+        FDBDirectoryMetrics.NOOP, Tracer.DEFAULT, name, null, 0L, -1L, 0, null, null, null, null,
+        null);
+  }
+
+  /**
+   * @param cache      the page cache, or {@code null}.
+   * @param cacheOwner scopes the entries of this file in {@code cache}.
+   * @param fileNumber the number of this file.
+   * @param readAhead  if positive, the input streams: it reads this many pages
+   *                   at a time and does not add them to {@code cache}.
+   * @param throttle   limits the rate of reads, or {@code null}.
+   * @param sharedReadVersions a cache of read versions shared with other
+   *                   inputs and outputs, or {@code null}.
+   * @param diskFile   the copy of this file in a {@link DiskPageCache}, or
+   *                   {@code null}.
+   * @param store      the store holding the content of the pages, whose keys
+   *                   in {@code subspace} hold their hash, or {@code null}.
+   *                   Pages of a store are cached in {@code cache} by content.
+   */
+  FDBIndexInput(final String resourceDescription, final TransactionContext txc,
+      final Subspace subspace, final String name, final long off, final long length,
+      final int pageSize, final FDBDirectoryMetrics metrics, final Tracer tracer,
+      final PageCache cache, final long cacheOwner, final long fileNumber, final int readAhead,
+      final IOThrottle throttle, final ReadVersionCache sharedReadVersions,
+      final DiskPageCache.CachedFile diskFile, final PageStore store) {
+    this(resourceDescription, txc, subspace, name, off, length, pageSize, metrics, tracer, name,
+        cache, cacheOwner, fileNumber, readAhead, throttle, sharedReadVersions, diskFile, store,
+        store == null ? null : new ConcurrentHashMap<Long, byte[][]>());
+  }
+
+  private FDBIndexInput(final String resourceDescription, final TransactionContext txc,
+      final Subspace subspace, final String name, final long off, final long length,
+      final int pageSize, final FDBDirectoryMetrics metrics, final Tracer tracer,
+      final String fileName, final PageCache cache, final long cacheOwner, final long fileNumber,
+      final int readAhead, final IOThrottle throttle, final ReadVersionCache sharedReadVersions,
+      final DiskPageCache.CachedFile diskFile, final PageStore store,
+      final Map<Long, byte[][]> hashes) {
+    super(resourceDescription);
     this.txc = txc;
     this.subspace = subspace;
+    this.prefix = subspace.getKey();
     this.name = name;
     this.off = off;
     this.end = off + length;
+    this.pos = off;
     this.pageSize = pageSize;
-    this.readVersionCache = new ReadVersionCache();
+    this.metrics = metrics;
+    this.fileName = fileName;
+    this.extension = FDBUtil.extension(fileName);
+    this.tracer = tracer;
+    this.cache = cache;
+    this.cacheOwner = cacheOwner;
+    this.fileNumber = fileNumber;
+    this.readAhead = readAhead;
+    this.throttle = throttle;
+    this.sharedReadVersions = sharedReadVersions;
+    this.readVersionCache = new ReadVersionCache(metrics, sharedReadVersions);
+    this.diskFile = diskFile;
+    this.store = store;
+    this.hashes = hashes;
   }
 
   @Override
-  protected void readInternal(final byte[] b, final int offset, final int len) throws IOException {
-    long pos = getFilePointer() + off;
-
-    if (pos + len > end) {
+  public byte readByte() throws IOException {
+    final long p = pos;
+    if (p >= currentPageStart && p < currentPageLimit) {
+      pos = p + 1;
+      return currentPage[(int) (p - currentPageStart)];
+    }
+    if (p >= end) {
       throw new EOFException("read past EOF: " + this);
     }
+    final byte[] page = page(p);
+    pos = p + 1;
+    return page[(int) (p - currentPageStart)];
+  }
 
-    int readLength = len;
+  @Override
+  public void readBytes(final byte[] b, final int offset, final int len) throws IOException {
+    if (len > end - pos) {
+      throw new EOFException("read past EOF: " + this);
+    }
     int copied = 0;
-    long lastPageNumber = -1L;
-    byte[] page = null;
-    while (readLength > 0) {
-      final long pageNumber = FDBUtil.posToPage(pos, pageSize);
-      if (lastPageNumber != pageNumber) {
-        page = loadPage(pageNumber);
-        lastPageNumber = pageNumber;
-      }
-      final int toCopy = Math.min(page.length - FDBUtil.posToOffset(pos, pageSize), readLength);
-      System.arraycopy(page, FDBUtil.posToOffset(pos, pageSize), b, offset + copied, toCopy);
+    while (copied < len) {
+      final byte[] page = page(pos);
+      final int pageOffset = (int) (pos - currentPageStart);
+      final int toCopy = Math.min(page.length - pageOffset, len - copied);
+      System.arraycopy(page, pageOffset, b, offset + copied, toCopy);
       pos += toCopy;
       copied += toCopy;
-      readLength -= toCopy;
     }
-    assert readLength == 0;
   }
 
   @Override
-  protected void seekInternal(final long pos) throws IOException {
-    if (pos > length()) {
-      throw new EOFException("read past EOF: pos=" + pos + " vs length=" + length() + ": " + this);
+  public short readShort() throws IOException {
+    if (remainingInPage() >= Short.BYTES) {
+      final byte[] page = currentPage;
+      final int pageOffset = (int) (pos - currentPageStart);
+      pos += Short.BYTES;
+      return (short) (((page[pageOffset] & 0xFF) << 8) | (page[pageOffset + 1] & 0xFF));
+    }
+    return super.readShort();
+  }
+
+  @Override
+  public int readInt() throws IOException {
+    if (remainingInPage() >= Integer.BYTES) {
+      final int pageOffset = (int) (pos - currentPageStart);
+      pos += Integer.BYTES;
+      return getInt(currentPage, pageOffset);
+    }
+    return super.readInt();
+  }
+
+  @Override
+  public long readLong() throws IOException {
+    if (remainingInPage() >= Long.BYTES) {
+      final byte[] page = currentPage;
+      final int pageOffset = (int) (pos - currentPageStart);
+      pos += Long.BYTES;
+      return (((long) getInt(page, pageOffset)) << 32) | (getInt(page, pageOffset + 4) & 0xFFFFFFFFL);
     }
+    return super.readLong();
+  }
+
+  @Override
+  public byte readByte(final long pos) throws IOException {
+    final long p = absolute(pos, Byte.BYTES);
+    final byte[] page = page(p);
+    return page[(int) (p - currentPageStart)];
+  }
+
+  @Override
+  public short readShort(final long pos) throws IOException {
+    return (short) read(absolute(pos, Short.BYTES), Short.BYTES);
+  }
+
+  @Override
+  public int readInt(final long pos) throws IOException {
+    return (int) read(absolute(pos, Integer.BYTES), Integer.BYTES);
+  }
+
+  @Override
+  public long readLong(final long pos) throws IOException {
+    return read(absolute(pos, Long.BYTES), Long.BYTES);
+  }
+
+  @Override
+  public RandomAccessInput randomAccessSlice(final long offset, final long length)
+      throws IOException {
+    return (FDBIndexInput) slice("randomaccess", offset, length);
+  }
+
+  @Override
+  public long getFilePointer() {
+    return pos - off;
+  }
+
+  @Override
+  public void seek(final long pos) throws IOException {
+    if (pos < 0 || pos > length()) {
+      throw new EOFException("seek past EOF: pos=" + pos + " vs length=" + length() + ": " + this);
+    }
+    // The page is loaded on the next read.
+    this.pos = off + pos;
   }
 
   @Override
@@ -88,10 +266,20 @@ public class FDBIndexInput extends BufferedIndexInput {
       throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: offset="
           + offset + ",length=" + length + ",fileLength=" + this.length() + ": " + this);
     }
+    // Compound file readers name each slice after the file it contains, which
+    // we account its reads to.
+    final boolean innerFile = COMPOUND_FILE_EXTENSION.equals(extension)
+        && IndexFileNames.getExtension(sliceDescription) != null;
     return new FDBIndexInput(getFullSliceDescription(sliceDescription), txc, subspace, name,
-        off + offset, length, pageSize);
+        off + offset, length, pageSize, metrics, tracer, innerFile ? sliceDescription : fileName,
+        cache, cacheOwner, fileNumber, readAhead, throttle, sharedReadVersions, diskFile, store,
+        hashes);
   }
 
+  /**
+   * Returns a clone that shares the pages read so far, so that it only costs a
+   * position.
+   */
   @Override
   public FDBIndexInput clone() {
     final FDBIndexInput result = (FDBIndexInput) super.clone();
@@ -110,21 +298,247 @@ public class FDBIndexInput extends BufferedIndexInput {
     return end - off;
   }
 
+  /**
+   * @return the page holding the byte at {@code pos}, which must be before {@code end}.
+   */
+  private byte[] page(final long pos) throws IOException {
+    if (pos >= currentPageStart && pos < currentPageLimit) {
+      return currentPage;
+    }
+    final long pageNumber = FDBUtil.posToPage(pos, pageSize);
+    if (pageNumber != currentPageNumber) {
+      currentPage = loadPage(pageNumber);
+      currentPageNumber = pageNumber;
+      currentPageStart = pageNumber * pageSize;
+      currentPageLimit = Math.min(currentPageStart + currentPage.length, end);
+    }
+    if (pos - currentPageStart >= currentPage.length) {
+      throw new EOFException("Read past end of page " + pageNumber + ": " + this);
+    }
+    return currentPage;
+  }
+
+  /**
+   * @return the number of bytes that can be read from the current page at {@code pos}, after
+   *         loading the page holding {@code pos} if needed.
+   */
+  private long remainingInPage() throws IOException {
+    if (pos < currentPageStart || pos >= currentPageLimit) {
+      if (pos >= end) {
+        return 0L;
+      }
+      page(pos);
+    }
+    return currentPageLimit - pos;
+  }
+
+  /**
+   * @return the position in the file of {@code pos}, a position in this input.
+   * @throws EOFException if {@code size} bytes cannot be read at {@code pos}.
+   */
+  private long absolute(final long pos, final int size) throws EOFException {
+    if (pos < 0 || pos > length() - size) {
+      throw new EOFException("read past EOF: pos=" + pos + " vs length=" + length() + ": " + this);
+    }
+    return off + pos;
+  }
+
+  /**
+   * Reads a big-endian value of {@code size} bytes at {@code pos}, a position in the file.
+   */
+  private long read(final long pos, final int size) throws IOException {
+    final byte[] page = page(pos);
+    final int pageOffset = (int) (pos - currentPageStart);
+    long result = 0L;
+    if (pageOffset + size <= page.length) {
+      for (int i = 0; i < size; i++) {
+        result = (result << 8) | (page[pageOffset + i] & 0xFF);
+      }
+    } else {
+      // The value spans two pages.
+      for (int i = 0; i < size; i++) {
+        final byte[] p = page(pos + i);
+        result = (result << 8) | (p[(int) (pos + i - currentPageStart)] & 0xFF);
+      }
+    }
+    return result;
+  }
+
+  private static int getInt(final byte[] b, final int offset) {
+    return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+        | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+  }
+
   private byte[] loadPage(final long pageNumber) throws IOException {
+    final byte[] hash = store == null ? null : hash(pageNumber);
+    if (cache != null) {
+      final byte[] result = hash == null ? cache.get(cacheOwner, fileNumber, pageNumber)
+          : cache.getContent(hash);
+      if (result != null) {
+        metrics.pageCacheHit(extension, result.length);
+        FDBIOScope.pageCacheHit(fileName);
+        return result;
+      }
+    }
+    if (diskFile != null) {
+      final byte[] result = diskFile.get(pageNumber);
+      if (result != null) {
+        metrics.pageCacheHit(extension, result.length);
+        FDBIOScope.pageCacheHit(fileName);
+        cachePage(pageNumber, hash, result);
+        return result;
+      }
+    }
+    if (readAhead > 0) {
+      return readAheadPage(pageNumber);
+    }
+    final byte[] result = fetchPage(pageNumber, hash);
+    cachePage(pageNumber, hash, result);
+    if (diskFile != null) {
+      diskFile.put(pageNumber, result);
+    }
+    return result;
+  }
+
+  private void cachePage(final long pageNumber, final byte[] hash, final byte[] page) {
+    if (cache == null) {
+      return;
+    }
+    if (hash == null) {
+      cache.put(cacheOwner, fileNumber, pageNumber, page);
+    } else {
+      cache.putContent(hash, page);
+    }
+  }
+
+  /**
+   * @return the hash of the content of a page in {@code store}.
+   */
+  private byte[] hash(final long pageNumber) throws IOException {
+    final long chunk = pageNumber / HASH_CHUNK;
+    byte[][] result = hashes.get(chunk);
+    if (result == null) {
+      final Range range = new Range(pageKey(chunk * HASH_CHUNK), pageKey((chunk + 1) * HASH_CHUNK));
+      final List<KeyValue> keyvalues = txc.run(txn -> {
+        readVersionCache.setReadVersion(txn);
+        tracer.trace(txn, "%s,in,hash,%d", name, chunk);
+        return txn.getRange(range).asList().join();
+      });
+      result = new byte[HASH_CHUNK][];
+      for (final KeyValue kv : keyvalues) {
+        result[(int) (subspace.unpack(kv.getKey()).getLong(0) - chunk * HASH_CHUNK)] = kv.getValue();
+      }
+      hashes.put(chunk, result);
+    }
+    final byte[] hash = result[(int) (pageNumber - chunk * HASH_CHUNK)];
+    if (hash == null) {
+      throw new EOFException("Read past end of file");
+    }
+    return hash;
+  }
+
+  private byte[] readAheadPage(final long pageNumber) throws IOException {
+    if (readAheadPages == null || pageNumber < readAheadFirst
+        || pageNumber >= readAheadFirst + readAheadPages.length) {
+      final long lastPage = FDBUtil.posToPage(end - 1, pageSize);
+      final int count = (int) Math.min(readAhead, lastPage - pageNumber + 1);
+      if (throttle != null) {
+        final long nanos = throttle.acquire((long) count * pageSize);
+        if (nanos > 0) {
+          metrics.throttled(extension, nanos);
+        }
+      }
+      readAheadPages = fetchPages(pageNumber, count);
+      readAheadFirst = pageNumber;
+    }
+    return readAheadPages[(int) (pageNumber - readAheadFirst)];
+  }
+
+  /**
+   * Reads {@code count} consecutive pages with a single range read.
+   */
+  private byte[][] fetchPages(final long firstPage, final int count) throws IOException {
+    if (store != null) {
+      return fetchStoredPages(firstPage, count);
+    }
+    if (count <= 1) {
+      return new byte[][] { fetchPage(firstPage, null) };
+    }
+    final Range range = new Range(pageKey(firstPage), pageKey(firstPage + count));
+    final long start = System.nanoTime();
+    final List<KeyValue> keyvalues = txc.run(txn -> {
+      readVersionCache.setReadVersion(txn);
+      tracer.trace(txn, "%s,in,fetchPages,%d", name, firstPage);
+      return txn.getRange(range).asList().join();
+    });
+    if (keyvalues.size() != count) {
+      throw new EOFException("Read past end of file");
+    }
+    final long nanos = (System.nanoTime() - start) / count;
+    final byte[][] result = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      result[i] = keyvalues.get(i).getValue();
+      metrics.pageRead(extension, result[i].length, nanos);
+      FDBIOScope.pageRead(fileName, result[i].length, nanos);
+    }
+    return result;
+  }
+
+  /**
+   * Reads {@code count} consecutive pages of {@code store} with concurrent reads.
+   */
+  private byte[][] fetchStoredPages(final long firstPage, final int count) throws IOException {
+    final byte[][] pageHashes = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      pageHashes[i] = hash(firstPage + i);
+    }
+    final long start = System.nanoTime();
+    final byte[][] result = txc.run(txn -> {
+      readVersionCache.setReadVersion(txn);
+      tracer.trace(txn, "%s,in,fetchPages,%d", name, firstPage);
+      final List<CompletableFuture<byte[]>> values = new ArrayList<CompletableFuture<byte[]>>(count);
+      for (final byte[] hash : pageHashes) {
+        values.add(store.get(txn, hash));
+      }
+      final byte[][] pages = new byte[count][];
+      for (int i = 0; i < count; i++) {
+        pages[i] = values.get(i).join();
+      }
+      return pages;
+    });
+    final long nanos = (System.nanoTime() - start) / count;
+    for (int i = 0; i < count; i++) {
+      if (result[i] == null) {
+        throw new EOFException("Read past end of file");
+      }
+      metrics.pageRead(extension, result[i].length, nanos);
+      FDBIOScope.pageRead(fileName, result[i].length, nanos);
+    }
+    return result;
+  }
+
+  /**
+   * @param hash the hash of the page in {@code store}, or {@code null}.
+   */
+  private byte[] fetchPage(final long pageNumber, final byte[] hash) throws IOException {
     final byte[] key = pageKey(pageNumber);
+    final long start = System.nanoTime();
     final byte[] result = txc.run(txn -> {
       readVersionCache.setReadVersion(txn);
-      Utils.trace(txn, "%s,in,loadPage,%d", name, pageNumber);
-      return txn.get(key).join();
+      tracer.trace(txn, "%s,in,loadPage,%d", name, pageNumber);
+      return hash == null ? txn.get(key).join() : store.get(txn, hash).join();
     });
     if (result == null) {
       throw new EOFException("Read past end of file");
     }
+    final long nanos = System.nanoTime() - start;
+    metrics.pageRead(extension, result.length, nanos);
+    FDBIOScope.pageRead(fileName, result.length, nanos);
     return result;
   }
 
   private byte[] pageKey(final long pageNumber) {
-    return subspace.pack(pageNumber);
+    return FDBUtil.pack(prefix, pageNumber);
   }
 
 }
@@ -16,14 +16,17 @@
 package com.cloudant.fdblucene;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.zip.CRC32;
 
 import org.apache.lucene.store.IndexOutput;
 
-import com.cloudant.fdblucene.Utils;
-
 import com.apple.foundationdb.Transaction;
 import com.apple.foundationdb.TransactionContext;
 import com.apple.foundationdb.async.AsyncUtil;
@@ -32,17 +35,36 @@ import com.cloudant.fdblucene.FDBDirectory.FileMetaData;
 
 public final class FDBIndexOutput extends IndexOutput {
 
-    private static void flushTxnBuffer(
-            final Subspace subspace,
+    /**
+     * Writes the pages of the first {@code txnBufferOffset} bytes of
+     * {@code txnBuffer}, which end at {@code pointer} in the file.
+     *
+     * @param prefix the key prefix of the subspace of the file.
+     */
+    static void flushTxnBuffer(
+            final byte[] prefix,
             final Transaction txn,
             final byte[] txnBuffer,
             final int txnBufferOffset,
             final long pointer,
-            final int pageSize) {
+            final int pageSize,
+            final PageStore store) {
+        if (store != null) {
+            final List<byte[]> keys = new ArrayList<byte[]>();
+            final List<byte[]> pages = new ArrayList<byte[]>();
+            for (int i = 0; i < txnBufferOffset; i += pageSize) {
+                final long pos = pointer - txnBufferOffset + i;
+                keys.add(pageKey(prefix, pos, pageSize));
+                // Each page is held until the store has checked whether it is new.
+                pages.add(Arrays.copyOfRange(txnBuffer, i, Math.min(i + pageSize, txnBufferOffset)));
+            }
+            store.put(txn, keys, pages);
+            return;
+        }
         final byte[] fullPage = new byte[pageSize];
         for (int i = 0; i < txnBufferOffset; i += pageSize) {
             final long pos = pointer - txnBufferOffset + i;
-            final byte[] key = pageKey(subspace, pos, pageSize);
+            final byte[] key = pageKey(prefix, pos, pageSize);
             final int flushSize = Math.min(pageSize, txnBufferOffset - i);
             final byte[] bufToFlush;
             if (flushSize == pageSize) {
@@ -56,21 +78,22 @@ public final class FDBIndexOutput extends IndexOutput {
         }
     }
 
-    private static byte[] pageKey(final Subspace subspace, final long pos, final int byteSize) {
+    private static byte[] pageKey(final byte[] prefix, final long pos, final int byteSize) {
         final long currentPage = FDBUtil.posToPage(pos, byteSize);
-        return subspace.pack(currentPage);
+        return FDBUtil.pack(prefix, currentPage);
     }
 
     private final FDBDirectory dir;
     private final TransactionContext txc;
     private final byte[] metaKey;
-    private final Subspace subspace;
+    private final byte[] prefix;
     private byte[] txnBuffer;
 
     private int txnBufferOffset;
     private final CRC32 crc;
 
-    private CompletableFuture<Void> lastFlushFuture;
+    private final Deque<CompletableFuture<Void>> flushFutures;
+    private final int pipelineDepth;
     private long pointer;
 
     private final ReadVersionCache readVersionCache;
@@ -78,35 +101,79 @@ public final class FDBIndexOutput extends IndexOutput {
     private final int pageSize;
     private final int txnSize;
 
+    private final FDBDirectoryMetrics metrics;
+    private final String extension;
+    private final Tracer tracer;
+    private final IOThrottle throttle;
+    private final PageStore store;
+    private final boolean asyncClose;
+    private boolean closed;
+
+    /**
+     * @param store      the store to write pages to by content, or
+     *                   {@code null} to write them to {@code subspace}.
+     * @param asyncClose whether {@link #close()} returns before the file is
+     *                   committed.
+     */
     FDBIndexOutput(final FDBDirectory dir, final String resourceDescription, final String name,
             final TransactionContext txc, final byte[] metaKey, final Subspace subspace, final int pageSize,
-            final int txnSize) {
+            final int txnSize, final int pipelineDepth, final IOThrottle throttle,
+            final ReadVersionCache sharedReadVersions, final FDBDirectoryMetrics metrics, final Tracer tracer,
+            final PageStore store, final boolean asyncClose) {
         super(resourceDescription, name);
         this.dir = dir;
         this.txc = txc;
         this.metaKey = metaKey;
-        this.subspace = subspace;
-        this.readVersionCache = new ReadVersionCache();
+        this.prefix = subspace.getKey();
+        this.readVersionCache = new ReadVersionCache(metrics, sharedReadVersions);
         this.pageSize = pageSize;
         this.txnSize = txnSize;
+        this.metrics = metrics;
+        this.extension = FDBUtil.extension(name);
+        this.tracer = tracer;
+        this.throttle = throttle;
+        this.store = store;
+        this.asyncClose = asyncClose;
         txnBuffer = new byte[txnSize];
         crc = new CRC32();
-        lastFlushFuture = AsyncUtil.DONE;
+        this.pipelineDepth = pipelineDepth;
+        flushFutures = new ArrayDeque<CompletableFuture<Void>>(pipelineDepth);
         pointer = 0L;
     }
 
+    /**
+     * Writes the last pages and the length of the file in one transaction. If
+     * the directory closes outputs asynchronously, the transaction is left to
+     * {@link FDBDirectory#sync} to wait for.
+     */
     @Override
     public void close() throws IOException {
-        lastFlushFuture.join();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        throttle(txnBufferOffset);
+        if (asyncClose) {
+            final CompletableFuture<?>[] flushes = flushFutures.toArray(new CompletableFuture<?>[0]);
+            flushFutures.clear();
+            dir.closing(getName(), CompletableFuture.allOf(flushes).thenCompose(v -> {
+                final long start = System.nanoTime();
+                return txc.runAsync(txn -> {
+                    writeTail(txn);
+                    return AsyncUtil.DONE;
+                }).thenRun(() -> tailWritten(start));
+            }));
+            return;
+        }
+        while (!flushFutures.isEmpty()) {
+            flushFutures.remove().join();
+        }
+        final long start = System.nanoTime();
         txc.run(txn -> {
-            readVersionCache.setReadVersion(txn);
-            Utils.trace(txn, "FDBIndexOutput.close(%s,%s,%d)", this.dir.getUUID(), getName(), pointer);
-            flushTxnBuffer(subspace, txn, txnBuffer, txnBufferOffset, pointer, pageSize);
-            txn.options().setNextWriteNoWriteConflictRange();
-
-            setFileLength(txn, pointer);
+            writeTail(txn);
             return null;
         });
+        tailWritten(start);
     }
 
     @Override
@@ -144,23 +211,49 @@ public final class FDBIndexOutput extends IndexOutput {
         crc.update(b, offset, length);
     }
 
+    /**
+     * Writes the buffer in a new transaction, waiting first if
+     * {@code pipelineDepth} transactions are already in flight.
+     */
     private void flushTxnBuffer() {
-        lastFlushFuture.join();
+        while (flushFutures.size() >= pipelineDepth) {
+            flushFutures.remove().join();
+        }
+
+        throttle(this.txnBufferOffset);
 
         final byte[] txnBuffer = this.txnBuffer;
         final int txnBufferOffset = this.txnBufferOffset;
+        // The transaction may be retried after more data has been written.
+        final long pointer = this.pointer;
 
         this.txnBuffer = new byte[this.txnSize];
         this.txnBufferOffset = 0;
 
-        lastFlushFuture = txc.runAsync(txn -> {
+        final long start = System.nanoTime();
+        flushFutures.add(txc.runAsync(txn -> {
             readVersionCache.setReadVersion(txn);
-            Utils.trace(txn, "FDBIndexOutput.flushTxnBuffer(%s,%s,%d)", this.dir.getUUID(), getName(), pointer);
+            tracer.trace(txn, "FDBIndexOutput.flushTxnBuffer(%s,%s,%d)", this.dir.getUUID(), getName(), pointer);
             applyIfExists(txn, value -> {
-                flushTxnBuffer(subspace, txn, txnBuffer, txnBufferOffset, pointer, pageSize);
+                flushTxnBuffer(prefix, txn, txnBuffer, txnBufferOffset, pointer, pageSize, store);
             });
             return AsyncUtil.DONE;
-        });
+        }).thenRun(() -> {
+            metrics.pagesWritten(extension, pages(txnBufferOffset), txnBufferOffset, System.nanoTime() - start);
+        }));
+    }
+
+    private void throttle(final int bytes) {
+        if (throttle != null) {
+            final long nanos = throttle.acquire(bytes);
+            if (nanos > 0) {
+                metrics.throttled(extension, nanos);
+            }
+        }
+    }
+
+    private int pages(final int bytes) {
+        return (bytes + pageSize - 1) / pageSize;
     }
 
     private void flushTxnBufferIfFull() {
@@ -169,23 +262,26 @@ public final class FDBIndexOutput extends IndexOutput {
         }
     }
 
-    private void setFileLength(final TransactionContext txc, final long length) {
-        txc.run(txn -> {
-            applyIfExists(txn, value -> {
-                final FileMetaData meta = new FileMetaData(value).setFileLength(length);
-                txn.set(metaKey, meta.pack());
-            });
-            return null;
+    private void writeTail(final Transaction txn) {
+        readVersionCache.setReadVersion(txn);
+        tracer.trace(txn, "FDBIndexOutput.close(%s,%s,%d)", this.dir.getUUID(), getName(), pointer);
+        applyIfExists(txn, value -> {
+            flushTxnBuffer(prefix, txn, txnBuffer, txnBufferOffset, pointer, pageSize, store);
+            txn.set(metaKey, new FileMetaData(value).setFileLength(pointer).pack());
         });
     }
 
+    private void tailWritten(final long start) {
+        if (txnBufferOffset > 0) {
+            metrics.pagesWritten(extension, pages(txnBufferOffset), txnBufferOffset, System.nanoTime() - start);
+        }
+    }
+
     private void applyIfExists(final Transaction txn, final Consumer<byte[]> fun) {
-        txn.get(metaKey).thenApply(value -> {
-            if (value != null) {
-                fun.accept(value);
-            }
-            return null;
-        }).join();
+        final byte[] value = txn.get(metaKey).join();
+        if (value != null) {
+            fun.accept(value);
+        }
     }
 
 }
@@ -36,14 +36,15 @@ final class FDBLock extends Lock {
     private final UUID uuid;
     private final String name;
     private final byte[] key;
+    private final Tracer tracer;
     private boolean closed = false;
 
-    public static Lock obtain(final TransactionContext txc, final Subspace subspace, final UUID uuid, final String name)
-            throws IOException {
+    public static Lock obtain(final TransactionContext txc, final Subspace subspace, final UUID uuid, final String name,
+            final Tracer tracer) throws IOException {
         final byte[] key = lockKey(subspace, name);
         final byte[] uuidBytes = Utils.toBytes(uuid);
         final boolean obtained = txc.run(txn -> {
-            Utils.trace(txn, "obtain(%s,%s)", name, uuid);
+            tracer.trace(txn, "obtain(%s,%s)", name, uuid);
             return txn.get(key).thenApply(value -> {
                 if (value == null) {
                     txn.set(key, uuidBytes);
@@ -54,14 +55,16 @@ final class FDBLock extends Lock {
         });
 
         if (obtained) {
-            return new FDBLock(txc, key, uuidBytes, uuid, name);
+            return new FDBLock(txc, key, uuidBytes, uuid, name, tracer);
         } else {
             throw new LockObtainFailedException("Lock for " + name + " already obtained.");
         }
     }
 
-    FDBLock(final TransactionContext txc, final byte[] key, final byte[] uuidBytes, final UUID uuid, final String name) {
+    FDBLock(final TransactionContext txc, final byte[] key, final byte[] uuidBytes, final UUID uuid, final String name,
+            final Tracer tracer) {
         this.txc = txc;
+        this.tracer = tracer;
         this.uuidBytes = uuidBytes;
         this.uuid = uuid;
         this.name = name;
@@ -76,7 +79,7 @@ final class FDBLock extends Lock {
 
         try {
             txc.run(txn -> {
-                Utils.trace(txn, "FDBLock.close(%s,%s)", name, uuid);
+                tracer.trace(txn, "FDBLock.close(%s,%s)", name, uuid);
                 return txn.get(key).thenApply(value -> {
                     if (value != null && Arrays.equals(uuidBytes, value)) {
                         txn.clear(key);
@@ -97,7 +100,7 @@ final class FDBLock extends Lock {
         }
 
         final boolean valid = txc.read(txn -> {
-            Utils.trace(txn, "FDBLock.ensureValid(%s,%s)", name, uuid);
+            tracer.trace(txn, "FDBLock.ensureValid(%s,%s)", name, uuid);
             return txn.get(key).thenApply(value -> {
                 return value != null && Arrays.equals(uuidBytes, value);
             }).join();
@@ -108,10 +111,11 @@ final class FDBLock extends Lock {
         }
     }
 
-    public static void unlock(final TransactionContext txc, final Subspace subspace, final UUID uuid, final String name) {
+    public static void unlock(final TransactionContext txc, final Subspace subspace, final UUID uuid, final String name,
+            final Tracer tracer) {
         final byte[] key = lockKey(subspace, name);
         txc.run(txn -> {
-            Utils.trace(txn, "FDBLock.unlock(%s,%s)", name, uuid);
+            tracer.trace(txn, "FDBLock.unlock(%s,%s)", name, uuid);
             txn.clear(key);
             return null;
         });
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+
+/**
+ * A commit pinned by {@link FDBDirectory#pinCommit(long)}. Files are resolved
+ * against the metadata recorded when the commit was pinned, so the commit can
+ * be read after the writer has deleted or replaced its files.
+ */
+final class FDBPinnedCommit extends IndexCommit {
+
+    private final FDBDirectory dir;
+    private final long generation;
+    private final String segmentsFileName;
+    private final View view;
+    private final SegmentInfos infos;
+
+    FDBPinnedCommit(final FDBDirectory dir, final long generation) throws IOException {
+        this.dir = dir;
+        this.generation = generation;
+        this.segmentsFileName = IndexFileNames.fileNameFromGeneration(IndexFileNames.SEGMENTS, "", generation);
+        this.view = new View();
+        this.infos = SegmentInfos.readCommit(view, segmentsFileName);
+    }
+
+    @Override
+    public String getSegmentsFileName() {
+        return segmentsFileName;
+    }
+
+    @Override
+    public Collection<String> getFileNames() throws IOException {
+        return Collections.unmodifiableCollection(infos.files(true));
+    }
+
+    /**
+     * @return a read-only view of the files of this commit.
+     */
+    @Override
+    public Directory getDirectory() {
+        return view;
+    }
+
+    /**
+     * Pinned commits are released with {@link FDBDirectory#unpinCommit(long)}.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    @Override
+    public void delete() {
+        throw new UnsupportedOperationException("use FDBDirectory.unpinCommit(" + generation + ")");
+    }
+
+    @Override
+    public boolean isDeleted() {
+        return false;
+    }
+
+    @Override
+    public int getSegmentCount() {
+        return infos.size();
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public Map<String, String> getUserData() throws IOException {
+        return infos.getUserData();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FDBPinnedCommit(dir=%s,generation=%d)", dir, generation);
+    }
+
+    /**
+     * A read-only view of the files of a pinned commit, which
+     * {@link FDBDirectory#copyFrom} copies page by page.
+     */
+    final class View extends Directory {
+
+        @Override
+        public String[] listAll() throws IOException {
+            return dir.listPinnedFiles(generation);
+        }
+
+        @Override
+        public void deleteFile(final String name) throws IOException {
+            throw readOnly();
+        }
+
+        @Override
+        public long fileLength(final String name) throws IOException {
+            return meta(name).getFileLength();
+        }
+
+        @Override
+        public IndexOutput createOutput(final String name, final IOContext context) throws IOException {
+            throw readOnly();
+        }
+
+        @Override
+        public IndexOutput createTempOutput(final String prefix, final String suffix, final IOContext context)
+                throws IOException {
+            throw readOnly();
+        }
+
+        @Override
+        public void sync(final Collection<String> names) throws IOException {
+            // intentionally empty
+        }
+
+        @Override
+        public void syncMetaData() throws IOException {
+            // intentionally empty
+        }
+
+        @Override
+        public void rename(final String source, final String dest) throws IOException {
+            throw readOnly();
+        }
+
+        @Override
+        public IndexInput openInput(final String name, final IOContext context) throws IOException {
+            return dir.newInput(name, meta(name), context);
+        }
+
+        @Override
+        public Lock obtainLock(final String name) throws IOException {
+            throw readOnly();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // intentionally empty
+        }
+
+        @Override
+        public Set<String> getPendingDeletions() throws IOException {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public String toString() {
+            return FDBPinnedCommit.this.toString();
+        }
+
+        FDBDirectory directory() {
+            return dir;
+        }
+
+        FDBDirectory.FileMetaData meta(final String name) throws FileNotFoundException {
+            final FDBDirectory.FileMetaData result = dir.pinnedMeta(generation, name);
+            if (result == null) {
+                throw new FileNotFoundException(name + " is not part of pinned commit " + generation);
+            }
+            return result;
+        }
+
+        private UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException(FDBPinnedCommit.this + " is read-only");
+        }
+
+    }
+
+}
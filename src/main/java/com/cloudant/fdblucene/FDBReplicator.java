@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+/**
+ * Replicates the commits of a primary {@link FDBDirectory} to a target
+ * {@link Directory}, copying only the files that the target does not already
+ * have, so that replicas follow the primary without re-indexing:
+ *
+ * <pre>
+ * final FDBReplicator replicator = new FDBReplicator(primary, replica, executor);
+ * // after each commit on the primary:
+ * replicator.replicate();
+ * </pre>
+ *
+ * The commit being replicated is pinned on the primary under a pin of the
+ * replicator's own, so the writer may keep committing and deleting files
+ * meanwhile, and other holders of the same commit may unpin it. New files are copied in
+ * parallel on the executor; a target FDBDirectory on the same database copies
+ * whole pages, one on another cluster or any other directory copies bytes.
+ * The {@code segments_N} file is published last, by renaming, so readers of
+ * the target only ever see complete commits.
+ *
+ * <p>
+ * The target must only be written by the replicator. After publishing a
+ * commit, the replicator deletes the files that belong to neither that commit
+ * nor the one before it, so readers of the target have until the next
+ * replication to reopen.
+ */
+public final class FDBReplicator {
+
+    private final FDBDirectory primary;
+    private final Directory target;
+    private final Executor executor;
+
+    /**
+     * @param primary  the directory to replicate.
+     * @param target   the replica.
+     * @param executor runs the copies of the files of each commit.
+     */
+    public FDBReplicator(final FDBDirectory primary, final Directory target, final Executor executor) {
+        this.primary = primary;
+        this.target = target;
+        this.executor = executor;
+    }
+
+    /**
+     * Replicates the latest commit of the primary, unless the target already
+     * has it.
+     *
+     * @return the generation of the latest commit of the target, or {@code -1}
+     *         if neither directory has a commit.
+     */
+    public long replicate() throws IOException {
+        final long current = SegmentInfos.getLastCommitGeneration(target);
+        // A pin of our own, which nobody else can release during the copy.
+        final String holder = UUID.randomUUID().toString();
+        while (true) {
+            final long generation = SegmentInfos.getLastCommitGeneration(primary);
+            if (generation <= current) {
+                return current;
+            }
+            final IndexCommit commit;
+            try {
+                commit = primary.pinCommit(generation, holder);
+            } catch (final FileNotFoundException | NoSuchFileException e) {
+                // A newer commit replaced this one.
+                continue;
+            }
+            try {
+                publish(commit, current);
+            } finally {
+                primary.unpinCommit(generation, holder);
+            }
+            return generation;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FDBReplicator(primary=%s,target=%s)", primary, target);
+    }
+
+    private void publish(final IndexCommit commit, final long current) throws IOException {
+        final String segmentsFileName = commit.getSegmentsFileName();
+        final Set<String> keep = new HashSet<String>(commit.getFileNames());
+        if (current != -1) {
+            keep.addAll(SegmentInfos.readCommit(target,
+                    IndexFileNames.fileNameFromGeneration(IndexFileNames.SEGMENTS, "", current)).files(true));
+        }
+
+        final Directory source = commit.getDirectory();
+        final Set<String> existing = new HashSet<String>(Arrays.asList(target.listAll()));
+        final List<String> newFiles = new ArrayList<String>();
+        for (final String name : commit.getFileNames()) {
+            if (name.equals(segmentsFileName)) {
+                continue;
+            }
+            if (existing.contains(name)) {
+                if (sameFile(source, name)) {
+                    continue;
+                }
+                target.deleteFile(name);
+            }
+            newFiles.add(name);
+        }
+        copy(source, newFiles);
+        target.sync(newFiles);
+
+        final String pendingFileName = IndexFileNames.fileNameFromGeneration(IndexFileNames.PENDING_SEGMENTS, "",
+                commit.getGeneration());
+        deleteIfExists(pendingFileName);
+        target.copyFrom(source, segmentsFileName, pendingFileName, IOContext.READONCE);
+        target.sync(Collections.singleton(pendingFileName));
+        target.rename(pendingFileName, segmentsFileName);
+        target.syncMetaData();
+
+        final List<String> obsolete = new ArrayList<String>();
+        for (final String name : target.listAll()) {
+            if (!keep.contains(name) && !IndexWriter.WRITE_LOCK_NAME.equals(name)) {
+                obsolete.add(name);
+            }
+        }
+        for (final String name : obsolete) {
+            deleteIfExists(name);
+        }
+    }
+
+    /**
+     * Files are never rewritten, but a file of the target may be left over
+     * from a copy that was interrupted or, as Lucene reuses segment names,
+     * from a primary that has since been rebuilt or rolled back. Like Lucene's
+     * own replication, this compares the length and the footer checksum.
+     *
+     * @return whether the file {@code name} of the target is that of
+     *         {@code source}.
+     */
+    private boolean sameFile(final Directory source, final String name) throws IOException {
+        if (target.fileLength(name) != source.fileLength(name)) {
+            return false;
+        }
+        final long checksum;
+        try (final IndexInput in = target.openInput(name, IOContext.READONCE)) {
+            checksum = CodecUtil.retrieveChecksum(in);
+        } catch (final CorruptIndexException e) {
+            return false;
+        }
+        try (final IndexInput in = source.openInput(name, IOContext.READONCE)) {
+            return CodecUtil.retrieveChecksum(in) == checksum;
+        }
+    }
+
+    /**
+     * Copies {@code names} from {@code source} to the target in parallel.
+     */
+    private void copy(final Directory source, final Collection<String> names) throws IOException {
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(names.size());
+        for (final String name : names) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    target.copyFrom(source, name, name, IOContext.READONCE);
+                } catch (final IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        IOException failure = null;
+        for (final CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (final CompletionException e) {
+                final IOException cause = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void deleteIfExists(final String name) throws IOException {
+        try {
+            target.deleteFile(name);
+        } catch (final FileNotFoundException | NoSuchFileException e) {
+            // Already gone.
+        }
+    }
+
+}
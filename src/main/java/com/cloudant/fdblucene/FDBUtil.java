@@ -15,10 +15,15 @@
  *******************************************************************************/
 package com.cloudant.fdblucene;
 
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.UUID;
 
+import org.apache.lucene.index.IndexFileNames;
+
+import com.apple.foundationdb.tuple.ByteArrayUtil;
 import com.apple.foundationdb.tuple.Tuple;
 
 final class FDBUtil {
@@ -29,6 +34,13 @@ final class FDBUtil {
 
     static final int DEFAULT_TXN_SIZE = 1_000_000;
 
+    // The largest value that FoundationDB accepts.
+    static final int MAX_VALUE_SIZE = 100_000;
+
+    // Type codes of the tuple layer.
+    private static final byte STRING_CODE = 0x02;
+    private static final byte INT_ZERO_CODE = 0x14;
+
     static int decodeInt(final byte[] v) {
         return (((v[0] & 0xff) << 24) | ((v[1] & 0xff) << 16) | ((v[2] & 0xff) << 8) | (v[3] & 0xff));
     }
@@ -61,8 +73,53 @@ final class FDBUtil {
         return result;
     }
 
-    static int posToOffset(final long pos, final int pageSize) {
-        return (int) (pos % pageSize);
+    /**
+     * Appends the tuple encoding of {@code value} to {@code prefix}, giving the
+     * same key as {@code subspace.pack(value)} for a subspace with that prefix
+     * but without building a tuple.
+     */
+    static byte[] pack(final byte[] prefix, final long value) {
+        if (value < 0) {
+            return ByteArrayUtil.join(prefix, Tuple.from(value).pack());
+        }
+        final int length = (Long.SIZE - Long.numberOfLeadingZeros(value) + 7) / 8;
+        final byte[] result = Arrays.copyOf(prefix, prefix.length + 1 + length);
+        result[prefix.length] = (byte) (INT_ZERO_CODE + length);
+        for (int i = 0; i < length; i++) {
+            result[result.length - 1 - i] = (byte) (value >>> (8 * i));
+        }
+        return result;
+    }
+
+    /**
+     * Appends the tuple encoding of {@code value} to {@code prefix}, giving the
+     * same key as {@code subspace.pack(value)} for a subspace with that prefix
+     * but without building a tuple.
+     */
+    static byte[] pack(final byte[] prefix, final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int nulls = 0;
+        for (final byte b : bytes) {
+            if (b == 0) {
+                nulls++;
+            }
+        }
+        // The array ends with the terminating null.
+        final byte[] result = Arrays.copyOf(prefix, prefix.length + bytes.length + nulls + 2);
+        int pos = prefix.length;
+        result[pos++] = STRING_CODE;
+        for (final byte b : bytes) {
+            result[pos++] = b;
+            if (b == 0) {
+                result[pos++] = (byte) 0xff;
+            }
+        }
+        return result;
+    }
+
+    static String extension(final String name) {
+        final String result = IndexFileNames.getExtension(name);
+        return result == null ? "" : result;
     }
 
     static long posToPage(final long pos, final int pageSize) {
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Limits the rate of merge I/O with a pair of token buckets, one for bytes and
+ * one for transactions. Each bucket holds up to one second of its rate, so
+ * short bursts are not delayed.
+ *
+ * <p>
+ * A throttle may have a parent which is charged for the same I/O; a caller
+ * waits until both have budget. Giving every directory its own throttle with
+ * a single shared parent limits each directory and the whole process:
+ *
+ * <pre>
+ * final IOThrottle process = new IOThrottle(100_000_000, 1_000);
+ * final FDBDirectoryConfig config = new FDBDirectoryConfig()
+ *         .setMergeThrottle(new IOThrottle(20_000_000, 200, process));
+ * </pre>
+ */
+public final class IOThrottle {
+
+    /**
+     * Passed as a rate to leave it unlimited.
+     */
+    public static final long UNLIMITED = 0L;
+
+    private static final class Bucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+        private double available;
+        private long last;
+
+        private Bucket(final long tokensPerSecond) {
+            this.tokensPerNano = tokensPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            this.capacity = tokensPerSecond;
+            this.available = capacity;
+            this.last = System.nanoTime();
+        }
+
+        /**
+         * Takes {@code tokens} from the bucket, going into debt if needed.
+         *
+         * @return the time until the debt is repaid, in nanoseconds.
+         */
+        private synchronized long take(final long tokens, final long now) {
+            available = Math.min(capacity, available + (now - last) * tokensPerNano);
+            last = now;
+            available -= tokens;
+            return available >= 0 ? 0L : (long) Math.ceil(-available / tokensPerNano);
+        }
+
+    }
+
+    private final long bytesPerSecond;
+    private final long transactionsPerSecond;
+    private final Bucket bytes;
+    private final Bucket transactions;
+    private final IOThrottle parent;
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    /**
+     * @param bytesPerSecond        the maximum rate of bytes read or written,
+     *                              or {@link #UNLIMITED}.
+     * @param transactionsPerSecond the maximum rate of transactions, or
+     *                              {@link #UNLIMITED}.
+     */
+    public IOThrottle(final long bytesPerSecond, final long transactionsPerSecond) {
+        this(bytesPerSecond, transactionsPerSecond, null);
+    }
+
+    /**
+     * @param bytesPerSecond        the maximum rate of bytes read or written,
+     *                              or {@link #UNLIMITED}.
+     * @param transactionsPerSecond the maximum rate of transactions, or
+     *                              {@link #UNLIMITED}.
+     * @param parent                also charged for all I/O, or {@code null}.
+     */
+    public IOThrottle(final long bytesPerSecond, final long transactionsPerSecond, final IOThrottle parent) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("bytesPerSecond cannot be negative");
+        }
+        if (transactionsPerSecond < 0) {
+            throw new IllegalArgumentException("transactionsPerSecond cannot be negative");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.transactionsPerSecond = transactionsPerSecond;
+        this.bytes = bytesPerSecond == UNLIMITED ? null : new Bucket(bytesPerSecond);
+        this.transactions = transactionsPerSecond == UNLIMITED ? null : new Bucket(transactionsPerSecond);
+        this.parent = parent;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getTransactionsPerSecond() {
+        return transactionsPerSecond;
+    }
+
+    public IOThrottle getParent() {
+        return parent;
+    }
+
+    /**
+     * @return the number of transactions that were delayed by this throttle.
+     */
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    /**
+     * @return the total time that transactions were delayed by this throttle,
+     *         in nanoseconds.
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("IOThrottle(bytesPerSecond=%d,transactionsPerSecond=%d,throttled=%d,throttledMillis=%d)",
+                bytesPerSecond, transactionsPerSecond, getThrottled(),
+                TimeUnit.NANOSECONDS.toMillis(getThrottledNanos()));
+    }
+
+    /**
+     * Charges one transaction of {@code byteCount} bytes, waiting until this
+     * throttle and its parents have the budget for it.
+     *
+     * @return the time spent waiting, in nanoseconds.
+     * @throws ThreadInterruptedException if interrupted while waiting.
+     */
+    long acquire(final long byteCount) {
+        final long nanos = take(byteCount, System.nanoTime());
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (final InterruptedException e) {
+                throw new ThreadInterruptedException(e);
+            }
+        }
+        return nanos;
+    }
+
+    private long take(final long byteCount, final long now) {
+        long result = 0L;
+        if (bytes != null) {
+            result = bytes.take(byteCount, now);
+        }
+        if (transactions != null) {
+            result = Math.max(result, transactions.take(1L, now));
+        }
+        if (result > 0) {
+            throttled.increment();
+            throttledNanos.add(result);
+        }
+        if (parent != null) {
+            result = Math.max(result, parent.take(byteCount, now));
+        }
+        return result;
+    }
+
+}
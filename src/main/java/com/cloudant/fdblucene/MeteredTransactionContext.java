@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.TransactionContext;
+
+/**
+ * A {@link TransactionContext} that reports the number of attempts and the
+ * latency of each transaction to a {@link FDBDirectoryMetrics}. The retry loop
+ * belongs to the delegate, so attempts are counted as invocations of the
+ * retryable function.
+ *
+ * <p>
+ * Attempts that take their read version from a {@link ReadVersionCache} are
+ * reported by the cache; every other attempt asks the cluster for one, e.g.
+ * the metadata transactions of the directory, and is reported here.
+ */
+final class MeteredTransactionContext implements TransactionContext {
+
+    /**
+     * Set by {@link ReadVersionCache} when it supplies the read version of the
+     * attempt running on this thread.
+     */
+    private static final ThreadLocal<boolean[]> READ_VERSION_SET = ThreadLocal.withInitial(() -> new boolean[1]);
+
+    private final TransactionContext delegate;
+    private final FDBDirectoryMetrics metrics;
+
+    MeteredTransactionContext(final TransactionContext delegate, final FDBDirectoryMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <T> T run(final Function<? super Transaction, T> retryable) {
+        final int[] attempts = new int[1];
+        final long start = System.nanoTime();
+        try {
+            return delegate.run(txn -> {
+                attempts[0]++;
+                return attempt(retryable, txn);
+            });
+        } finally {
+            metrics.transaction(attempts[0], System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<T> runAsync(
+            final Function<? super Transaction, ? extends CompletableFuture<T>> retryable) {
+        final int[] attempts = new int[1];
+        final long start = System.nanoTime();
+        return delegate.runAsync(txn -> {
+            attempts[0]++;
+            return attempt(retryable, txn);
+        }).whenComplete((result, e) -> {
+            metrics.transaction(attempts[0], System.nanoTime() - start);
+        });
+    }
+
+    @Override
+    public <T> T read(final Function<? super ReadTransaction, T> retryable) {
+        final int[] attempts = new int[1];
+        final long start = System.nanoTime();
+        try {
+            return delegate.read(txn -> {
+                attempts[0]++;
+                return attempt(retryable, txn);
+            });
+        } finally {
+            metrics.transaction(attempts[0], System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<T> readAsync(
+            final Function<? super ReadTransaction, ? extends CompletableFuture<T>> retryable) {
+        final int[] attempts = new int[1];
+        final long start = System.nanoTime();
+        return delegate.readAsync(txn -> {
+            attempts[0]++;
+            return attempt(retryable, txn);
+        }).whenComplete((result, e) -> {
+            metrics.transaction(attempts[0], System.nanoTime() - start);
+        });
+    }
+
+    /**
+     * Records that the read version of the attempt running on this thread
+     * came from a {@link ReadVersionCache}.
+     */
+    static void readVersionSet() {
+        READ_VERSION_SET.get()[0] = true;
+    }
+
+    private <T, R> R attempt(final Function<? super T, R> retryable, final T txn) {
+        final boolean[] readVersionSet = READ_VERSION_SET.get();
+        final boolean outer = readVersionSet[0];
+        readVersionSet[0] = false;
+        try {
+            return retryable.apply(txn);
+        } finally {
+            if (!readVersionSet[0]) {
+                metrics.readVersion(false);
+            }
+            readVersionSet[0] = outer;
+        }
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return delegate.getExecutor();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MeteredTransactionContext(%s)", delegate);
+    }
+
+}
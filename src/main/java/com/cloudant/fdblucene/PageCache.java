@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A least-recently-used cache of pages, bounded by the total size of the
+ * pages it holds. One cache may be shared by many directories.
+ *
+ * <p>
+ * The cache is split into segments that are locked and evicted separately.
+ * A cache of less than a few megabytes has fewer segments, down to one, so
+ * that each can hold several pages of the largest size; a page larger than a
+ * segment is not cached.
+ *
+ * <p>
+ * Lucene never modifies a file once it is closed, so a cached page stays valid
+ * for as long as its file exists. Entries are scoped to a single
+ * {@link FDBDirectory} instance and are dropped when the directory is closed
+ * or deleted, which avoids coherency issues when an index is deleted and
+ * recreated.
+ *
+ * <p>
+ * A directory can be given a quota with
+ * {@link FDBDirectoryConfig#setPageCacheQuota(long)}; once its pages fill the
+ * quota, further pages are not cached until some of them are evicted.
+ *
+ * <p>
+ * Pages of a {@link PageStore} are cached once by content, whichever file or
+ * directory they are read from.
+ */
+public final class PageCache {
+
+    private static final int SEGMENTS = 16;
+
+    /**
+     * The number of pages of the largest size that each segment of a cache can
+     * hold, unless the cache only has one segment.
+     */
+    private static final int MIN_SEGMENT_PAGES = 4;
+
+    private static final AtomicLong OWNERS = new AtomicLong();
+
+    /**
+     * Owns the pages of {@link PageStore}s, which are keyed by content and
+     * shared by all directories. Other owners start at 1.
+     */
+    private static final long CONTENT_OWNER = 0L;
+
+    private static final class Key {
+
+        private final long owner;
+        private final long fileNumber;
+        private final long pageNumber;
+
+        private Key(final long owner, final long fileNumber, final long pageNumber) {
+            this.owner = owner;
+            this.fileNumber = fileNumber;
+            this.pageNumber = pageNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Long.hashCode(owner);
+            result = 31 * result + Long.hashCode(fileNumber);
+            result = 31 * result + Long.hashCode(pageNumber);
+            return result;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return owner == other.owner && fileNumber == other.fileNumber && pageNumber == other.pageNumber;
+        }
+
+    }
+
+    private static final class Owner {
+
+        private final AtomicLong size = new AtomicLong();
+        private volatile long quota;
+
+    }
+
+    private final class Segment {
+
+        private final LinkedHashMap<Key, byte[]> pages = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+        private long size;
+
+        private synchronized byte[] get(final Key key) {
+            return pages.get(key);
+        }
+
+        private synchronized void put(final Key key, final byte[] page) {
+            if (page.length > segmentCapacity) {
+                // It would evict every other page and then itself.
+                return;
+            }
+            final byte[] previous = pages.put(key, page);
+            if (previous != null) {
+                removed(key, previous);
+            }
+            size += page.length;
+            owner(key.owner).size.addAndGet(page.length);
+            final Iterator<Map.Entry<Key, byte[]>> it = pages.entrySet().iterator();
+            while (size > segmentCapacity && it.hasNext()) {
+                final Map.Entry<Key, byte[]> e = it.next();
+                removed(e.getKey(), e.getValue());
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+        private synchronized void invalidate(final long owner) {
+            final Iterator<Map.Entry<Key, byte[]>> it = pages.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Key, byte[]> e = it.next();
+                if (e.getKey().owner == owner) {
+                    removed(e.getKey(), e.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        private synchronized long size() {
+            return size;
+        }
+
+        private void removed(final Key key, final byte[] page) {
+            size -= page.length;
+            final Owner owner = owners.get(key.owner);
+            if (owner != null) {
+                owner.size.addAndGet(-page.length);
+            }
+        }
+
+    }
+
+    /**
+     * @return a new identifier to scope cache entries to.
+     */
+    static long newOwner() {
+        return OWNERS.incrementAndGet();
+    }
+
+    private final long capacity;
+    private final long segmentCapacity;
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final Map<Long, Owner> owners = new ConcurrentHashMap<Long, Owner>();
+
+    /**
+     * @param capacity the maximum total size of the cached pages, in bytes.
+     */
+    public PageCache(final long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        // Small caches have fewer segments, so that a segment is not too
+        // small for the pages that PageSizePolicy allows.
+        final long maxSegments = capacity / ((long) MIN_SEGMENT_PAGES * FDBUtil.MAX_VALUE_SIZE);
+        final int numSegments = maxSegments >= SEGMENTS ? SEGMENTS
+                : Math.max(1, Integer.highestOneBit((int) maxSegments));
+        this.segmentCapacity = capacity / numSegments;
+        this.segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the total size of the cached pages, in bytes.
+     */
+    public long getSize() {
+        long result = 0L;
+        for (final Segment segment : segments) {
+            result += segment.size();
+        }
+        return result;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PageCache(capacity=%d,size=%d,hits=%d,misses=%d,evictions=%d)", capacity, getSize(),
+                getHits(), getMisses(), getEvictions());
+    }
+
+    byte[] get(final long owner, final long fileNumber, final long pageNumber) {
+        final Key key = new Key(owner, fileNumber, pageNumber);
+        final byte[] result = segment(key).get(key);
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    void put(final long owner, final long fileNumber, final long pageNumber, final byte[] page) {
+        final Owner o = owner(owner);
+        if (o.quota > 0 && o.size.get() + page.length > o.quota) {
+            return;
+        }
+        final Key key = new Key(owner, fileNumber, pageNumber);
+        segment(key).put(key, page);
+    }
+
+    /**
+     * @param hash the hash of the content of a page in a {@link PageStore}.
+     */
+    byte[] getContent(final byte[] hash) {
+        return get(CONTENT_OWNER, contentKey(hash, 0), contentKey(hash, Long.BYTES));
+    }
+
+    void putContent(final byte[] hash, final byte[] page) {
+        put(CONTENT_OWNER, contentKey(hash, 0), contentKey(hash, Long.BYTES), page);
+    }
+
+    /**
+     * @param quota the maximum size of the pages of {@code owner}, or
+     *              {@code 0} for no limit.
+     */
+    void setQuota(final long owner, final long quota) {
+        owner(owner).quota = quota;
+    }
+
+    /**
+     * @return the total size of the pages of {@code owner}, in bytes.
+     */
+    long size(final long owner) {
+        final Owner result = owners.get(owner);
+        return result == null ? 0L : result.size.get();
+    }
+
+    /**
+     * Removes all pages and the quota of the given owner.
+     */
+    void invalidate(final long owner) {
+        for (final Segment segment : segments) {
+            segment.invalidate(owner);
+        }
+        owners.remove(owner);
+    }
+
+    private static long contentKey(final byte[] hash, final int offset) {
+        long result = 0L;
+        for (int i = offset; i < offset + Long.BYTES; i++) {
+            result = (result << 8) | (hash[i] & 0xFF);
+        }
+        return result;
+    }
+
+    private Owner owner(final long owner) {
+        final Owner result = owners.get(owner);
+        if (result != null) {
+            return result;
+        }
+        return owners.computeIfAbsent(owner, k -> new Owner());
+    }
+
+    private Segment segment(final Key key) {
+        final int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.store.IOContext;
+
+/**
+ * Chooses the page size of each file when it is created. The page size is
+ * recorded with the file, so it can be changed at any time without affecting
+ * existing files.
+ *
+ * <p>
+ * Small pages reduce the amount of data fetched by point lookups, while large
+ * pages reduce the number of reads needed to scan a file.
+ */
+@FunctionalInterface
+public interface PageSizePolicy {
+
+    /**
+     * Uses the page size of the directory for every file. This is the default.
+     */
+    PageSizePolicy FIXED = (name, context, defaultPageSize) -> defaultPageSize;
+
+    /**
+     * @param name            the name of the file being created.
+     * @param context         the context passed to
+     *                        {@link FDBDirectory#createOutput(String, IOContext)},
+     *                        which may be {@code null}.
+     * @param defaultPageSize the page size of the directory.
+     * @return the page size of the file, which must be positive and no larger
+     *         than the transaction size of the directory or 100,000 bytes,
+     *         the largest value that FoundationDB accepts.
+     */
+    int pageSize(String name, IOContext context, int defaultPageSize);
+
+    /**
+     * @param pageSizes the page size of each file extension, without the leading
+     *                  dot. Files with other extensions use the page size of the
+     *                  directory.
+     */
+    static PageSizePolicy byExtension(final Map<String, Integer> pageSizes) {
+        final Map<String, Integer> copy = new HashMap<String, Integer>(pageSizes);
+        return (name, context, defaultPageSize) -> {
+            final Integer result = copy.get(FDBUtil.extension(name));
+            return result == null ? defaultPageSize : result;
+        };
+    }
+
+    /**
+     * Uses {@code pageSize} for the files that Lucene mostly reads at random,
+     * i.e. the terms index and dictionary, postings with skip data, doc values,
+     * norms, points and the stored fields index, and the page size of the
+     * directory for files that are mostly read sequentially. Compound files are
+     * treated as random access as they hold small segments, where the cost of
+     * scanning with small pages is low.
+     */
+    static PageSizePolicy randomAccess(final int pageSize) {
+        final Map<String, Integer> pageSizes = new HashMap<String, Integer>();
+        for (final String extension : Arrays.asList("tip", "tim", "doc", "dvd", "nvd", "dim", "dii", "fdx", "cfs")) {
+            pageSizes.put(extension, pageSize);
+        }
+        return byExtension(pageSizes);
+    }
+
+}
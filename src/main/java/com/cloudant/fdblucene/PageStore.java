@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+/**
+ * Stores pages by the SHA-256 hash of their content, with a count of the
+ * pages of files that reference each one. Identical pages written by any
+ * directory that shares the store, such as those of copied, replicated or
+ * snapshotted files, are stored once.
+ *
+ * <p>
+ * The pages of a file written with a store hold the hash of their content
+ * instead of the content. Pages found in a store are cached in a
+ * {@link PageCache} by content, so that directories sharing both the store and
+ * the cache also share cache entries. Such entries do not count towards the
+ * page cache quota of a directory.
+ *
+ * <pre>
+ * final PageStore store = new PageStore(new Subspace(Tuple.from("pages")));
+ * final FDBDirectoryConfig config = new FDBDirectoryConfig().setPageStore(store);
+ * </pre>
+ */
+public final class PageStore {
+
+    private static final byte[] ONE = encodeCount(1L);
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Subspace subspace;
+    private final Subspace pages;
+    private final Subspace refs;
+
+    /**
+     * @param subspace the subspace to store pages under, which must not be
+     *                 used by anything else.
+     */
+    public PageStore(final Subspace subspace) {
+        this.subspace = subspace;
+        this.pages = subspace.get("page");
+        this.refs = subspace.get("refs");
+    }
+
+    public Subspace getSubspace() {
+        return subspace;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof PageStore && subspace.equals(((PageStore) obj).subspace);
+    }
+
+    @Override
+    public int hashCode() {
+        return subspace.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PageStore(subspace=%s)", subspace);
+    }
+
+    /**
+     * Writes each page to the store, unless it is already there, and its key
+     * as a reference to it.
+     *
+     * @param pageKeys the keys of the pages in their file.
+     * @param pages    the pages, which are not modified afterwards.
+     * @see #reference(Transaction, List, List)
+     */
+    void put(final Transaction txn, final List<byte[]> pageKeys, final List<byte[]> pages) {
+        final List<byte[]> hashes = new ArrayList<byte[]>(pages.size());
+        final List<byte[]> keys = new ArrayList<byte[]>(pages.size());
+        final List<CompletableFuture<byte[]>> values = new ArrayList<CompletableFuture<byte[]>>(pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            hashes.add(hash(pages.get(i)));
+            keys.add(pageKey(hashes.get(i)));
+            values.add(txn.get(keys.get(i)));
+        }
+        reference(txn, pageKeys, hashes);
+        for (int i = 0; i < pages.size(); i++) {
+            if (values.get(i).join() == null) {
+                txn.set(keys.get(i), pages.get(i));
+            }
+        }
+    }
+
+    /**
+     * Writes each hash to its page key as a reference to the page with that
+     * hash, and removes the reference the key held before, if any. Keys that
+     * already hold their hash are left alone, so running this again, e.g. when
+     * a transaction is retried after an unknown commit result, does not count
+     * a reference twice.
+     *
+     * @param pageKeys the keys of the pages in their file.
+     * @param hashes   the hashes of the pages, which must be in the store at
+     *                 commit.
+     */
+    void reference(final Transaction txn, final List<byte[]> pageKeys, final List<byte[]> hashes) {
+        final List<CompletableFuture<byte[]>> current = new ArrayList<CompletableFuture<byte[]>>(pageKeys.size());
+        for (final byte[] pageKey : pageKeys) {
+            current.add(txn.get(pageKey));
+        }
+        final List<byte[]> replaced = new ArrayList<byte[]>();
+        for (int i = 0; i < pageKeys.size(); i++) {
+            final byte[] previous = current.get(i).join();
+            final byte[] hash = hashes.get(i);
+            if (Arrays.equals(previous, hash)) {
+                continue;
+            }
+            txn.options().setNextWriteNoWriteConflictRange();
+            txn.set(pageKeys.get(i), hash);
+            txn.mutate(MutationType.ADD, refKey(hash), ONE);
+            if (previous != null) {
+                replaced.add(previous);
+            }
+        }
+        // After the new references, so that a page which is both replaced and
+        // referenced again is never removed.
+        if (!replaced.isEmpty()) {
+            release(txn, replaced);
+        }
+    }
+
+    /**
+     * @return the content of the page with the given hash, or {@code null}.
+     */
+    CompletableFuture<byte[]> get(final ReadTransaction txn, final byte[] hash) {
+        return txn.get(pageKey(hash));
+    }
+
+    /**
+     * Removes a reference to each page in {@code hashes}, and removes the pages
+     * that are no longer referenced.
+     */
+    void release(final Transaction txn, final List<byte[]> hashes) {
+        final Map<ByteBuffer, Long> counts = new LinkedHashMap<ByteBuffer, Long>();
+        for (final byte[] hash : hashes) {
+            counts.merge(ByteBuffer.wrap(hash), 1L, Long::sum);
+        }
+        final List<CompletableFuture<byte[]>> values = new ArrayList<CompletableFuture<byte[]>>(counts.size());
+        for (final ByteBuffer hash : counts.keySet()) {
+            values.add(txn.get(refKey(hash.array())));
+        }
+        int i = 0;
+        for (final Map.Entry<ByteBuffer, Long> e : counts.entrySet()) {
+            final byte[] hash = e.getKey().array();
+            final byte[] value = values.get(i++).join();
+            final long remaining = (value == null ? 0L : decodeCount(value)) - e.getValue();
+            if (remaining > 0) {
+                txn.set(refKey(hash), encodeCount(remaining));
+            } else {
+                txn.clear(refKey(hash));
+                txn.clear(pageKey(hash));
+            }
+        }
+    }
+
+    /**
+     * @return the number of references to the page with the given hash.
+     */
+    long refs(final ReadTransaction txn, final byte[] hash) {
+        final byte[] value = txn.get(refKey(hash)).join();
+        return value == null ? 0L : decodeCount(value);
+    }
+
+    static byte[] hash(final byte[] page) {
+        return SHA256.get().digest(page);
+    }
+
+    private byte[] pageKey(final byte[] hash) {
+        return pages.pack(Tuple.from(hash));
+    }
+
+    private byte[] refKey(final byte[] hash) {
+        return refs.pack(Tuple.from(hash));
+    }
+
+    /**
+     * Counts are little-endian so that they can be incremented atomically.
+     */
+    private static byte[] encodeCount(final long count) {
+        return ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(count).array();
+    }
+
+    private static long decodeCount(final byte[] value) {
+        return ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    }
+
+}
@@ -18,31 +18,66 @@ package com.cloudant.fdblucene;
 import java.util.concurrent.TimeUnit;
 import com.apple.foundationdb.Transaction;
 
+/**
+ * Reuses a read version for up to four seconds, so that most transactions do
+ * not have to ask the cluster for one. Each input or output has its own cache,
+ * so the files it reads stay visible at that version for as long as it is
+ * reused, even if they are deleted in the meantime.
+ *
+ * <p>
+ * A cache can draw its read versions from a cache shared by any number of
+ * inputs and outputs, on any number of directories of the same database. A
+ * shared read version is only used if it was requested after the cache was
+ * created: FoundationDB guarantees that such a version sees every transaction
+ * that committed before then, e.g. the one that created the file being read.
+ */
 final class ReadVersionCache implements Cloneable {
 
     private static final long MAX_AGE = TimeUnit.NANOSECONDS.convert(4, TimeUnit.SECONDS);
 
+    private final FDBDirectoryMetrics metrics;
+
+    private final ReadVersionCache shared;
+
+    private final long createdAt;
+
     private long readVersion = -1L;
 
     private long readVersionAt;
 
     public ReadVersionCache() {
+        this(FDBDirectoryMetrics.NOOP);
+    }
+
+    public ReadVersionCache(final FDBDirectoryMetrics metrics) {
+        this(metrics, null);
+    }
+
+    /**
+     * @param shared the cache to draw read versions from, or {@code null}.
+     */
+    public ReadVersionCache(final FDBDirectoryMetrics metrics, final ReadVersionCache shared) {
+        this.metrics = metrics;
+        this.shared = shared;
+        this.createdAt = System.nanoTime();
     }
 
-    public void setReadVersion(final Transaction txn) {
+    public synchronized void setReadVersion(final Transaction txn) {
         final long now = System.nanoTime();
-        if (readVersion == -1L) {
-            readVersion = txn.getReadVersion().join();
-            readVersionAt = now;
-            return;
-        }
-        final long readVersionAge = now - readVersionAt;
-        if (readVersionAge > MAX_AGE) {
-            readVersion = txn.getReadVersion().join();
-            readVersionAt = now;
-        } else {
-            txn.setReadVersion(readVersion);
+        MeteredTransactionContext.readVersionSet();
+        if (readVersion == -1L || now - readVersionAt > MAX_AGE) {
+            if (shared == null || !shared.copyTo(this, now)) {
+                readVersion = txn.getReadVersion().join();
+                readVersionAt = now;
+                metrics.readVersion(false);
+                if (shared != null) {
+                    shared.offer(readVersion, readVersionAt);
+                }
+                return;
+            }
         }
+        txn.setReadVersion(readVersion);
+        metrics.readVersion(true);
     }
 
     public ReadVersionCache clone() {
@@ -53,4 +88,20 @@ final class ReadVersionCache implements Cloneable {
       }
     }
 
+    private synchronized boolean copyTo(final ReadVersionCache cache, final long now) {
+        if (readVersion == -1L || readVersionAt - cache.createdAt < 0 || now - readVersionAt > MAX_AGE) {
+            return false;
+        }
+        cache.readVersion = readVersion;
+        cache.readVersionAt = readVersionAt;
+        return true;
+    }
+
+    private synchronized void offer(final long version, final long at) {
+        if (readVersion == -1L || at - readVersionAt > 0) {
+            readVersion = version;
+            readVersionAt = at;
+        }
+    }
+
 }
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.apple.foundationdb.ReadTransaction;
+
+/**
+ * Turns on FoundationDB transaction logging for a sample of transactions,
+ * identifying each with a formatted description.
+ *
+ * <p>
+ * The {@code trace} overloads take their arguments individually, rather than
+ * as varargs, and accept primitive longs so that nothing is allocated unless
+ * the transaction is sampled.
+ */
+final class Tracer {
+
+    /**
+     * The sampling used when none is configured: every transaction if the
+     * {@code FDB_NETWORK_OPTION_TRACE_ENABLE} environment variable is set,
+     * otherwise none.
+     */
+    static final int DEFAULT_SAMPLING = System.getenv("FDB_NETWORK_OPTION_TRACE_ENABLE") != null ? 1 : 0;
+
+    static final Tracer DISABLED = new Tracer(0);
+
+    static final Tracer DEFAULT = sampling(DEFAULT_SAMPLING);
+
+    /**
+     * @param oneIn trace one in this many transactions; {@code 0} disables
+     *              tracing and {@code 1} traces every transaction.
+     */
+    static Tracer sampling(final int oneIn) {
+        if (oneIn < 0) {
+            throw new IllegalArgumentException("oneIn cannot be negative");
+        }
+        return oneIn == 0 ? DISABLED : new Tracer(oneIn);
+    }
+
+    private final int oneIn;
+
+    private Tracer(final int oneIn) {
+        this.oneIn = oneIn;
+    }
+
+    boolean isEnabled() {
+        return oneIn != 0;
+    }
+
+    void trace(final ReadTransaction txn, final String format, final Object arg0) {
+        if (sample()) {
+            log(txn, String.format(format, arg0));
+        }
+    }
+
+    void trace(final ReadTransaction txn, final String format, final Object arg0, final Object arg1) {
+        if (sample()) {
+            log(txn, String.format(format, arg0, arg1));
+        }
+    }
+
+    void trace(final ReadTransaction txn, final String format, final Object arg0, final long arg1) {
+        if (sample()) {
+            log(txn, String.format(format, arg0, arg1));
+        }
+    }
+
+    void trace(final ReadTransaction txn, final String format, final Object arg0, final Object arg1,
+            final long arg2) {
+        if (sample()) {
+            log(txn, String.format(format, arg0, arg1, arg2));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Tracer(oneIn=%d)", oneIn);
+    }
+
+    private boolean sample() {
+        switch (oneIn) {
+        case 0:
+            return false;
+        case 1:
+            return true;
+        default:
+            return ThreadLocalRandom.current().nextInt(oneIn) == 0;
+        }
+    }
+
+    private static void log(final ReadTransaction txn, final String identifier) {
+        txn.options().setDebugTransactionIdentifier(identifier);
+        txn.options().setLogTransaction();
+    }
+
+}
@@ -20,20 +20,11 @@ import java.util.UUID;
 
 import org.apache.lucene.util.BytesRef;
 
-import com.apple.foundationdb.ReadTransaction;
 import com.apple.foundationdb.TransactionContext;
 import com.apple.foundationdb.tuple.ByteArrayUtil;
 
 class Utils {
 
-    static void trace(final ReadTransaction txn, final String format, final Object... args) {
-        if (System.getenv("FDB_NETWORK_OPTION_TRACE_ENABLE") != null) {
-            final String str = String.format(format, args);
-            txn.options().setLogTransaction();
-            txn.options().setDebugTransactionIdentifier(str);
-        }
-    }
-
     static byte[] toBytes(final BytesRef ref) {
         final byte[] result = new byte[ref.length];
         System.arraycopy(ref.bytes, ref.offset, result, 0, ref.length);
@@ -19,19 +19,17 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 
-import com.apple.foundationdb.Database;
-import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.TransactionContext;
 import com.apple.foundationdb.subspace.Subspace;
 
 public class BaseFDBTest {
 
-    protected static Database DB;
+    protected static TransactionContext DB;
     protected Subspace subspace;
 
     @BeforeClass
     public static void setupFDB() {
-        FDB.selectAPIVersion(600);
-        DB = FDB.instance().open();
+        DB = FDBTestUtil.open();
     }
 
     @Before
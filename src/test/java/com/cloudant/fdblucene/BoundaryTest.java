@@ -31,13 +31,12 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
-import com.apple.foundationdb.Database;
-import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.TransactionContext;
 
 @RunWith(Parameterized.class)
 public class BoundaryTest {
 
-    private static Database DB;
+    private static TransactionContext DB;
     private static FDBDirectory DIR;
 
     @Parameters
@@ -60,8 +59,7 @@ public class BoundaryTest {
 
     @BeforeClass
     public static void setupClass() {
-        FDB.selectAPIVersion(600);
-        DB = FDB.instance().open();
+        DB = FDBTestUtil.open();
         final Path path = FileSystems.getDefault().getPath("lucene", "test");
         DIR = FDBDirectory.open(DB, path);
     }
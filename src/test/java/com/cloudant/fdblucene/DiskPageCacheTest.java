@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class DiskPageCacheTest {
+
+    private static final Subspace SUBSPACE = new Subspace(Tuple.from("DiskPageCacheTest"));
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private MemoryTransactionContext db;
+    private Path root;
+    private DiskPageCache cache;
+    private FDBDirectoryStats stats;
+    private FDBDirectory dir;
+    private byte[] data;
+
+    @Before
+    public void setup() throws Exception {
+        db = new MemoryTransactionContext(42L);
+        root = folder.getRoot().toPath();
+        open(1_000_000);
+        data = FDBTestUtil.testArray(25_500);
+        write("foo", data);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        dir.close();
+        cache.close();
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        assertArrayEquals(data, read("foo"));
+        assertEquals(26, stats.getPagesRead());
+        assertEquals(26 * 1_008, cache.getSize());
+
+        restart(1_000_000);
+        assertEquals(26 * 1_008, cache.getSize());
+        assertArrayEquals(data, read("foo"));
+        assertEquals(0, stats.getPagesRead());
+        assertEquals(26, stats.getCacheHits());
+    }
+
+    @Test
+    public void survivesCrash() throws Exception {
+        read("foo");
+        // The cache is reopened without being closed.
+        final DiskPageCache crashed = cache;
+        dir.close();
+        try {
+            open(1_000_000);
+        } finally {
+            crashed.close();
+        }
+        assertEquals(26 * 1_008, cache.getSize());
+        assertArrayEquals(data, read("foo"));
+        assertEquals(0, stats.getPagesRead());
+    }
+
+    @Test
+    public void recreatedDirectoryIsNotStale() throws Exception {
+        read("foo");
+        dir.delete();
+        assertEquals(0, cache.getSize());
+        final byte[] other = FDBTestUtil.testArray(25_500);
+        other[0]++;
+        write("foo", other);
+
+        restart(1_000_000);
+        assertArrayEquals(other, read("foo"));
+        assertEquals(26, stats.getPagesRead());
+    }
+
+    @Test
+    public void deletedByAnotherInstance() throws Exception {
+        read("foo");
+        final FDBDirectory other = FDBDirectory.open(db, SUBSPACE,
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000));
+        final byte[] recreated = FDBTestUtil.testArray(25_500);
+        recreated[0]++;
+        try {
+            other.delete();
+            try (final IndexOutput out = other.createOutput("foo", null)) {
+                out.writeBytes(recreated, recreated.length);
+            }
+        } finally {
+            other.close();
+        }
+        assertArrayEquals(recreated, read("foo"));
+        assertEquals(52, stats.getPagesRead());
+    }
+
+    @Test
+    public void deleteFile() throws Exception {
+        read("foo");
+        dir.deleteFile("foo");
+        assertEquals(0, cache.getSize());
+        try (final Stream<Path> files = Files.walk(root)) {
+            assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFiles() throws Exception {
+        restart(30_000);
+        write("bar", data);
+        read("foo");
+        read("bar");
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getSize() <= 30_000);
+        read("bar");
+        assertEquals(52, stats.getPagesRead());
+    }
+
+    @Test
+    public void keepsRecentlyReadFiles() throws Exception {
+        restart(60_000);
+        write("bar", data);
+        write("baz", data);
+        read("foo");
+        read("bar");
+        read("foo");
+        // Evicts bar, which was used less recently than foo.
+        read("baz");
+        assertEquals(1, cache.getEvictions());
+        read("foo");
+        assertEquals(78, stats.getPagesRead());
+        read("bar");
+        assertEquals(104, stats.getPagesRead());
+    }
+
+    @Test
+    public void boundsOpenFiles() throws Exception {
+        dir.close();
+        cache.close();
+        cache = new DiskPageCache(root, 1_000_000, 1);
+        stats = new FDBDirectoryStats();
+        dir = FDBDirectory.open(db, SUBSPACE,
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000).setDiskPageCache(cache).setMetrics(stats));
+        write("bar", data);
+        try (final IndexInput foo = dir.openInput("foo", null); final IndexInput bar = dir.openInput("bar", null)) {
+            for (int i = 0; i < 2; i++) {
+                final byte[] fromFoo = new byte[data.length];
+                final byte[] fromBar = new byte[data.length];
+                foo.seek(0);
+                bar.seek(0);
+                for (int j = 0; j < data.length; j += 1_000) {
+                    foo.readBytes(fromFoo, j, Math.min(1_000, data.length - j));
+                    bar.readBytes(fromBar, j, Math.min(1_000, data.length - j));
+                    assertEquals(1, cache.getOpenFiles());
+                }
+                assertArrayEquals(data, fromFoo);
+                assertArrayEquals(data, fromBar);
+            }
+        }
+        assertEquals(52, stats.getPagesRead());
+    }
+
+    @Test
+    public void corruptPageIsMissing() throws Exception {
+        read("foo");
+        restart(1_000_000);
+        try (final Stream<Path> files = Files.walk(root)) {
+            final Path path = files.filter(Files::isRegularFile).findFirst().get();
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                // The first byte of the first page.
+                channel.write(ByteBuffer.wrap(new byte[] { (byte) ~data[0] }), 36 + 8);
+            }
+        }
+        assertArrayEquals(data, read("foo"));
+        assertEquals(1, stats.getPagesRead());
+    }
+
+    private void open(final long capacity) throws Exception {
+        cache = new DiskPageCache(root, capacity);
+        stats = new FDBDirectoryStats();
+        dir = FDBDirectory.open(db, SUBSPACE,
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000).setDiskPageCache(cache).setMetrics(stats));
+    }
+
+    private void restart(final long capacity) throws Exception {
+        dir.close();
+        cache.close();
+        open(capacity);
+    }
+
+    private void write(final String name, final byte[] bytes) throws Exception {
+        try (final IndexOutput out = dir.createOutput(name, null)) {
+            out.writeBytes(bytes, bytes.length);
+        }
+    }
+
+    private byte[] read(final String name) throws Exception {
+        try (final IndexInput in = dir.openInput(name, null)) {
+            final byte[] result = new byte[(int) in.length()];
+            in.readBytes(result, 0, result.length);
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.BaseCompoundFormatTestCase;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.TestUtil;
+import org.junit.BeforeClass;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakScope;
+
+@ThreadLeakScope(ThreadLeakScope.Scope.NONE)
+public class FDBCompoundFormatTest extends BaseCompoundFormatTestCase {
+
+    private static TransactionContext DB;
+
+    @BeforeClass
+    public static void setupFDB() {
+        DB = FDBTestUtil.open();
+    }
+
+    @Override
+    protected Codec getCodec() {
+        return new FDBCodec();
+    }
+
+    public void testFDBCompoundFileReferencesPages() throws Exception {
+        final Subspace subspace = new Subspace(Tuple.from("FDBCompoundFormatTest", UUID.randomUUID().toString()));
+        final FDBDirectoryStats stats = new FDBDirectoryStats();
+        final FDBDirectory dir = FDBDirectory.open(DB, subspace,
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000).setMetrics(stats));
+        try {
+            final SegmentInfo si = newSegmentInfo(dir, "_123");
+            createSequenceFile(dir, "_123.foo", (byte) 0, 12_345, si.getId(), "suffix");
+            createSequenceFile(dir, "_123.bar", (byte) 3, 5_000, si.getId(), "suffix");
+            si.setFiles(Arrays.asList("_123.foo", "_123.bar"));
+
+            final long pagesWritten = stats.getPagesWritten();
+            si.getCodec().compoundFormat().write(dir, si, IOContext.DEFAULT);
+            // Only the entries file is written.
+            assertEquals(1, stats.getPagesWritten() - pagesWritten);
+            assertEquals(dir.fileLength("_123.foo") + dir.fileLength("_123.bar"), dir.fileLength("_123.cfs"));
+
+            final byte[] foo = readAll(dir, "_123.foo");
+            final byte[] bar = readAll(dir, "_123.bar");
+            dir.deleteFile("_123.foo");
+            dir.deleteFile("_123.bar");
+
+            try (final Directory cfs = si.getCodec().compoundFormat().getCompoundReader(dir, si, IOContext.DEFAULT)) {
+                assertArrayEquals(foo, readAll(cfs, "_123.foo"));
+                assertArrayEquals(bar, readAll(cfs, "_123.bar"));
+            }
+
+            final byte[] all = readAll(dir, "_123.cfs");
+            assertArrayEquals(bar, Arrays.copyOfRange(all, 0, bar.length));
+            assertArrayEquals(foo, Arrays.copyOfRange(all, bar.length, all.length));
+
+            for (final String name : dir.listAll()) {
+                dir.deleteFile(name);
+            }
+            assertEquals(0, countPages(subspace));
+        } finally {
+            dir.delete();
+            dir.close();
+        }
+    }
+
+    public void testFDBIndexWithCompoundFiles() throws Exception {
+        final Subspace subspace = new Subspace(Tuple.from("FDBCompoundFormatTest", UUID.randomUUID().toString()));
+        final FDBDirectory dir = FDBDirectory.open(DB, subspace,
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000));
+        try {
+            final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+            mergePolicy.setNoCFSRatio(1.0);
+            final IndexWriterConfig config = new IndexWriterConfig().setCodec(getCodec()).setUseCompoundFile(true)
+                    .setMergePolicy(mergePolicy).setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+            try (final IndexWriter writer = new IndexWriter(dir, config)) {
+                for (int i = 0; i < 500; i++) {
+                    final Document doc = new Document();
+                    doc.add(new StringField("_id", "doc" + i, Store.YES));
+                    writer.addDocument(doc);
+                    if (i % 100 == 99) {
+                        writer.commit();
+                    }
+                }
+                writer.forceMerge(1);
+            }
+
+            final List<String> files = Arrays.asList(dir.listAll());
+            assertTrue(files.toString(), files.stream().anyMatch(name -> name.endsWith(".cfs")));
+            assertFalse(files.toString(), files.stream().anyMatch(name -> name.endsWith(".fdt")));
+            try (final IndexReader reader = DirectoryReader.open(dir)) {
+                assertEquals(500, reader.numDocs());
+                assertEquals(1, new IndexSearcher(reader).count(new TermQuery(new Term("_id", "doc42"))));
+            }
+            TestUtil.checkIndex(dir);
+        } finally {
+            dir.delete();
+            dir.close();
+        }
+    }
+
+    private static byte[] readAll(final Directory dir, final String name) throws IOException {
+        try (final IndexInput in = dir.openInput(name, IOContext.DEFAULT)) {
+            final byte[] result = new byte[(int) in.length()];
+            in.readBytes(result, 0, result.length);
+            return result;
+        }
+    }
+
+    /**
+     * @return the number of pages of all files in {@code subspace}.
+     */
+    private static int countPages(final Subspace subspace) {
+        final List<KeyValue> keyvalues = DB.read(txn -> {
+            return txn.getRange(subspace.range()).asList().join();
+        });
+        int result = 0;
+        for (final KeyValue kv : keyvalues) {
+            if (subspace.unpack(kv.getKey()).get(0) instanceof Long) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class FDBDirectoryManagerTest {
+
+    private MemoryTransactionContext db;
+    private PageCache cache;
+    private FDBDirectoryStats stats;
+    private FDBDirectoryManager manager;
+
+    @Before
+    public void setup() {
+        db = new MemoryTransactionContext(42L);
+        cache = new PageCache(1_000_000);
+        stats = new FDBDirectoryStats();
+        manager = new FDBDirectoryManager(db, new Subspace(Tuple.from("FDBDirectoryManagerTest")),
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000).setPageCache(cache)
+                        .setPageCacheQuota(10_000).setMetrics(stats));
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        manager.close();
+    }
+
+    @Test
+    public void acquireAndRelease() throws Exception {
+        final FDBDirectory dir = manager.acquire("a");
+        assertSame(dir, manager.acquire("a"));
+        assertEquals(1, manager.getActiveDirectories());
+        manager.release("a");
+        manager.release("a");
+        assertEquals(0, manager.getActiveDirectories());
+        assertEquals(1, manager.getIdleDirectories());
+        assertSame(dir, manager.acquire("a"));
+        manager.release("a");
+        try {
+            manager.release("a");
+            fail("expected IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected.
+        }
+    }
+
+    @Test
+    public void evictsIdleDirectories() throws Exception {
+        manager.setMaxIdleDirectories(2);
+        final FDBDirectory a = manager.acquire("a");
+        write(a, "foo", 5_000);
+        manager.release("a");
+        for (final String name : new String[] { "b", "c" }) {
+            manager.acquire(name);
+            manager.release(name);
+        }
+        assertEquals(2, manager.getIdleDirectories());
+        final FDBDirectory reopened = manager.acquire("a");
+        assertNotSame(a, reopened);
+        assertEquals(5_000, reopened.fileLength("foo"));
+        manager.release("a");
+
+        manager.setIdleTimeout(0, TimeUnit.SECONDS);
+        manager.evictIdle();
+        assertEquals(0, manager.getIdleDirectories());
+    }
+
+    @Test
+    public void sharedReadVersions() throws Exception {
+        for (final String name : new String[] { "a", "b" }) {
+            write(manager.acquire(name), "foo", 5_000);
+        }
+        // Inputs reuse read versions requested after they were opened.
+        try (final IndexInput a = manager.acquire("a").openInput("foo", null);
+                final IndexInput b = manager.acquire("b").openInput("foo", null)) {
+            final long before = stats.getReadVersions();
+            a.readBytes(new byte[5_000], 0, 5_000);
+            b.readBytes(new byte[5_000], 0, 5_000);
+            assertEquals(1, stats.getReadVersions() - before);
+        }
+    }
+
+    @Test
+    public void pageCacheQuota() throws Exception {
+        final FDBDirectory dir = manager.acquire("a");
+        write(dir, "foo", 25_000);
+        read(dir, "foo");
+        assertEquals(10_000, cache.getSize());
+        manager.release("a");
+    }
+
+    @Test
+    public void deleteAcquired() throws Exception {
+        write(manager.acquire("a"), "foo", 5_000);
+        try {
+            manager.delete("a");
+            fail("expected IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected.
+        }
+        manager.release("a");
+        manager.delete("a");
+        assertEquals(0, manager.getIdleDirectories());
+        assertEquals(0, manager.acquire("a").listAll().length);
+        assertTrue(cache.getSize() == 0);
+    }
+
+    @Test
+    public void acquireWaitsForDelete() throws Exception {
+        final CountDownLatch clearing = new CountDownLatch(1);
+        final CountDownLatch commit = new CountDownLatch(1);
+        // Holds the delete's transaction open until the test lets it commit.
+        final TransactionContext txc = new TransactionContext() {
+            @Override
+            public <T> T run(final Function<? super Transaction, T> retryable) {
+                return db.run(txn -> {
+                    final T result = retryable.apply(txn);
+                    if (Thread.currentThread().getName().equals("deleter")) {
+                        clearing.countDown();
+                        try {
+                            commit.await();
+                        } catch (final InterruptedException e) {
+                            throw new ThreadInterruptedException(e);
+                        }
+                    }
+                    return result;
+                });
+            }
+
+            @Override
+            public <T> CompletableFuture<T> runAsync(
+                    final Function<? super Transaction, ? extends CompletableFuture<T>> retryable) {
+                return db.runAsync(retryable);
+            }
+
+            @Override
+            public <T> T read(final Function<? super ReadTransaction, T> retryable) {
+                return db.read(retryable);
+            }
+
+            @Override
+            public <T> CompletableFuture<T> readAsync(
+                    final Function<? super ReadTransaction, ? extends CompletableFuture<T>> retryable) {
+                return db.readAsync(retryable);
+            }
+
+            @Override
+            public Executor getExecutor() {
+                return db.getExecutor();
+            }
+        };
+        try (final FDBDirectoryManager manager = new FDBDirectoryManager(txc,
+                new Subspace(Tuple.from("FDBDirectoryManagerTest")),
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000))) {
+            write(manager.acquire("a"), "foo", 5_000);
+            manager.release("a");
+            final FutureTask<Void> delete = new FutureTask<Void>(() -> {
+                manager.delete("a");
+                return null;
+            });
+            new Thread(delete, "deleter").start();
+            clearing.await();
+            final FutureTask<FDBDirectory> acquire = new FutureTask<FDBDirectory>(() -> manager.acquire("a"));
+            new Thread(acquire).start();
+            Thread.sleep(100);
+            assertFalse(acquire.isDone());
+
+            commit.countDown();
+            delete.get();
+            final FDBDirectory dir = acquire.get();
+            assertEquals(0, dir.listAll().length);
+            write(dir, "bar", 5_000);
+            assertArrayEquals(new String[] { "bar" }, dir.listAll());
+            manager.release("a");
+        }
+    }
+
+    private static void write(final FDBDirectory dir, final String name, final int length) throws Exception {
+        final byte[] data = FDBTestUtil.testArray(length);
+        try (final IndexOutput out = dir.createOutput(name, null)) {
+            out.writeBytes(data, data.length);
+        }
+    }
+
+    private static void read(final FDBDirectory dir, final String name) throws Exception {
+        try (final IndexInput in = dir.openInput(name, null)) {
+            in.readBytes(new byte[(int) in.length()], 0, (int) in.length());
+        }
+    }
+
+}
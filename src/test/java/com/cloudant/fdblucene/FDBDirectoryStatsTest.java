@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class FDBDirectoryStatsTest {
+
+    private static TransactionContext DB;
+
+    @BeforeClass
+    public static void setupFDB() {
+        DB = FDBTestUtil.open();
+    }
+
+    private FDBDirectoryStats stats;
+    private FDBDirectory dir;
+
+    @Before
+    public void setupDir() {
+        stats = new FDBDirectoryStats();
+        final Subspace subspace = new Subspace(Tuple.from("FDBDirectoryStatsTest", UUID.randomUUID().toString()));
+        dir = FDBDirectory.open(DB, subspace,
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000).setMetrics(stats));
+    }
+
+    @After
+    public void cleanupDir() throws Exception {
+        dir.delete();
+        dir.close();
+    }
+
+    @Test
+    public void pagesAreCountedByExtension() throws Exception {
+        final byte[] expected = FDBTestUtil.testArray(25_500);
+        try (final IndexOutput out = dir.createOutput("_0.doc", null)) {
+            out.writeBytes(expected, expected.length);
+        }
+
+        final FDBDirectoryStats.FileStats doc = stats.getFileStats().get("doc");
+        assertEquals(26, doc.getPagesWritten());
+        assertEquals(25_500, doc.getBytesWritten());
+        assertEquals(3, doc.getFlushLatency().getCount());
+
+        try (final IndexInput in = dir.openInput("_0.doc", null)) {
+            in.readBytes(new byte[expected.length], 0, expected.length);
+        }
+        assertEquals(26, doc.getPagesRead());
+        assertEquals(25_500, doc.getBytesRead());
+        assertEquals(26, stats.getPagesRead());
+
+        assertEquals(1, stats.getMetadataLatency().get("createOutput").getCount());
+        assertEquals(1, stats.getMetadataLatency().get("openInput").getCount());
+        assertTrue(stats.getTransactions() > 26);
+        assertTrue(stats.getReadVersions() > 0);
+        assertTrue(stats.getCachedReadVersions() > 0);
+    }
+
+    @Test
+    public void metadataReadVersionsAreCounted() throws Exception {
+        try (final IndexOutput out = dir.createOutput("_0.doc", null)) {
+            out.writeBytes(new byte[10], 10);
+        }
+        final long readVersions = stats.getReadVersions();
+        final long cachedReadVersions = stats.getCachedReadVersions();
+        dir.listAll();
+        dir.fileLength("_0.doc");
+        dir.deleteFile("_0.doc");
+        assertEquals(3, stats.getReadVersions() - readVersions);
+        assertEquals(cachedReadVersions, stats.getCachedReadVersions());
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        final FDBDirectoryStats.Histogram histogram = new FDBDirectoryStats.Histogram();
+        assertEquals(0, histogram.getPercentileNanos(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1_000L);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100_000, histogram.getMaxNanos());
+        final long p50 = histogram.getPercentileNanos(50);
+        assertTrue(p50 >= 50_000 && p50 < 100_000);
+        assertEquals(100_000, histogram.getPercentileNanos(99));
+    }
+
+}
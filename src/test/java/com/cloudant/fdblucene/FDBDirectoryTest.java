@@ -22,19 +22,17 @@ import org.apache.lucene.store.BaseDirectoryTestCase;
 import org.apache.lucene.store.Directory;
 import org.junit.BeforeClass;
 
-import com.apple.foundationdb.Database;
-import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.TransactionContext;
 import com.carrotsearch.randomizedtesting.annotations.ThreadLeakScope;
 
 @ThreadLeakScope(ThreadLeakScope.Scope.NONE)
 public class FDBDirectoryTest extends BaseDirectoryTestCase {
 
-    private static Database DB;
+    private static TransactionContext DB;
 
     @BeforeClass
     public static void setup() {
-        FDB.selectAPIVersion(600);
-        DB = FDB.instance().open();
+        DB = FDBTestUtil.open();
     }
 
     @Override
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.TestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class FDBExporterTest {
+
+    private static TransactionContext DB;
+
+    @BeforeClass
+    public static void setupFDB() {
+        DB = FDBTestUtil.open();
+    }
+
+    private String name;
+    private Path path;
+    private FDBDirectoryStats stats;
+    private ExecutorService executor;
+    private FDBDirectory dir;
+
+    @Before
+    public void setup() throws Exception {
+        name = UUID.randomUUID().toString();
+        path = Files.createTempDirectory("FDBExporterTest");
+        stats = new FDBDirectoryStats();
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        executor.shutdown();
+        if (dir != null) {
+            dir.delete();
+            dir.close();
+        }
+        IOUtils.rm(path);
+    }
+
+    @Test
+    public void exportIndex() throws Exception {
+        dir = open(new FDBDirectoryConfig());
+        try (final IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig().setUseCompoundFile(false))) {
+            addDocuments(writer, 0, 500);
+            final FDBExporter exporter = new FDBExporter(dir, path, executor);
+            assertEquals(SegmentInfos.getLastCommitGeneration(dir), exporter.exportIndex());
+            assertExported(500);
+            assertTrue(stats.getPagesRead() > 0);
+
+            // Already exported.
+            final Map<String, FileTime> modified = lastModified();
+            exporter.exportIndex();
+            assertEquals(modified, lastModified());
+            final long pagesRead = stats.getPagesRead();
+
+            // Only the new segments are exported.
+            addDocuments(writer, 500, 600);
+            exporter.exportIndex();
+            assertExported(600);
+            assertTrue(stats.getPagesRead() - pagesRead < pagesRead);
+        }
+    }
+
+    @Test
+    public void exportCompoundAndStoredFiles() throws Exception {
+        final PageStore store = new PageStore(new Subspace(Tuple.from("FDBExporterTest", name, "store")));
+        dir = open(new FDBDirectoryConfig().setPageStore(store));
+        try (final IndexWriter writer = new IndexWriter(dir,
+                new IndexWriterConfig().setCodec(new FDBCodec()).setUseCompoundFile(true))) {
+            addDocuments(writer, 0, 500);
+            new FDBExporter(dir, path, executor).exportIndex();
+            assertExported(500);
+        }
+    }
+
+    @Test
+    public void throttledExport() throws Exception {
+        final IOThrottle throttle = new IOThrottle(50_000, IOThrottle.UNLIMITED);
+        dir = open(new FDBDirectoryConfig());
+        try (final IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+            addDocuments(writer, 0, 2_000);
+            new FDBExporter(dir, path, executor, throttle).exportIndex();
+            assertExported(2_000);
+            assertTrue(throttle.getThrottled() > 0);
+        }
+    }
+
+    @Test
+    public void otherHolderUnpinsDuringExport() throws Exception {
+        dir = open(new FDBDirectoryConfig());
+        try (final IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+            addDocuments(writer, 0, 500);
+            final long generation = SegmentInfos.getLastCommitGeneration(dir);
+            dir.pinCommit(generation);
+            final AtomicBoolean unpinned = new AtomicBoolean();
+            final Executor hook = command -> {
+                if (unpinned.compareAndSet(false, true)) {
+                    // The writer deletes the files of the commit and the other
+                    // holder releases it.
+                    try {
+                        writer.forceMerge(1);
+                        writer.commit();
+                        dir.unpinCommit(generation);
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                executor.execute(command);
+            };
+            assertEquals(generation, new FDBExporter(dir, path, hook).exportIndex());
+            try (final Directory fs = FSDirectory.open(path);
+                    final IndexReader reader = DirectoryReader.open(fs)) {
+                assertEquals(500, reader.numDocs());
+            }
+            assertEquals(0, dir.listPinnedCommits().length);
+        }
+    }
+
+    @Test(expected = IndexNotFoundException.class)
+    public void emptyDirectory() throws Exception {
+        dir = open(new FDBDirectoryConfig());
+        new FDBExporter(dir, path, executor).exportIndex();
+    }
+
+    private FDBDirectory open(final FDBDirectoryConfig config) {
+        return FDBDirectory.open(DB, new Subspace(Tuple.from("FDBExporterTest", name, "dir")),
+                config.setPageSize(100).setTxnSize(1_000).setMetrics(stats));
+    }
+
+    private static void addDocuments(final IndexWriter writer, final int from, final int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            final Document doc = new Document();
+            doc.add(new StringField("_id", "doc" + i, Store.YES));
+            doc.add(new TextField("body", "hello number " + i, Store.YES));
+            writer.addDocument(doc);
+            if (i % 250 == 249) {
+                writer.commit();
+            }
+        }
+        writer.commit();
+    }
+
+    /**
+     * Asserts that the local copy is a valid index of the latest commit of
+     * the directory, with identical files.
+     */
+    private void assertExported(final int numDocs) throws IOException {
+        try (final Directory fs = FSDirectory.open(path)) {
+            final SegmentInfos infos = SegmentInfos.readLatestCommit(dir);
+            assertEquals(infos.getGeneration(), SegmentInfos.getLastCommitGeneration(fs));
+            for (final String file : infos.files(true)) {
+                assertArrayEquals(file, readAll(dir, file), readAll(fs, file));
+            }
+            try (final IndexReader reader = DirectoryReader.open(fs)) {
+                assertEquals(numDocs, reader.numDocs());
+            }
+            TestUtil.checkIndex(fs);
+        }
+    }
+
+    private Map<String, FileTime> lastModified() throws IOException {
+        final Map<String, FileTime> result = new HashMap<String, FileTime>();
+        for (final String file : path.toFile().list()) {
+            result.put(file, Files.getLastModifiedTime(path.resolve(file)));
+        }
+        return result;
+    }
+
+    private static byte[] readAll(final Directory dir, final String name) throws IOException {
+        try (final IndexInput in = dir.openInput(name, IOContext.READONCE)) {
+            final byte[] result = new byte[(int) in.length()];
+            in.readBytes(result, 0, result.length);
+            return result;
+        }
+    }
+
+}
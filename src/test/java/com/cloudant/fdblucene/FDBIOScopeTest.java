@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class FDBIOScopeTest {
+
+    private static TransactionContext DB;
+
+    @BeforeClass
+    public static void setupFDB() {
+        DB = FDBTestUtil.open();
+    }
+
+    private FDBDirectory dir;
+
+    @Before
+    public void setupDir() throws Exception {
+        final Subspace subspace = new Subspace(Tuple.from("FDBIOScopeTest", UUID.randomUUID().toString()));
+        dir = FDBDirectory.open(DB, subspace, new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000));
+        final byte[] data = FDBTestUtil.testArray(5_500);
+        try (final IndexOutput out = dir.createOutput("foo", null)) {
+            out.writeBytes(data, data.length);
+        }
+    }
+
+    @After
+    public void cleanupDir() throws Exception {
+        assertNull(FDBIOScope.current());
+        dir.delete();
+        dir.close();
+    }
+
+    @Test
+    public void readsOutsideScopeAreNotCounted() throws Exception {
+        final FDBIOScope scope = FDBIOScope.open();
+        scope.close();
+        readAll();
+        assertEquals(0, scope.getPagesRead());
+    }
+
+    @Test
+    public void nestedScopes() throws Exception {
+        try (final FDBIOScope outer = FDBIOScope.open()) {
+            readAll();
+            try (final FDBIOScope inner = FDBIOScope.open()) {
+                assertSame(inner, FDBIOScope.current());
+                readAll();
+                assertEquals(6, inner.getPagesRead());
+                assertEquals(5_500, inner.getBytesRead());
+            }
+            assertSame(outer, FDBIOScope.current());
+            assertEquals(12, outer.getPagesRead());
+            assertEquals(12, outer.getFiles().get("foo").getPagesRead());
+            assertTrue(outer.getReadNanos() > 0);
+        }
+    }
+
+    @Test
+    public void scopesMustBeClosedInOrder() throws Exception {
+        final FDBIOScope outer = FDBIOScope.open();
+        final FDBIOScope inner = FDBIOScope.open();
+        try {
+            outer.close();
+            fail("expected IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected.
+        }
+        inner.close();
+        outer.close();
+    }
+
+    @Test
+    public void wrappedExecutor() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (final FDBIOScope scope = FDBIOScope.open()) {
+            scope.wrap(executor).execute(() -> {
+                try {
+                    readAll();
+                } catch (final Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(6, scope.getPagesRead());
+        }
+    }
+
+    @Test
+    public void search() throws Exception {
+        final IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setUseCompoundFile(true);
+        try (final IndexWriter writer = new IndexWriter(dir, config)) {
+            // Enough documents that the lookup needs pages that opening the
+            // reader did not load.
+            for (int i = 0; i < 5_000; i++) {
+                final Document doc = new Document();
+                doc.add(new StringField("_id", "doc" + i, Store.YES));
+                writer.addDocument(doc);
+            }
+        }
+
+        try (final DirectoryReader reader = DirectoryReader.open(dir)) {
+            final IndexSearcher searcher = new IndexSearcher(reader);
+            try (final FDBIOScope scope = FDBIOScope.open()) {
+                assertEquals(1, searcher.count(new TermQuery(new Term("_id", "doc42"))));
+                assertTrue(scope.getPagesRead() > 0);
+                assertFalse(scope.getFiles().isEmpty());
+                for (final String name : scope.getFiles().keySet()) {
+                    assertFalse(name, name.endsWith(".cfs"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void clonesShareLoadedPages() throws Exception {
+        try (final IndexInput in = dir.openInput("foo", null); final FDBIOScope scope = FDBIOScope.open()) {
+            in.seek(1_500);
+            final byte expected = in.readByte();
+            final IndexInput clone = in.clone();
+            assertEquals(1_501, clone.getFilePointer());
+            clone.seek(1_500);
+            assertEquals(expected, clone.readByte());
+            assertEquals(in.readLong(), clone.readLong());
+            assertEquals(1, scope.getPagesRead());
+        }
+    }
+
+    private void readAll() throws Exception {
+        try (final IndexInput in = dir.openInput("foo", null)) {
+            in.readBytes(new byte[(int) in.length()], 0, (int) in.length());
+        }
+    }
+
+}
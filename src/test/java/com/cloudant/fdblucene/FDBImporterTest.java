@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.TestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class FDBImporterTest {
+
+    private static TransactionContext DB;
+
+    @BeforeClass
+    public static void setupFDB() {
+        DB = FDBTestUtil.open();
+    }
+
+    private Path path;
+    private FDBDirectoryStats stats;
+    private FDBDirectory dir;
+    private ExecutorService executor;
+
+    @Before
+    public void setup() throws Exception {
+        path = Files.createTempDirectory("FDBImporterTest");
+        try (final Directory fs = FSDirectory.open(path);
+                final IndexWriter writer = new IndexWriter(fs, new IndexWriterConfig().setUseCompoundFile(false))) {
+            for (int i = 0; i < 1_000; i++) {
+                final Document doc = new Document();
+                doc.add(new StringField("_id", "doc" + i, Store.YES));
+                doc.add(new TextField("body", "hello number " + i, Store.YES));
+                writer.addDocument(doc);
+                if (i % 250 == 249) {
+                    writer.commit();
+                }
+            }
+        }
+        stats = new FDBDirectoryStats();
+        dir = FDBDirectory.open(DB, new Subspace(Tuple.from("FDBImporterTest", UUID.randomUUID().toString())),
+                new FDBDirectoryConfig().setPageSize(100).setTxnSize(1_000).setMetrics(stats));
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        executor.shutdown();
+        dir.delete();
+        dir.close();
+        IOUtils.rm(path);
+    }
+
+    @Test
+    public void importIndex() throws Exception {
+        final long generation = new FDBImporter(path, dir, executor).importIndex();
+        assertEquals(generation, SegmentInfos.getLastCommitGeneration(dir));
+        assertNumDocs(1_000);
+        TestUtil.checkIndex(dir);
+
+        // Importing again writes nothing.
+        final long pagesWritten = stats.getPagesWritten();
+        assertEquals(generation, new FDBImporter(path, dir, executor).importIndex());
+        assertEquals(pagesWritten, stats.getPagesWritten());
+        assertNumDocs(1_000);
+    }
+
+    @Test
+    public void resumeImport() throws Exception {
+        final AtomicInteger submitted = new AtomicInteger();
+        try {
+            new FDBImporter(path, dir, command -> {
+                if (submitted.incrementAndGet() > 20) {
+                    throw new RejectedExecutionException();
+                }
+                executor.execute(command);
+            }).importIndex();
+            fail("the import should fail");
+        } catch (final IOException e) {
+            // Expected.
+        }
+        assertEquals(-1, SegmentInfos.getLastCommitGeneration(dir));
+        final long pagesWritten = stats.getPagesWritten();
+        assertTrue(pagesWritten > 0);
+
+        new FDBImporter(path, dir, executor).importIndex();
+        assertNumDocs(1_000);
+        TestUtil.checkIndex(dir);
+
+        long pages = 0;
+        for (final String name : dir.listAll()) {
+            pages += (dir.fileLength(name) + 99) / 100;
+        }
+        // The chunks written by the first attempt were not written again.
+        assertEquals(pages, stats.getPagesWritten());
+    }
+
+    @Test
+    public void corruptFileIsNotImported() throws Exception {
+        final String fdt = Arrays.stream(path.toFile().list()).filter(name -> name.endsWith(".fdt")).findFirst()
+                .get();
+        try (final RandomAccessFile file = new RandomAccessFile(path.resolve(fdt).toFile(), "rw")) {
+            final long pos = file.length() / 2;
+            file.seek(pos);
+            final int b = file.read();
+            file.seek(pos);
+            file.write(b ^ 0xFF);
+        }
+        try {
+            new FDBImporter(path, dir, executor).importIndex();
+            fail("the import should fail");
+        } catch (final CorruptIndexException e) {
+            // Expected.
+        }
+        assertEquals(-1, SegmentInfos.getLastCommitGeneration(dir));
+    }
+
+    @Test
+    public void corruptCopyIsNotPublished() throws Exception {
+        final String fdt = Arrays.stream(path.toFile().list()).filter(name -> name.endsWith(".fdt")).findFirst()
+                .get();
+        // A copy of the same length and checksum, which the import skips.
+        final byte[] bytes = Files.readAllBytes(path.resolve(fdt));
+        bytes[bytes.length / 2] ^= 0xFF;
+        try (final IndexOutput out = dir.createOutput(fdt, IOContext.DEFAULT)) {
+            out.writeBytes(bytes, bytes.length);
+        }
+        try {
+            new FDBImporter(path, dir, executor).importIndex();
+            fail("the import should fail");
+        } catch (final CorruptIndexException e) {
+            // Expected.
+        }
+        assertEquals(-1, SegmentInfos.getLastCommitGeneration(dir));
+    }
+
+    private void assertNumDocs(final int numDocs) throws IOException {
+        try (final IndexReader reader = DirectoryReader.open(dir)) {
+            assertEquals(numDocs, reader.numDocs());
+        }
+    }
+
+}
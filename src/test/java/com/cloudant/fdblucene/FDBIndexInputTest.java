@@ -1,6 +1,8 @@
 package com.cloudant.fdblucene;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
@@ -171,4 +173,54 @@ public class FDBIndexInputTest extends BaseFDBTest {
     }
   }
 
+  @Test
+  public void testReadPrimitives() throws Exception {
+    final String msg = String.format("off=%d, length=%d, pageSize=%d", off, length, pageSize);
+    try (final IndexInput in =
+        new FDBIndexInput("foo", DB, subspace, "BAR", off, length, pageSize)) {
+      // Every size of value, so that values cross page boundaries.
+      final int[] sizes = {Byte.BYTES, Short.BYTES, Integer.BYTES, Long.BYTES};
+      for (int i = 0; length - in.getFilePointer() >= Long.BYTES; i++) {
+        final long pos = in.getFilePointer();
+        final int size = sizes[i % sizes.length];
+        final long actual;
+        switch (size) {
+          case Byte.BYTES:
+            actual = in.readByte();
+            break;
+          case Short.BYTES:
+            actual = in.readShort();
+            break;
+          case Integer.BYTES:
+            actual = in.readInt();
+            break;
+          default:
+            actual = in.readLong();
+        }
+        assertEquals(msg, expected(pos, size), actual);
+      }
+      while (in.getFilePointer() < length) {
+        assertEquals(msg, expected(in.getFilePointer(), Byte.BYTES), in.readByte());
+      }
+      try {
+        in.readByte();
+        fail("expected EOFException");
+      } catch (final EOFException e) {
+        // expected.
+      }
+    }
+  }
+
+  /**
+   * @return the big-endian value of {@code size} bytes at {@code pos} in the input, sign-extended.
+   */
+  private long expected(final long pos, final int size) {
+    long result = 0L;
+    for (int i = 0; i < size; i++) {
+      result = (result << 8) | (FDBUtil.posToPage(off + pos + i, pageSize) % 255);
+    }
+    final int shift = Long.SIZE - size * Byte.SIZE;
+    return (result << shift) >> shift;
+  }
+
 }
@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class FDBReplicatorTest {
+
+    private static TransactionContext DB;
+
+    @BeforeClass
+    public static void setupFDB() {
+        DB = FDBTestUtil.open();
+    }
+
+    private String name;
+    private FDBDirectory primary;
+    private IndexWriter writer;
+    private ExecutorService executor;
+    private final List<Directory> targets = new ArrayList<Directory>();
+
+    @Before
+    public void setup() throws Exception {
+        name = UUID.randomUUID().toString();
+        primary = open(DB, "primary");
+        writer = new IndexWriter(primary, new IndexWriterConfig().setUseCompoundFile(false));
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        writer.close();
+        executor.shutdown();
+        primary.delete();
+        primary.close();
+        for (final Directory target : targets) {
+            if (target instanceof FDBDirectory) {
+                ((FDBDirectory) target).delete();
+            }
+            target.close();
+        }
+    }
+
+    @Test
+    public void replicateToSameDatabase() throws Exception {
+        final FDBDirectoryStats stats = new FDBDirectoryStats();
+        final FDBDirectory target = FDBDirectory.open(DB,
+                new Subspace(Tuple.from("FDBReplicatorTest", name, "target")),
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000).setMetrics(stats));
+        targets.add(target);
+        final FDBReplicator replicator = new FDBReplicator(primary, target, executor);
+        assertEquals(-1, replicator.replicate());
+
+        addDocuments(0, 100);
+        final long generation = replicator.replicate();
+        assertEquals(SegmentInfos.getLastCommitGeneration(primary), generation);
+        assertNumDocs(target, 100);
+        // Whole pages are copied, not written through outputs.
+        assertTrue(stats.getMetadataLatency().containsKey("copyFrom"));
+        assertTrue(!stats.getMetadataLatency().containsKey("createOutput"));
+
+        // Already replicated.
+        assertEquals(generation, replicator.replicate());
+        assertCommitFiles(target);
+    }
+
+    @Test
+    public void replicateToAnotherCluster() throws Exception {
+        final FDBDirectory target = open(new MemoryTransactionContext(), "target");
+        targets.add(target);
+        final FDBReplicator replicator = new FDBReplicator(primary, target, executor);
+
+        addDocuments(0, 100);
+        replicator.replicate();
+        assertNumDocs(target, 100);
+        assertCommitFiles(target);
+    }
+
+    @Test
+    public void copiesOnlyNewFiles() throws Exception {
+        final Path path = Files.createTempDirectory("FDBReplicatorTest");
+        final List<String> copied = Collections.synchronizedList(new ArrayList<String>());
+        final Directory target = new FilterDirectory(FSDirectory.open(path)) {
+            @Override
+            public void copyFrom(final Directory from, final String src, final String dest,
+                    final IOContext context) throws IOException {
+                copied.add(dest);
+                super.copyFrom(from, src, dest, context);
+            }
+        };
+        targets.add(target);
+        final FDBReplicator replicator = new FDBReplicator(primary, target, executor);
+        try {
+            addDocuments(0, 100);
+            replicator.replicate();
+            final List<String> first = new ArrayList<String>(Arrays.asList(target.listAll()));
+            copied.clear();
+
+            addDocuments(100, 200);
+            replicator.replicate();
+            assertNumDocs(target, 200);
+            for (final String file : copied) {
+                assertTrue(file, !first.contains(file));
+            }
+
+            // Files of the commit before the last are kept for open readers.
+            try (final IndexReader reader = DirectoryReader.open(target)) {
+                writer.forceMerge(1);
+                writer.commit();
+                replicator.replicate();
+                assertEquals(200, reader.numDocs());
+                writer.addDocument(document(200));
+                writer.commit();
+                replicator.replicate();
+            }
+            assertNumDocs(target, 201);
+            assertCommitFiles(target);
+        } finally {
+            IOUtils.rm(path);
+        }
+    }
+
+    @Test
+    public void replacesStaleFiles() throws Exception {
+        final FDBDirectory target = open(DB, "target");
+        targets.add(target);
+        addDocuments(0, 10);
+        // Left over from before the primary was rebuilt: the same name and
+        // length, but another segment.
+        final String name = "_0.si";
+        final long length = primary.fileLength(name);
+        try (final IndexOutput out = target.createOutput(name, IOContext.DEFAULT)) {
+            CodecUtil.writeIndexHeader(out, "stale", 0, StringHelper.randomId(), "");
+            while (out.getFilePointer() < length - CodecUtil.footerLength()) {
+                out.writeByte((byte) 0);
+            }
+            CodecUtil.writeFooter(out);
+        }
+        assertEquals(length, target.fileLength(name));
+
+        new FDBReplicator(primary, target, executor).replicate();
+        assertNumDocs(target, 10);
+        try (final IndexInput expected = primary.openInput(name, IOContext.READONCE);
+                final IndexInput actual = target.openInput(name, IOContext.READONCE)) {
+            assertEquals(CodecUtil.retrieveChecksum(expected), CodecUtil.retrieveChecksum(actual));
+        }
+    }
+
+    @Test
+    public void keepsExistingPins() throws Exception {
+        final FDBDirectory target = open(DB, "target");
+        targets.add(target);
+        addDocuments(0, 10);
+        final long generation = SegmentInfos.getLastCommitGeneration(primary);
+        primary.pinCommit(generation);
+
+        new FDBReplicator(primary, target, executor).replicate();
+        assertArrayEquals(new long[] { generation }, primary.listPinnedCommits());
+        primary.unpinCommit(generation);
+    }
+
+    @Test
+    public void otherHolderUnpinsDuringCopy() throws Exception {
+        final Path path = Files.createTempDirectory("FDBReplicatorTest");
+        addDocuments(0, 100);
+        final long generation = SegmentInfos.getLastCommitGeneration(primary);
+        primary.pinCommit(generation);
+        final AtomicBoolean unpinned = new AtomicBoolean();
+        final Directory target = new FilterDirectory(FSDirectory.open(path)) {
+            @Override
+            public void copyFrom(final Directory from, final String src, final String dest,
+                    final IOContext context) throws IOException {
+                if (unpinned.compareAndSet(false, true)) {
+                    // The writer deletes the files of the commit and the other
+                    // holder releases it.
+                    writer.forceMerge(1);
+                    writer.commit();
+                    primary.unpinCommit(generation);
+                }
+                super.copyFrom(from, src, dest, context);
+            }
+        };
+        targets.add(target);
+        try {
+            assertEquals(generation, new FDBReplicator(primary, target, executor).replicate());
+            assertNumDocs(target, 100);
+            assertEquals(0, primary.listPinnedCommits().length);
+        } finally {
+            IOUtils.rm(path);
+        }
+    }
+
+    private FDBDirectory open(final TransactionContext txc, final String dir) {
+        return FDBDirectory.open(txc, new Subspace(Tuple.from("FDBReplicatorTest", name, dir)),
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000));
+    }
+
+    private void addDocuments(final int from, final int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            writer.addDocument(document(i));
+            if (i % 25 == 24) {
+                writer.flush();
+            }
+        }
+        writer.commit();
+    }
+
+    private static Document document(final int i) {
+        final Document doc = new Document();
+        doc.add(new StringField("_id", "doc" + i, Store.YES));
+        return doc;
+    }
+
+    private static void assertNumDocs(final Directory dir, final int numDocs) throws IOException {
+        try (final IndexReader reader = DirectoryReader.open(dir)) {
+            assertEquals(numDocs, reader.numDocs());
+        }
+    }
+
+    /**
+     * Asserts that the target holds the files of at most two commits and
+     * nothing else.
+     */
+    private static void assertCommitFiles(final Directory target) throws IOException {
+        final List<String> expected = new ArrayList<String>();
+        int commits = 0;
+        for (final String file : target.listAll()) {
+            if (file.startsWith(IndexFileNames.SEGMENTS + "_")) {
+                expected.addAll(SegmentInfos.readCommit(target, file).files(true));
+                commits++;
+            }
+        }
+        assertTrue(commits <= 2);
+        for (final String file : target.listAll()) {
+            assertTrue(file, expected.contains(file));
+        }
+    }
+
+}
@@ -15,8 +15,34 @@
  *******************************************************************************/
 package com.cloudant.fdblucene;
 
+import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.TransactionContext;
+
 class FDBTestUtil {
 
+    private static final class MemoryHolder {
+        private static final TransactionContext MEMORY = new MemoryTransactionContext();
+    }
+
+    /**
+     * Opens the backend named by the {@code fdblucene.test.backend} system
+     * property: {@code fdb} (the default) for the cluster in the default cluster
+     * file, or {@code memory} for a {@link MemoryTransactionContext} that is
+     * shared by all tests in the JVM.
+     */
+    static TransactionContext open() {
+        final String backend = System.getProperty("fdblucene.test.backend", "fdb");
+        switch (backend) {
+        case "fdb":
+            FDB.selectAPIVersion(600);
+            return FDB.instance().open();
+        case "memory":
+            return MemoryHolder.MEMORY;
+        default:
+            throw new IllegalArgumentException("Unknown test backend: " + backend);
+        }
+    }
+
     static byte[] testArray(final int size) {
         final byte[] result = new byte[size];
         for (int i = 0; i < result.length; i++) {
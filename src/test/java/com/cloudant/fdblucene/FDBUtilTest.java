@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class FDBUtilTest {
+
+    private static final Subspace SUBSPACE = new Subspace(Tuple.from("FDBUtilTest", 42L));
+
+    @Test
+    public void packLongMatchesTupleEncoding() {
+        final long[] values = { 0L, 1L, 0xffL, 0x100L, 0xffffL, 0x10000L, 1L << 31, (1L << 32) - 1, 1L << 32,
+                1L << 55, (1L << 56) - 1, 1L << 56, Long.MAX_VALUE, -1L, -0x100L, Long.MIN_VALUE };
+        for (final long value : values) {
+            assertArrayEquals(Long.toString(value), SUBSPACE.pack(value), FDBUtil.pack(SUBSPACE.getKey(), value));
+        }
+        for (int i = 0; i < 1_000; i++) {
+            final long value = FDBUtil.RANDOM.nextLong() >>> FDBUtil.RANDOM.nextInt(64);
+            assertArrayEquals(Long.toString(value), SUBSPACE.pack(value), FDBUtil.pack(SUBSPACE.getKey(), value));
+        }
+    }
+
+    @Test
+    public void packStringMatchesTupleEncoding() {
+        final String[] values = { "", "segments_1", "_0.cfs", "a\u0000b", "\u0000\u0000", "café", "😀" };
+        for (final String value : values) {
+            assertArrayEquals(value, SUBSPACE.pack(value), FDBUtil.pack(SUBSPACE.getKey(), value));
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class IOThrottleTest {
+
+    private static final IOContext MERGE = new IOContext(new MergeInfo(1, 1L, false, 1));
+
+    private MemoryTransactionContext db;
+
+    @Before
+    public void setup() {
+        db = new MemoryTransactionContext(42L);
+    }
+
+    @Test
+    public void burstIsNotThrottled() {
+        final IOThrottle throttle = new IOThrottle(1_000_000, 100);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0L, throttle.acquire(100_000));
+        }
+        assertEquals(0L, throttle.getThrottled());
+    }
+
+    @Test
+    public void bytesPerSecond() {
+        final IOThrottle throttle = new IOThrottle(1_000_000, IOThrottle.UNLIMITED);
+        throttle.acquire(1_000_000);
+        final long nanos = throttle.acquire(100_000);
+        assertTrue("throttled for " + nanos, nanos > TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1L, throttle.getThrottled());
+        assertEquals(nanos, throttle.getThrottledNanos());
+    }
+
+    @Test
+    public void transactionsPerSecond() {
+        final IOThrottle throttle = new IOThrottle(IOThrottle.UNLIMITED, 10);
+        for (int i = 0; i < 10; i++) {
+            throttle.acquire(0);
+        }
+        final long nanos = throttle.acquire(0);
+        assertTrue("throttled for " + nanos, nanos > TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void parentIsCharged() {
+        final IOThrottle process = new IOThrottle(1_000_000, IOThrottle.UNLIMITED);
+        final IOThrottle dir1 = new IOThrottle(IOThrottle.UNLIMITED, IOThrottle.UNLIMITED, process);
+        final IOThrottle dir2 = new IOThrottle(IOThrottle.UNLIMITED, IOThrottle.UNLIMITED, process);
+        assertEquals(0L, dir1.acquire(1_000_000));
+        assertTrue(dir2.acquire(100_000) > 0);
+        assertEquals(0L, dir2.getThrottled());
+        assertEquals(1L, process.getThrottled());
+    }
+
+    @Test
+    public void mergeIO() throws Exception {
+        final IOThrottle throttle = new IOThrottle(2_000_000, IOThrottle.UNLIMITED);
+        final FDBDirectoryStats stats = new FDBDirectoryStats();
+        final FDBDirectory dir = FDBDirectory.open(db, new Subspace(Tuple.from("IOThrottleTest")),
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000).setMergeThrottle(throttle)
+                        .setMergeBatchPriority(true).setMetrics(stats));
+        final byte[] expected = FDBTestUtil.testArray(2_500_000);
+        try (final IndexOutput out = dir.createOutput("foo", MERGE)) {
+            out.writeBytes(expected, expected.length);
+        }
+        assertTrue(throttle.getThrottled() > 0);
+        assertTrue(db.getBatchPriorityTransactions() >= 250);
+        assertEquals(throttle.getThrottled(), stats.getThrottleDelay().getCount());
+
+        final long batchPriorityWrites = db.getBatchPriorityTransactions();
+        try (final IndexInput in = dir.openInput("foo", null)) {
+            final byte[] actual = new byte[1_000];
+            in.readBytes(actual, 0, actual.length);
+        }
+        assertEquals(batchPriorityWrites, db.getBatchPriorityTransactions());
+
+        try (final IndexInput in = dir.openInput("foo", MERGE)) {
+            final byte[] actual = new byte[expected.length];
+            in.readBytes(actual, 0, actual.length);
+            assertArrayEquals(expected, actual);
+        }
+        assertTrue(db.getBatchPriorityTransactions() > batchPriorityWrites);
+        dir.delete();
+        dir.close();
+    }
+
+}
@@ -0,0 +1,722 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import com.apple.foundationdb.Database;
+import com.apple.foundationdb.FDBException;
+import com.apple.foundationdb.KeySelector;
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.StreamingMode;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.TransactionOptions;
+import com.apple.foundationdb.async.AsyncIterable;
+import com.apple.foundationdb.async.AsyncIterator;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+
+/**
+ * A transaction of a {@link MemoryTransactionContext}. Writes are buffered
+ * until commit and are visible to reads of the same transaction.
+ */
+final class MemoryTransaction implements Transaction {
+
+    private static final int NEXT_WRITE_NO_WRITE_CONFLICT_RANGE = 30;
+    private static final int LOG_TRANSACTION = 404;
+    private static final int PRIORITY_BATCH = 201;
+
+    private static final byte[] MIN_KEY = new byte[0];
+    private static final byte[] MAX_KEY = new byte[] { (byte) 0xff };
+
+    private static final Field OR_EQUAL;
+
+    static {
+        try {
+            OR_EQUAL = KeySelector.class.getDeclaredField("orEqual");
+            OR_EQUAL.setAccessible(true);
+        } catch (final ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static final class Op {
+
+        enum Type {
+            SET, CLEAR, CLEAR_RANGE, MUTATE
+        }
+
+        final Type type;
+        final byte[] key;
+        final byte[] end;
+        final byte[] param;
+        final MutationType mutation;
+
+        private Op(final Type type, final byte[] key, final byte[] end, final byte[] param,
+                final MutationType mutation) {
+            this.type = type;
+            this.key = key.clone();
+            this.end = end == null ? null : end.clone();
+            this.param = param == null ? null : param.clone();
+            this.mutation = mutation;
+        }
+
+        private boolean covers(final byte[] k) {
+            if (type == Type.CLEAR_RANGE) {
+                return ByteArrayUtil.compareUnsigned(key, k) <= 0 && ByteArrayUtil.compareUnsigned(k, end) < 0;
+            }
+            return Arrays.equals(key, k);
+        }
+
+        private byte[] apply(final byte[] value) {
+            switch (type) {
+            case SET:
+                return param;
+            case CLEAR:
+            case CLEAR_RANGE:
+                return null;
+            case MUTATE:
+                return applyMutation(mutation, value, param);
+            default:
+                throw new AssertionError(type);
+            }
+        }
+
+    }
+
+    /**
+     * The state shared by a transaction and its snapshot view.
+     */
+    private static final class State {
+
+        private long readVersion = -1L;
+        private final List<Op> ops = new ArrayList<Op>();
+        private final List<Range> readConflicts = new ArrayList<Range>();
+        private final List<Range> writeConflicts = new ArrayList<Range>();
+        private boolean nextWriteNoWriteConflictRange;
+        private long size;
+        private boolean cancelled;
+        private Long committedVersion;
+        private final CompletableFuture<byte[]> versionstamp = new CompletableFuture<byte[]>();
+
+    }
+
+    private final MemoryTransactionContext db;
+    private final State state;
+    private final boolean snapshot;
+
+    MemoryTransaction(final MemoryTransactionContext db) {
+        this(db, new State(), false);
+    }
+
+    private MemoryTransaction(final MemoryTransactionContext db, final State state, final boolean snapshot) {
+        this.db = db;
+        this.state = state;
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public ReadTransaction snapshot() {
+        return new MemoryTransaction(db, state, true);
+    }
+
+    @Override
+    public CompletableFuture<Long> getReadVersion() {
+        checkNotCancelled();
+        if (state.readVersion == -1L) {
+            state.readVersion = db.getReadVersion();
+            return db.afterRead(state.readVersion);
+        }
+        return CompletableFuture.completedFuture(state.readVersion);
+    }
+
+    @Override
+    public void setReadVersion(final long version) {
+        state.readVersion = version;
+    }
+
+    @Override
+    public boolean addReadConflictRangeIfNotSnapshot(final byte[] keyBegin, final byte[] keyEnd) {
+        if (snapshot) {
+            return false;
+        }
+        addReadConflictRange(keyBegin, keyEnd);
+        return true;
+    }
+
+    @Override
+    public boolean addReadConflictKeyIfNotSnapshot(final byte[] key) {
+        return addReadConflictRangeIfNotSnapshot(key, keyAfter(key));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(final byte[] key) {
+        final long readVersion = readVersion();
+        byte[] result = db.get(readVersion, key);
+        for (final Op op : state.ops) {
+            if (op.covers(key)) {
+                result = op.apply(result);
+            }
+        }
+        addReadConflictKeyIfNotSnapshot(key);
+        return db.afterRead(result == null ? null : result.clone());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getKey(final KeySelector selector) {
+        final byte[] result = resolve(selector);
+        if (!snapshot) {
+            final byte[] key = selector.getKey();
+            if (ByteArrayUtil.compareUnsigned(key, result) <= 0) {
+                addReadConflictRange(key, keyAfter(result));
+            } else {
+                addReadConflictRange(result, keyAfter(key));
+            }
+        }
+        return db.afterRead(result);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final KeySelector begin, final KeySelector end) {
+        return getRange(begin, end, ROW_LIMIT_UNLIMITED);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final KeySelector begin, final KeySelector end, final int limit) {
+        return getRange(begin, end, limit, false);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final KeySelector begin, final KeySelector end, final int limit,
+            final boolean reverse) {
+        return getRange(begin, end, limit, reverse, StreamingMode.ITERATOR);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final KeySelector begin, final KeySelector end, final int limit,
+            final boolean reverse, final StreamingMode mode) {
+        return range(boundary(begin), boundary(end), limit, reverse);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final byte[] begin, final byte[] end) {
+        return getRange(begin, end, ROW_LIMIT_UNLIMITED);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final byte[] begin, final byte[] end, final int limit) {
+        return getRange(begin, end, limit, false);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final byte[] begin, final byte[] end, final int limit,
+            final boolean reverse) {
+        return getRange(begin, end, limit, reverse, StreamingMode.ITERATOR);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final byte[] begin, final byte[] end, final int limit,
+            final boolean reverse, final StreamingMode mode) {
+        return range(begin, end, limit, reverse);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final Range range) {
+        return getRange(range, ROW_LIMIT_UNLIMITED);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final Range range, final int limit) {
+        return getRange(range, limit, false);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final Range range, final int limit, final boolean reverse) {
+        return getRange(range, limit, reverse, StreamingMode.ITERATOR);
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(final Range range, final int limit, final boolean reverse,
+            final StreamingMode mode) {
+        return range(range.begin, range.end, limit, reverse);
+    }
+
+    @Override
+    public TransactionOptions options() {
+        return new TransactionOptions((code, param) -> {
+            if (code == NEXT_WRITE_NO_WRITE_CONFLICT_RANGE) {
+                state.nextWriteNoWriteConflictRange = true;
+            } else if (code == LOG_TRANSACTION) {
+                db.transactionLogged();
+            } else if (code == PRIORITY_BATCH) {
+                db.batchPriorityTransaction();
+            }
+        });
+    }
+
+    @Override
+    public <T> T read(final Function<? super ReadTransaction, T> retryable) {
+        return retryable.apply(this);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> readAsync(
+            final Function<? super ReadTransaction, ? extends CompletableFuture<T>> retryable) {
+        return retryable.apply(this);
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return db.getExecutor();
+    }
+
+    @Override
+    public void addReadConflictRange(final byte[] keyBegin, final byte[] keyEnd) {
+        state.readConflicts.add(new Range(keyBegin, keyEnd));
+        state.size += keyBegin.length + keyEnd.length;
+    }
+
+    @Override
+    public void addReadConflictKey(final byte[] key) {
+        addReadConflictRange(key, keyAfter(key));
+    }
+
+    @Override
+    public void addWriteConflictRange(final byte[] keyBegin, final byte[] keyEnd) {
+        state.writeConflicts.add(new Range(keyBegin, keyEnd));
+        state.size += keyBegin.length + keyEnd.length;
+    }
+
+    @Override
+    public void addWriteConflictKey(final byte[] key) {
+        addWriteConflictRange(key, keyAfter(key));
+    }
+
+    @Override
+    public void set(final byte[] key, final byte[] value) {
+        checkKey(key);
+        if (value.length > MemoryTransactionContext.MAX_VALUE_SIZE) {
+            throw new FDBException("Value length exceeds limit", MemoryTransactionContext.VALUE_TOO_LARGE);
+        }
+        write(new Op(Op.Type.SET, key, null, value, null));
+    }
+
+    @Override
+    public void clear(final byte[] key) {
+        checkKey(key);
+        write(new Op(Op.Type.CLEAR, key, null, null, null));
+    }
+
+    @Override
+    public void clear(final byte[] beginKey, final byte[] endKey) {
+        write(new Op(Op.Type.CLEAR_RANGE, beginKey, endKey, null, null));
+    }
+
+    @Override
+    public void clear(final Range range) {
+        clear(range.begin, range.end);
+    }
+
+    /**
+     * @deprecated as in {@link Transaction}, use {@link #clear(Range)}.
+     */
+    @Deprecated
+    @Override
+    public void clearRangeStartsWith(final byte[] prefix) {
+        clear(Range.startsWith(prefix));
+    }
+
+    @Override
+    public void mutate(final MutationType optype, final byte[] key, final byte[] param) {
+        checkKey(key);
+        if (optype == MutationType.SET_VERSIONSTAMPED_KEY || optype == MutationType.SET_VERSIONSTAMPED_VALUE) {
+            throw new UnsupportedOperationException(optype + " is not supported");
+        }
+        write(new Op(Op.Type.MUTATE, key, null, param, optype));
+    }
+
+    @Override
+    public CompletableFuture<Void> commit() {
+        checkNotCancelled();
+        if (state.ops.isEmpty() && state.writeConflicts.isEmpty()) {
+            state.committedVersion = -1L;
+            return CompletableFuture.completedFuture(null);
+        }
+        final long version;
+        try {
+            if (state.size > MemoryTransactionContext.MAX_TRANSACTION_SIZE) {
+                throw new FDBException("Transaction exceeds byte limit",
+                        MemoryTransactionContext.TRANSACTION_TOO_LARGE);
+            }
+            version = db.commit(readVersion(), state.readConflicts, state.writeConflicts, state.ops);
+        } catch (final FDBException e) {
+            final CompletableFuture<Void> result = new CompletableFuture<Void>();
+            result.completeExceptionally(e);
+            return result;
+        }
+        state.committedVersion = version;
+        final byte[] stamp = Arrays.copyOf(FDBUtil.encodeLong(version), 10);
+        state.versionstamp.complete(stamp);
+        return db.afterCommit(null);
+    }
+
+    @Override
+    public Long getCommittedVersion() {
+        return state.committedVersion;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getVersionstamp() {
+        return state.versionstamp;
+    }
+
+    @Override
+    public CompletableFuture<Long> getApproximateSize() {
+        return CompletableFuture.completedFuture(state.size);
+    }
+
+    /**
+     * Always fails. Retries are driven by {@link MemoryTransactionContext}.
+     */
+    @Override
+    public CompletableFuture<Transaction> onError(final Throwable e) {
+        final CompletableFuture<Transaction> result = new CompletableFuture<Transaction>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    @Override
+    public void cancel() {
+        state.cancelled = true;
+    }
+
+    @Override
+    public CompletableFuture<Void> watch(final byte[] key) throws FDBException {
+        throw new UnsupportedOperationException("watch is not supported");
+    }
+
+    @Override
+    public Database getDatabase() {
+        throw new UnsupportedOperationException("getDatabase is not supported");
+    }
+
+    @Override
+    public <T> T run(final Function<? super Transaction, T> retryable) {
+        return retryable.apply(this);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> runAsync(
+            final Function<? super Transaction, ? extends CompletableFuture<T>> retryable) {
+        return retryable.apply(this);
+    }
+
+    @Override
+    public void close() {
+        // intentionally empty
+    }
+
+    static byte[] applyMutation(final MutationType type, final byte[] value, final byte[] param) {
+        switch (type) {
+        case ADD: {
+            final byte[] result = new byte[param.length];
+            int carry = 0;
+            for (int i = 0; i < param.length; i++) {
+                final int a = value != null && i < value.length ? value[i] & 0xff : 0;
+                final int sum = a + (param[i] & 0xff) + carry;
+                result[i] = (byte) sum;
+                carry = sum >>> 8;
+            }
+            return result;
+        }
+        case AND:
+        case BIT_AND: {
+            if (value == null) {
+                return param;
+            }
+            final byte[] result = new byte[param.length];
+            for (int i = 0; i < param.length; i++) {
+                result[i] = (byte) (param[i] & (i < value.length ? value[i] : 0));
+            }
+            return result;
+        }
+        case OR:
+        case BIT_OR:
+        case XOR:
+        case BIT_XOR: {
+            // OR is a deprecated alias of BIT_OR, with the same code.
+            final boolean or = type.code() == MutationType.BIT_OR.code();
+            final byte[] result = new byte[param.length];
+            for (int i = 0; i < param.length; i++) {
+                final byte a = value != null && i < value.length ? value[i] : 0;
+                result[i] = (byte) (or ? a | param[i] : a ^ param[i]);
+            }
+            return result;
+        }
+        case MAX:
+        case MIN: {
+            if (value == null) {
+                return param;
+            }
+            final byte[] existing = Arrays.copyOf(value, param.length);
+            int cmp = 0;
+            for (int i = param.length - 1; i >= 0 && cmp == 0; i--) {
+                cmp = Integer.compare(existing[i] & 0xff, param[i] & 0xff);
+            }
+            if (type == MutationType.MAX) {
+                return cmp >= 0 ? existing : param;
+            }
+            return cmp <= 0 ? existing : param;
+        }
+        case BYTE_MAX:
+        case BYTE_MIN: {
+            if (value == null) {
+                return param;
+            }
+            final int cmp = ByteArrayUtil.compareUnsigned(value, param);
+            if (type == MutationType.BYTE_MAX) {
+                return cmp >= 0 ? value : param;
+            }
+            return cmp <= 0 ? value : param;
+        }
+        case APPEND_IF_FITS: {
+            if (value == null) {
+                return param;
+            }
+            if (value.length + param.length > MemoryTransactionContext.MAX_VALUE_SIZE) {
+                return value;
+            }
+            return ByteArrayUtil.join(value, param);
+        }
+        case COMPARE_AND_CLEAR:
+            return Arrays.equals(value, param) ? null : value;
+        default:
+            throw new UnsupportedOperationException(type + " is not supported");
+        }
+    }
+
+    private long readVersion() {
+        checkNotCancelled();
+        if (state.readVersion == -1L) {
+            state.readVersion = db.getReadVersion();
+        }
+        return state.readVersion;
+    }
+
+    private void write(final Op op) {
+        checkNotCancelled();
+        state.ops.add(op);
+        final int size = op.key.length + (op.end == null ? 0 : op.end.length)
+                + (op.param == null ? 0 : op.param.length);
+        state.size += size;
+        if (state.nextWriteNoWriteConflictRange) {
+            state.nextWriteNoWriteConflictRange = false;
+        } else {
+            addWriteConflictRange(op.key, op.end == null ? keyAfter(op.key) : op.end);
+        }
+        db.recordWrite(size);
+    }
+
+    private AsyncIterable<KeyValue> range(final byte[] begin, final byte[] end, final int limit,
+            final boolean reverse) {
+        final NavigableMap<byte[], byte[]> view = view(begin, end);
+        final List<KeyValue> result = new ArrayList<KeyValue>();
+        for (final Map.Entry<byte[], byte[]> e : (reverse ? view.descendingMap() : view).entrySet()) {
+            if (limit > 0 && result.size() == limit) {
+                break;
+            }
+            result.add(new KeyValue(e.getKey().clone(), e.getValue().clone()));
+        }
+
+        if (!snapshot && ByteArrayUtil.compareUnsigned(begin, end) < 0) {
+            if (limit > 0 && result.size() == limit) {
+                final byte[] last = result.get(result.size() - 1).getKey();
+                if (reverse) {
+                    addReadConflictRange(last, end);
+                } else {
+                    addReadConflictRange(begin, keyAfter(last));
+                }
+            } else {
+                addReadConflictRange(begin, end);
+            }
+        }
+
+        return new ListIterable(db.afterRead(Collections.unmodifiableList(result)));
+    }
+
+    /**
+     * @return the key-value pairs in [begin, end) as seen by this transaction.
+     */
+    private NavigableMap<byte[], byte[]> view(final byte[] begin, final byte[] end) {
+        final TreeMap<byte[], byte[]> result = db.getRange(readVersion(), begin, end);
+        if (ByteArrayUtil.compareUnsigned(begin, end) >= 0) {
+            return result;
+        }
+        for (final Op op : state.ops) {
+            if (op.type == Op.Type.CLEAR_RANGE) {
+                final byte[] from = max(op.key, begin);
+                final byte[] to = min(op.end, end);
+                if (ByteArrayUtil.compareUnsigned(from, to) < 0) {
+                    result.subMap(from, to).clear();
+                }
+            } else if (ByteArrayUtil.compareUnsigned(begin, op.key) <= 0
+                    && ByteArrayUtil.compareUnsigned(op.key, end) < 0) {
+                final byte[] value = op.apply(result.get(op.key));
+                if (value == null) {
+                    result.remove(op.key);
+                } else {
+                    result.put(op.key, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Converts a key selector to an equivalent range boundary.
+     */
+    private byte[] boundary(final KeySelector selector) {
+        if (selector.getOffset() == 1) {
+            return orEqual(selector) ? keyAfter(selector.getKey()) : selector.getKey();
+        }
+        return resolve(selector);
+    }
+
+    private byte[] resolve(final KeySelector selector) {
+        final List<byte[]> keys = new ArrayList<byte[]>(view(MIN_KEY, MAX_KEY).keySet());
+        final byte[] key = selector.getKey();
+        int index = -1;
+        for (int i = 0; i < keys.size(); i++) {
+            final int cmp = ByteArrayUtil.compareUnsigned(keys.get(i), key);
+            if (cmp < 0 || (cmp == 0 && orEqual(selector))) {
+                index = i;
+            } else {
+                break;
+            }
+        }
+        index += selector.getOffset();
+        if (index < 0) {
+            return MIN_KEY;
+        }
+        if (index >= keys.size()) {
+            return MAX_KEY;
+        }
+        return keys.get(index);
+    }
+
+    private void checkNotCancelled() {
+        if (state.cancelled) {
+            throw new FDBException("Operation aborted because the transaction was cancelled",
+                    MemoryTransactionContext.TRANSACTION_CANCELLED);
+        }
+    }
+
+    private static void checkKey(final byte[] key) {
+        if (key.length > MemoryTransactionContext.MAX_KEY_SIZE) {
+            throw new FDBException("Key length exceeds limit", MemoryTransactionContext.KEY_TOO_LARGE);
+        }
+    }
+
+    private static boolean orEqual(final KeySelector selector) {
+        try {
+            return OR_EQUAL.getBoolean(selector);
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] keyAfter(final byte[] key) {
+        return Arrays.copyOf(key, key.length + 1);
+    }
+
+    private static byte[] max(final byte[] a, final byte[] b) {
+        return ByteArrayUtil.compareUnsigned(a, b) >= 0 ? a : b;
+    }
+
+    private static byte[] min(final byte[] a, final byte[] b) {
+        return ByteArrayUtil.compareUnsigned(a, b) <= 0 ? a : b;
+    }
+
+    private static final class ListIterable implements AsyncIterable<KeyValue> {
+
+        private final CompletableFuture<List<KeyValue>> list;
+
+        private ListIterable(final CompletableFuture<List<KeyValue>> list) {
+            this.list = list;
+        }
+
+        @Override
+        public AsyncIterator<KeyValue> iterator() {
+            return new AsyncIterator<KeyValue>() {
+
+                private Iterator<KeyValue> it;
+
+                @Override
+                public CompletableFuture<Boolean> onHasNext() {
+                    return list.thenApply(l -> hasNext());
+                }
+
+                @Override
+                public boolean hasNext() {
+                    if (it == null) {
+                        it = list.join().iterator();
+                    }
+                    return it.hasNext();
+                }
+
+                @Override
+                public KeyValue next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return it.next();
+                }
+
+                @Override
+                public void cancel() {
+                    // intentionally empty
+                }
+
+            };
+        }
+
+        @Override
+        public CompletableFuture<List<KeyValue>> asList() {
+            return list;
+        }
+
+    }
+
+}
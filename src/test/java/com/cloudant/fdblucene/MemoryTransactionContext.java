@@ -0,0 +1,589 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.apple.foundationdb.Database;
+import com.apple.foundationdb.FDBException;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+
+/**
+ * An in-process stand-in for a FoundationDB {@link Database}, backed by an
+ * ordered map.
+ *
+ * <p>
+ * It implements the subset of {@link Transaction} used by this project with
+ * multi-version reads, read-your-writes, conflict detection, FoundationDB's
+ * size limits and the five second read version lifetime, so code that works
+ * against it behaves the same against a cluster. Latency and commit conflicts
+ * can be injected to measure pipelining and retry behaviour deterministically.
+ *
+ * <p>
+ * Counters for the operations performed are kept so that tests and benchmarks
+ * can assert or report on the number of round trips a piece of code needs.
+ */
+public final class MemoryTransactionContext implements TransactionContext {
+
+    static final int TRANSACTION_TOO_OLD = 1007;
+    static final int FUTURE_VERSION = 1009;
+    static final int NOT_COMMITTED = 1020;
+    static final int TRANSACTION_CANCELLED = 1025;
+    static final int TRANSACTION_TOO_LARGE = 2101;
+    static final int KEY_TOO_LARGE = 2102;
+    static final int VALUE_TOO_LARGE = 2103;
+
+    static final int MAX_KEY_SIZE = 10_000;
+    static final int MAX_VALUE_SIZE = 100_000;
+    static final int MAX_TRANSACTION_SIZE = 10_000_000;
+
+    /**
+     * Versions advance at about one million per second, as they do in
+     * FoundationDB, so read versions expire after five million versions.
+     */
+    static final long MAX_READ_VERSION_AGE = 5_000_000L;
+
+    /**
+     * Older versions are retained for twice as long as they can be read so that
+     * a read that passed the age check never races with their removal.
+     */
+    private static final long RETENTION = 2 * MAX_READ_VERSION_AGE;
+
+    static final class Entry {
+
+        final long version;
+        final byte[] value;
+        volatile Entry older;
+
+        Entry(final long version, final byte[] value, final Entry older) {
+            this.version = version;
+            this.value = value;
+            this.older = older;
+        }
+
+    }
+
+    private static final class Commit {
+
+        private final long version;
+        private final List<Range> writeConflicts;
+
+        private Commit(final long version, final List<Range> writeConflicts) {
+            this.version = version;
+            this.writeConflicts = writeConflicts;
+        }
+
+    }
+
+    private static final class Tombstone {
+
+        private final byte[] key;
+        private final Entry entry;
+
+        private Tombstone(final byte[] key, final Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+    }
+
+    private final ConcurrentSkipListMap<byte[], Entry> store = new ConcurrentSkipListMap<byte[], Entry>(
+            ByteArrayUtil::compareUnsigned);
+    private final ArrayDeque<Commit> history = new ArrayDeque<Commit>();
+    private final ArrayDeque<Tombstone> tombstones = new ArrayDeque<Tombstone>();
+    private final long startNanos = System.nanoTime();
+    private volatile long committedVersion;
+    private long lastReadVersion;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final Random random;
+
+    private volatile long readLatencyNanos;
+    private volatile long commitLatencyNanos;
+    private volatile double conflictProbability;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder rangeReads = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder readVersions = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder loggedTransactions = new LongAdder();
+    private final LongAdder batchPriorityTransactions = new LongAdder();
+
+    public MemoryTransactionContext() {
+        this(0L);
+    }
+
+    /**
+     * @param seed the seed used to decide which commits have an injected
+     *             conflict.
+     */
+    public MemoryTransactionContext(final long seed) {
+        this.random = new Random(seed);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            final Thread result = new Thread(r, "MemoryTransactionContext");
+            result.setDaemon(true);
+            return result;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread result = new Thread(r, "MemoryTransactionContext-latency");
+            result.setDaemon(true);
+            return result;
+        });
+    }
+
+    /**
+     * Sets the latency of every read, range read and read version request.
+     */
+    public void setReadLatency(final long duration, final TimeUnit unit) {
+        this.readLatencyNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Sets the latency of every commit that performs a write.
+     */
+    public void setCommitLatency(final long duration, final TimeUnit unit) {
+        this.commitLatencyNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Sets the probability that a commit which performs a write fails with
+     * {@code not_committed} (1020) regardless of the keys it touched.
+     */
+    public void setConflictProbability(final double conflictProbability) {
+        if (conflictProbability < 0.0 || conflictProbability > 1.0) {
+            throw new IllegalArgumentException("conflictProbability must be between 0 and 1");
+        }
+        this.conflictProbability = conflictProbability;
+    }
+
+    @Override
+    public <T> T run(final Function<? super Transaction, T> retryable) {
+        while (true) {
+            final MemoryTransaction txn = new MemoryTransaction(this);
+            try {
+                final T result = retryable.apply(txn);
+                txn.commit().join();
+                return result;
+            } catch (final RuntimeException e) {
+                onError(e);
+            }
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<T> runAsync(
+            final Function<? super Transaction, ? extends CompletableFuture<T>> retryable) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        attempt(retryable, true, result);
+        return result;
+    }
+
+    @Override
+    public <T> T read(final Function<? super ReadTransaction, T> retryable) {
+        while (true) {
+            try {
+                return retryable.apply(new MemoryTransaction(this));
+            } catch (final RuntimeException e) {
+                onError(e);
+            }
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<T> readAsync(
+            final Function<? super ReadTransaction, ? extends CompletableFuture<T>> retryable) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        attempt(retryable, false, result);
+        return result;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the number of point reads.
+     */
+    public long getReads() {
+        return reads.sum();
+    }
+
+    /**
+     * @return the number of range reads.
+     */
+    public long getRangeReads() {
+        return rangeReads.sum();
+    }
+
+    /**
+     * @return the number of key and value bytes returned by reads.
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * @return the number of sets, clears and mutations.
+     */
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * @return the number of key and value bytes written.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * @return the number of read version requests.
+     */
+    public long getReadVersions() {
+        return readVersions.sum();
+    }
+
+    /**
+     * @return the number of successful commits that performed a write.
+     */
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    /**
+     * @return the number of commits that failed with a conflict, including
+     *         injected ones.
+     */
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    /**
+     * @return the number of times a transaction was retried.
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return the number of transactions with transaction logging enabled.
+     */
+    public long getLoggedTransactions() {
+        return loggedTransactions.sum();
+    }
+
+    /**
+     * @return the number of transaction attempts made at batch priority.
+     */
+    public long getBatchPriorityTransactions() {
+        return batchPriorityTransactions.sum();
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public void resetCounters() {
+        reads.reset();
+        rangeReads.reset();
+        bytesRead.reset();
+        writes.reset();
+        bytesWritten.reset();
+        readVersions.reset();
+        commits.reset();
+        conflicts.reset();
+        retries.reset();
+        loggedTransactions.reset();
+        batchPriorityTransactions.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MemoryTransactionContext(keys=%d,version=%d)", store.size(), committedVersion);
+    }
+
+    static boolean isRetryable(final Throwable t) {
+        final Throwable cause = unwrap(t);
+        if (cause instanceof FDBException) {
+            switch (((FDBException) cause).getCode()) {
+            case TRANSACTION_TOO_OLD:
+            case FUTURE_VERSION:
+            case NOT_COMMITTED:
+                return true;
+            default:
+                return false;
+            }
+        }
+        return false;
+    }
+
+    static Throwable unwrap(final Throwable t) {
+        Throwable result = t;
+        while ((result instanceof CompletionException || result instanceof ExecutionException)
+                && result.getCause() != null) {
+            result = result.getCause();
+        }
+        return result;
+    }
+
+    synchronized long getReadVersion() {
+        readVersions.increment();
+        lastReadVersion = Math.max(committedVersion, clock());
+        return lastReadVersion;
+    }
+
+    void checkReadVersion(final long readVersion) {
+        if (readVersion > Math.max(committedVersion, lastReadVersion)) {
+            throw new FDBException("Request for future version", FUTURE_VERSION);
+        }
+        if (clock() - readVersion > MAX_READ_VERSION_AGE) {
+            throw new FDBException("Transaction is too old to perform reads or be committed",
+                    TRANSACTION_TOO_OLD);
+        }
+    }
+
+    byte[] get(final long readVersion, final byte[] key) {
+        checkReadVersion(readVersion);
+        reads.increment();
+        final byte[] result = visible(store.get(key), readVersion);
+        if (result != null) {
+            bytesRead.add(key.length + result.length);
+        }
+        return result;
+    }
+
+    TreeMap<byte[], byte[]> getRange(final long readVersion, final byte[] begin, final byte[] end) {
+        checkReadVersion(readVersion);
+        rangeReads.increment();
+        final TreeMap<byte[], byte[]> result = new TreeMap<byte[], byte[]>(ByteArrayUtil::compareUnsigned);
+        if (ByteArrayUtil.compareUnsigned(begin, end) >= 0) {
+            return result;
+        }
+        for (final Map.Entry<byte[], Entry> e : store.subMap(begin, end).entrySet()) {
+            final byte[] value = visible(e.getValue(), readVersion);
+            if (value != null) {
+                result.put(e.getKey(), value);
+                bytesRead.add(e.getKey().length + value.length);
+            }
+        }
+        return result;
+    }
+
+    void transactionLogged() {
+        loggedTransactions.increment();
+    }
+
+    void batchPriorityTransaction() {
+        batchPriorityTransactions.increment();
+    }
+
+    void recordWrite(final int bytes) {
+        writes.increment();
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Commits the writes of a transaction at a new version.
+     *
+     * @return the commit version.
+     */
+    synchronized long commit(final long readVersion, final List<Range> readConflicts,
+            final List<Range> writeConflicts, final List<MemoryTransaction.Op> ops) {
+        checkReadVersion(readVersion);
+
+        if (conflictProbability > 0.0 && random.nextDouble() < conflictProbability) {
+            throw conflict();
+        }
+
+        for (final Commit commit : history) {
+            if (commit.version > readVersion && intersects(commit.writeConflicts, readConflicts)) {
+                throw conflict();
+            }
+        }
+
+        final long version = Math.max(Math.max(committedVersion, lastReadVersion), clock()) + 1;
+        for (final MemoryTransaction.Op op : ops) {
+            apply(op, version);
+        }
+        history.add(new Commit(version, writeConflicts));
+
+        while (!history.isEmpty() && history.peekFirst().version < version - RETENTION) {
+            history.removeFirst();
+        }
+        while (!tombstones.isEmpty() && tombstones.peekFirst().entry.version < version - RETENTION) {
+            final Tombstone tombstone = tombstones.removeFirst();
+            store.remove(tombstone.key, tombstone.entry);
+        }
+
+        committedVersion = version;
+        commits.increment();
+        return version;
+    }
+
+    <T> CompletableFuture<T> afterRead(final T value) {
+        return delay(value, readLatencyNanos);
+    }
+
+    <T> CompletableFuture<T> afterCommit(final T value) {
+        return delay(value, commitLatencyNanos);
+    }
+
+    private <T> CompletableFuture<T> delay(final T value, final long nanos) {
+        if (nanos == 0L) {
+            return CompletableFuture.completedFuture(value);
+        }
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        scheduler.schedule(() -> executor.execute(() -> result.complete(value)), nanos, TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    private <T> void attempt(final Function<? super MemoryTransaction, ? extends CompletableFuture<T>> retryable,
+            final boolean commit, final CompletableFuture<T> result) {
+        final MemoryTransaction txn = new MemoryTransaction(this);
+        CompletableFuture<T> future;
+        try {
+            future = retryable.apply(txn);
+        } catch (final RuntimeException e) {
+            future = new CompletableFuture<T>();
+            future.completeExceptionally(e);
+        }
+        if (commit) {
+            future = future.thenCompose(value -> txn.commit().thenApply(v -> value));
+        }
+        future.whenComplete((value, t) -> {
+            if (t == null) {
+                result.complete(value);
+            } else if (isRetryable(t)) {
+                retries.increment();
+                executor.execute(() -> attempt(retryable, commit, result));
+            } else {
+                result.completeExceptionally(unwrap(t));
+            }
+        });
+    }
+
+    private void onError(final RuntimeException e) {
+        if (!isRetryable(e)) {
+            final Throwable cause = unwrap(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+        retries.increment();
+    }
+
+    private FDBException conflict() {
+        conflicts.increment();
+        return new FDBException("Transaction not committed due to conflict with another transaction",
+                NOT_COMMITTED);
+    }
+
+    private void apply(final MemoryTransaction.Op op, final long version) {
+        switch (op.type) {
+        case SET:
+            put(op.key, op.param, version);
+            break;
+        case CLEAR:
+            put(op.key, null, version);
+            break;
+        case CLEAR_RANGE:
+            if (ByteArrayUtil.compareUnsigned(op.key, op.end) < 0) {
+                for (final Map.Entry<byte[], Entry> e : store.subMap(op.key, op.end).entrySet()) {
+                    if (e.getValue().value != null) {
+                        put(e.getKey(), null, version);
+                    }
+                }
+            }
+            break;
+        case MUTATE:
+            final Entry head = store.get(op.key);
+            put(op.key, MemoryTransaction.applyMutation(op.mutation, head == null ? null : head.value, op.param),
+                    version);
+            break;
+        default:
+            throw new AssertionError(op.type);
+        }
+    }
+
+    private void put(final byte[] key, final byte[] value, final long version) {
+        final Entry head = store.get(key);
+        final Entry older = head != null && head.version == version ? head.older : head;
+        final Entry entry = new Entry(version, value, older);
+        store.put(key, entry);
+        if (value == null) {
+            tombstones.add(new Tombstone(key, entry));
+        }
+
+        // Drop versions that no reader can see any more.
+        for (Entry e = entry; e != null; e = e.older) {
+            if (e.version < version - RETENTION) {
+                e.older = null;
+                break;
+            }
+        }
+    }
+
+    private long clock() {
+        return (System.nanoTime() - startNanos) / 1000L;
+    }
+
+    private static byte[] visible(final Entry head, final long readVersion) {
+        Entry e = head;
+        while (e != null && e.version > readVersion) {
+            e = e.older;
+        }
+        return e == null ? null : e.value;
+    }
+
+    private static boolean intersects(final List<Range> a, final List<Range> b) {
+        for (final Range r1 : a) {
+            for (final Range r2 : b) {
+                if (ByteArrayUtil.compareUnsigned(r1.begin, r2.end) < 0
+                        && ByteArrayUtil.compareUnsigned(r2.begin, r1.end) < 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
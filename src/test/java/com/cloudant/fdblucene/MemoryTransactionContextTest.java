@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.FDBException;
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.subspace.Subspace;
+
+public class MemoryTransactionContextTest {
+
+    private MemoryTransactionContext db;
+    private Subspace subspace;
+
+    @Before
+    public void setup() {
+        db = new MemoryTransactionContext(42L);
+        subspace = new Subspace(new byte[] { 1, 2, 3 });
+    }
+
+    @Test
+    public void readYourWrites() {
+        db.run(txn -> {
+            txn.set(subspace.pack(1), value(1));
+            txn.set(subspace.pack(2), value(2));
+            txn.set(subspace.pack(3), value(3));
+            txn.clear(subspace.pack(2));
+            assertArrayEquals(value(1), txn.get(subspace.pack(1)).join());
+            assertNull(txn.get(subspace.pack(2)).join());
+            assertEquals(2, txn.getRange(subspace.range()).asList().join().size());
+            return null;
+        });
+
+        final List<KeyValue> result = db.read(txn -> txn.getRange(subspace.range()).asList().join());
+        assertEquals(2, result.size());
+        assertArrayEquals(subspace.pack(1), result.get(0).getKey());
+        assertArrayEquals(subspace.pack(3), result.get(1).getKey());
+    }
+
+    @Test
+    public void readsAreIsolatedAtTheirReadVersion() {
+        final byte[] key = subspace.pack("k");
+        db.run(txn -> {
+            txn.set(key, value(1));
+            return null;
+        });
+
+        final Transaction reader = new MemoryTransaction(db);
+        reader.getReadVersion().join();
+
+        db.run(txn -> {
+            txn.set(key, value(2));
+            return null;
+        });
+
+        assertArrayEquals(value(1), reader.get(key).join());
+        assertArrayEquals(value(2), db.read(txn -> txn.get(key).join()));
+    }
+
+    @Test
+    public void conflictingCommitFails() {
+        final byte[] key = subspace.pack("k");
+        final Transaction first = new MemoryTransaction(db);
+        first.get(key).join();
+        first.set(key, value(1));
+
+        db.run(txn -> {
+            txn.set(key, value(2));
+            return null;
+        });
+
+        try {
+            first.commit().join();
+            fail("expected conflict");
+        } catch (final CompletionException e) {
+            assertEquals(MemoryTransactionContext.NOT_COMMITTED, ((FDBException) e.getCause()).getCode());
+        }
+        assertEquals(1, db.getConflicts());
+    }
+
+    @Test
+    public void snapshotReadsDoNotConflict() {
+        final byte[] key = subspace.pack("k");
+        final Transaction first = new MemoryTransaction(db);
+        first.snapshot().get(key).join();
+        first.set(subspace.pack("other"), value(1));
+
+        db.run(txn -> {
+            txn.set(key, value(2));
+            return null;
+        });
+
+        first.commit().join();
+        assertEquals(0, db.getConflicts());
+    }
+
+    @Test
+    public void injectedConflictsAreRetried() {
+        db.setConflictProbability(0.5);
+        for (int i = 0; i < 100; i++) {
+            final byte[] key = subspace.pack(i);
+            db.run(txn -> {
+                txn.set(key, value(1));
+                return null;
+            });
+        }
+        db.setConflictProbability(0.0);
+
+        assertEquals(100, db.getCommits());
+        assertEquals(db.getConflicts(), db.getRetries());
+        assertEquals(100, db.read(txn -> txn.getRange(subspace.range()).asList().join()).size());
+    }
+
+    @Test
+    public void injectedLatency() {
+        final byte[] key = subspace.pack("k");
+        db.setReadLatency(20, TimeUnit.MILLISECONDS);
+        final long start = System.nanoTime();
+        db.read(txn -> txn.get(key).join());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void atomicAdd() {
+        final byte[] key = subspace.pack("counter");
+        for (int i = 0; i < 300; i++) {
+            db.run(txn -> {
+                txn.mutate(MutationType.ADD, key, new byte[] { 1, 0 });
+                return null;
+            });
+        }
+        assertArrayEquals(new byte[] { 44, 1 }, db.read(txn -> txn.get(key).join()));
+    }
+
+    @Test
+    public void oversizedValueIsRejected() {
+        try {
+            db.run(txn -> {
+                txn.set(subspace.pack("k"), new byte[MemoryTransactionContext.MAX_VALUE_SIZE + 1]);
+                return null;
+            });
+            fail("expected value_too_large");
+        } catch (final FDBException e) {
+            assertEquals(MemoryTransactionContext.VALUE_TOO_LARGE, e.getCode());
+        }
+    }
+
+    private static byte[] value(final int i) {
+        return FDBUtil.encodeInt(i);
+    }
+
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class PageCacheTest {
+
+    private static final IOContext MERGE = new IOContext(new MergeInfo(1, 1L, false, 1));
+
+    private static TransactionContext DB;
+
+    @BeforeClass
+    public static void setupFDB() {
+        DB = FDBTestUtil.open();
+    }
+
+    private Subspace subspace;
+    private PageCache cache;
+    private FDBDirectoryStats stats;
+    private FDBDirectory dir;
+    private byte[] data;
+
+    @Before
+    public void setupDir() throws Exception {
+        subspace = new Subspace(Tuple.from("PageCacheTest", UUID.randomUUID().toString()));
+        cache = new PageCache(1_000_000);
+        stats = new FDBDirectoryStats();
+        dir = FDBDirectory.open(DB, subspace, new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000)
+                .setPageCache(cache).setReadAheadPages(4).setMergeWritePipelineDepth(3).setMetrics(stats));
+        data = FDBTestUtil.testArray(25_500);
+        try (final IndexOutput out = dir.createOutput("foo", null)) {
+            out.writeBytes(data, data.length);
+        }
+    }
+
+    @After
+    public void cleanupDir() throws Exception {
+        dir.delete();
+        dir.close();
+    }
+
+    @Test
+    public void secondReadIsCached() throws Exception {
+        assertArrayEquals(data, readAll("foo", IOContext.DEFAULT));
+        assertEquals(26, stats.getPagesRead());
+        assertEquals(0, stats.getCacheHits());
+
+        try (final FDBIOScope scope = FDBIOScope.open()) {
+            assertArrayEquals(data, readAll("foo", IOContext.READ));
+            assertEquals(0, scope.getPagesRead());
+            assertEquals(26, scope.getCacheHits());
+        }
+        assertEquals(26, stats.getPagesRead());
+        assertEquals(26, cache.getHits());
+        assertEquals(25_500, cache.getSize());
+    }
+
+    @Test
+    public void smallCacheHoldsFewPages() throws Exception {
+        final PageCache small = new PageCache(5_000);
+        final long owner = PageCache.newOwner();
+        for (int i = 0; i < 5; i++) {
+            small.put(owner, 1L, i, new byte[1_000]);
+        }
+        assertEquals(5_000, small.getSize());
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(small.get(owner, 1L, i));
+        }
+        assertEquals(0, small.getEvictions());
+
+        // Evicts the least recently used page.
+        small.put(owner, 1L, 5, new byte[1_000]);
+        assertNull(small.get(owner, 1L, 0));
+        assertEquals(5_000, small.getSize());
+
+        // A page larger than the cache leaves it as it is.
+        small.put(owner, 2L, 0, new byte[10_000]);
+        assertNull(small.get(owner, 2L, 0));
+        assertEquals(5_000, small.getSize());
+    }
+
+    @Test
+    public void largePagesAreCached() throws Exception {
+        final PageCache megabyte = new PageCache(1_000_000);
+        final long owner = PageCache.newOwner();
+        for (int i = 0; i < 4; i++) {
+            megabyte.put(owner, 1L, i, new byte[FDBUtil.MAX_VALUE_SIZE]);
+        }
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(megabyte.get(owner, 1L, i));
+        }
+    }
+
+    @Test
+    public void streamingReadsBypassCache() throws Exception {
+        for (final IOContext context : new IOContext[] { MERGE, IOContext.READONCE }) {
+            final long before = stats.getTransactions();
+            assertArrayEquals(data, readAll("foo", context));
+            // One to open the input, then 26 pages in batches of 4.
+            assertEquals(1 + 7, stats.getTransactions() - before);
+        }
+        assertEquals(52, stats.getPagesRead());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void streamingReadsUseCachedPages() throws Exception {
+        assertArrayEquals(data, readAll("foo", null));
+        assertArrayEquals(data, readAll("foo", MERGE));
+        assertEquals(26, stats.getPagesRead());
+    }
+
+    @Test
+    public void pipelinedMergeOutput() throws Exception {
+        final byte[] expected = FDBTestUtil.testArray(123_456);
+        try (final IndexOutput out = dir.createOutput("bar", MERGE)) {
+            for (int i = 0; i < expected.length; i += 1_000) {
+                out.writeBytes(expected, i, Math.min(1_000, expected.length - i));
+            }
+        }
+        assertEquals(expected.length, dir.fileLength("bar"));
+        assertArrayEquals(expected, readAll("bar", MERGE));
+    }
+
+    @Test
+    public void deleteInvalidatesCache() throws Exception {
+        readAll("foo", null);
+        assertTrue(cache.getSize() > 0);
+        dir.delete();
+        assertEquals(0, cache.getSize());
+
+        // File numbers are reused after a delete.
+        final byte[] other = FDBTestUtil.testArray(25_500);
+        other[0]++;
+        try (final IndexOutput out = dir.createOutput("foo", null)) {
+            out.writeBytes(other, other.length);
+        }
+        assertArrayEquals(other, readAll("foo", null));
+    }
+
+    @Test
+    public void deleteByAnotherInstanceInvalidatesCache() throws Exception {
+        readAll("foo", null);
+        final FDBDirectory other = FDBDirectory.open(DB, subspace,
+                new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000));
+        final byte[] recreated = FDBTestUtil.testArray(25_500);
+        recreated[0]++;
+        try {
+            other.delete();
+            try (final IndexOutput out = other.createOutput("foo", null)) {
+                out.writeBytes(recreated, recreated.length);
+            }
+        } finally {
+            other.close();
+        }
+        assertArrayEquals(recreated, readAll("foo", null));
+        assertEquals(52, stats.getPagesRead());
+    }
+
+    private byte[] readAll(final String name, final IOContext context) throws Exception {
+        try (final IndexInput in = dir.openInput(name, context)) {
+            final byte[] result = new byte[(int) in.length()];
+            in.readBytes(result, 0, result.length);
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import org.apache.lucene.store.BaseDirectoryTestCase;
+import org.apache.lucene.store.Directory;
+import org.junit.BeforeClass;
+
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakScope;
+
+/**
+ * Runs the directory tests with small pages in a {@link PageStore}.
+ */
+@ThreadLeakScope(ThreadLeakScope.Scope.NONE)
+public class PageStoreDirectoryTest extends BaseDirectoryTestCase {
+
+    private static TransactionContext DB;
+
+    @BeforeClass
+    public static void setup() {
+        DB = FDBTestUtil.open();
+    }
+
+    @Override
+    protected Directory getDirectory(final Path path) throws IOException {
+        final PageStore store = new PageStore(
+                new Subspace(Tuple.from("PageStoreDirectoryTest", UUID.randomUUID().toString())));
+        return FDBDirectory.open(DB, path, new FDBDirectoryConfig().setPageSize(100).setTxnSize(1_000)
+                .setPageStore(store).setPageCache(new PageCache(100_000)));
+    }
+
+}
@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apple.foundationdb.TransactionContext;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class PageStoreTest {
+
+    private static TransactionContext DB;
+
+    @BeforeClass
+    public static void setupFDB() {
+        DB = FDBTestUtil.open();
+    }
+
+    private PageStore store;
+    private PageCache cache;
+    private FDBDirectoryStats stats;
+    private FDBDirectory dir1;
+    private FDBDirectory dir2;
+    private byte[] data;
+
+    @Before
+    public void setupDirs() throws Exception {
+        final String name = UUID.randomUUID().toString();
+        store = new PageStore(new Subspace(Tuple.from("PageStoreTest", name, "store")));
+        cache = new PageCache(1_000_000);
+        stats = new FDBDirectoryStats();
+        dir1 = open(new Subspace(Tuple.from("PageStoreTest", name, "dir1")));
+        dir2 = open(new Subspace(Tuple.from("PageStoreTest", name, "dir2")));
+        data = FDBTestUtil.testArray(25_500);
+    }
+
+    @After
+    public void cleanupDirs() throws Exception {
+        dir1.delete();
+        dir1.close();
+        dir2.delete();
+        dir2.close();
+        assertEquals(0, countKeys());
+    }
+
+    @Test
+    public void identicalPagesAreStoredOnce() throws Exception {
+        write(dir1, "foo", data);
+        write(dir2, "bar", data);
+        assertEquals(26, countPages());
+        final byte[] hash = PageStore.hash(Arrays.copyOf(data, 1_000));
+        assertEquals(2L, (long) DB.read(txn -> store.refs(txn, hash)));
+
+        dir1.deleteFile("foo");
+        assertEquals(26, countPages());
+        assertArrayEquals(data, readAll(dir2, "bar"));
+
+        dir2.deleteFile("bar");
+        assertEquals(0, countKeys());
+    }
+
+    @Test
+    public void repeatedPagesAreStoredOnce() throws Exception {
+        final byte[] repeated = new byte[10_000];
+        write(dir1, "foo", repeated);
+        assertEquals(1, countPages());
+        assertArrayEquals(repeated, readAll(dir1, "foo"));
+
+        dir1.deleteFile("foo");
+        assertEquals(0, countKeys());
+    }
+
+    @Test
+    public void copiesReferenceStoredPages() throws Exception {
+        write(dir1, "foo", data);
+        final long pagesWritten = stats.getPagesWritten();
+        dir2.copyFrom(dir1, "foo", "bar", IOContext.DEFAULT);
+        dir1.deleteFile("foo");
+
+        assertEquals(26, countPages());
+        assertArrayEquals(data, readAll(dir2, "bar"));
+        // Only the hashes are copied.
+        assertEquals(26, stats.getPagesWritten() - pagesWritten);
+
+        dir2.deleteFile("bar");
+        assertEquals(0, countKeys());
+    }
+
+    @Test
+    public void directoriesShareCachedPages() throws Exception {
+        write(dir1, "foo", data);
+        write(dir2, "bar", data);
+
+        assertArrayEquals(data, readAll(dir1, "foo"));
+        assertEquals(26, stats.getPagesRead());
+        assertEquals(0, stats.getCacheHits());
+
+        assertArrayEquals(data, readAll(dir2, "bar"));
+        assertEquals(26, stats.getPagesRead());
+        assertEquals(26, stats.getCacheHits());
+        assertEquals(25_500, cache.getSize());
+    }
+
+    @Test
+    public void streamingReads() throws Exception {
+        write(dir1, "foo", data);
+        try (final IndexInput in = dir1.openInput("foo", IOContext.READONCE)) {
+            final byte[] actual = new byte[data.length];
+            in.readBytes(actual, 0, actual.length);
+            assertArrayEquals(data, actual);
+        }
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void retriedPutsReferencePagesOnce() throws Exception {
+        final Subspace file = store.getSubspace().get("file");
+        final List<byte[]> keys = Arrays.asList(file.pack(0L));
+        final byte[] page = Arrays.copyOf(data, 1_000);
+        final byte[] hash = PageStore.hash(page);
+        // As if a commit with an unknown result had succeeded and was retried.
+        for (int i = 0; i < 2; i++) {
+            DB.run(txn -> {
+                store.put(txn, keys, Arrays.asList(page));
+                return null;
+            });
+        }
+        assertEquals(1L, (long) DB.read(txn -> store.refs(txn, hash)));
+
+        // Rewriting a page releases the page it held.
+        final byte[] other = Arrays.copyOfRange(data, 1_000, 2_000);
+        DB.run(txn -> {
+            store.put(txn, keys, Arrays.asList(other));
+            return null;
+        });
+        assertEquals(0L, (long) DB.read(txn -> store.refs(txn, hash)));
+        assertEquals(1L, (long) DB.read(txn -> store.refs(txn, PageStore.hash(other))));
+        assertEquals(1, countPages());
+
+        DB.run(txn -> {
+            store.release(txn, Arrays.asList(PageStore.hash(other)));
+            txn.clear(file.range());
+            return null;
+        });
+    }
+
+    @Test
+    public void retriedCopiesReferencePagesOnce() throws Exception {
+        final Subspace file = store.getSubspace().get("file");
+        final List<byte[]> keys = Arrays.asList(file.pack(0L));
+        final byte[] page = Arrays.copyOf(data, 1_000);
+        final byte[] hash = PageStore.hash(page);
+        DB.run(txn -> {
+            store.put(txn, keys, Arrays.asList(page));
+            return null;
+        });
+        for (int i = 0; i < 2; i++) {
+            DB.run(txn -> {
+                store.reference(txn, keys, Arrays.asList(hash));
+                return null;
+            });
+        }
+        assertEquals(1L, (long) DB.read(txn -> store.refs(txn, hash)));
+
+        DB.run(txn -> {
+            store.release(txn, Arrays.asList(hash));
+            txn.clear(file.range());
+            return null;
+        });
+    }
+
+    @Test
+    public void pinnedCommitKeepsStoredPages() throws Exception {
+        try (final IndexWriter writer = new IndexWriter(dir1, new IndexWriterConfig())) {
+            final Document doc = new Document();
+            doc.add(new StringField("_id", "foo", Store.YES));
+            writer.addDocument(doc);
+            writer.commit();
+        }
+        final long generation = SegmentInfos.getLastCommitGeneration(dir1);
+        dir1.pinCommit(generation);
+        for (final String name : dir1.listAll()) {
+            dir1.deleteFile(name);
+        }
+        assertTrue(countPages() > 0);
+
+        dir1.unpinCommit(generation);
+        assertEquals(0, countKeys());
+    }
+
+    private FDBDirectory open(final Subspace subspace) {
+        return FDBDirectory.open(DB, subspace, new FDBDirectoryConfig().setPageSize(1_000).setTxnSize(10_000)
+                .setPageStore(store).setPageCache(cache).setReadAheadPages(4).setMetrics(stats));
+    }
+
+    private static void write(final FDBDirectory dir, final String name, final byte[] data) throws Exception {
+        try (final IndexOutput out = dir.createOutput(name, null)) {
+            out.writeBytes(data, data.length);
+        }
+    }
+
+    private static byte[] readAll(final FDBDirectory dir, final String name) throws Exception {
+        try (final IndexInput in = dir.openInput(name, IOContext.DEFAULT)) {
+            final byte[] result = new byte[(int) in.length()];
+            in.readBytes(result, 0, result.length);
+            return result;
+        }
+    }
+
+    private int countPages() {
+        return DB.read(txn -> {
+            return txn.getRange(store.getSubspace().range(Tuple.from("page"))).asList().join().size();
+        });
+    }
+
+    private int countKeys() {
+        return DB.read(txn -> {
+            return txn.getRange(store.getSubspace().range()).asList().join().size();
+        });
+    }
+
+}
@@ -15,8 +15,12 @@
  *******************************************************************************/
 package com.cloudant.fdblucene;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
@@ -30,9 +34,11 @@ import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
@@ -41,6 +47,7 @@ import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -50,13 +57,12 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
-import com.apple.foundationdb.Database;
-import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.TransactionContext;
 
 @RunWith(Parameterized.class)
 public class SimpleFDBDirectoryTest {
 
-    private static Database DB;
+    private static TransactionContext DB;
 
     @Parameters
     public static Collection<Object[]> data() {
@@ -68,8 +74,7 @@ public class SimpleFDBDirectoryTest {
 
     @BeforeClass
     public static void setupFDB() {
-        FDB.selectAPIVersion(600);
-        DB = FDB.instance().open();
+        DB = FDBTestUtil.open();
     }
 
     private Directory dir;
@@ -158,6 +163,200 @@ public class SimpleFDBDirectoryTest {
         }
     }
 
+    @Test
+    public void pinnedCommit() throws Exception {
+        final FDBDirectory fdbDir = (FDBDirectory) dir;
+        final IndexCommit pinned;
+        try (final IndexWriter writer = new IndexWriter(dir, indexWriterConfig())) {
+            addDocument(writer, "doc1");
+            writer.commit();
+            pinned = fdbDir.pinCommit(SegmentInfos.getLastCommitGeneration(dir));
+
+            writer.deleteAll();
+            addDocument(writer, "doc2");
+            addDocument(writer, "doc3");
+            writer.forceMerge(1);
+            writer.commit();
+        }
+
+        assertFalse(Arrays.asList(dir.listAll()).contains(pinned.getSegmentsFileName()));
+        assertArrayEquals(new long[] { pinned.getGeneration() }, fdbDir.listPinnedCommits());
+
+        final IndexCommit reopened = fdbDir.pinnedCommit(pinned.getGeneration());
+        try (final IndexReader reader = DirectoryReader.open(reopened)) {
+            assertEquals(1, reader.numDocs());
+            final IndexSearcher searcher = new IndexSearcher(reader);
+            assertEquals(1, searcher.count(new TermQuery(new Term("_id", "doc1"))));
+        }
+
+        fdbDir.unpinCommit(pinned.getGeneration());
+        assertEquals(0, fdbDir.listPinnedCommits().length);
+        try (final IndexReader reader = DirectoryReader.open(dir)) {
+            assertEquals(2, reader.numDocs());
+        }
+    }
+
+    @Test
+    public void pinHolders() throws Exception {
+        final FDBDirectory fdbDir = (FDBDirectory) dir;
+        try (final IndexWriter writer = new IndexWriter(dir, indexWriterConfig())) {
+            addDocument(writer, "doc1");
+            writer.commit();
+            final long generation = SegmentInfos.getLastCommitGeneration(dir);
+            final IndexCommit pinned = fdbDir.pinCommit(generation, "a");
+            fdbDir.pinCommit(generation, "b");
+            fdbDir.pinCommit(generation, "b");
+
+            writer.deleteAll();
+            addDocument(writer, "doc2");
+            writer.commit();
+            assertArrayEquals(new long[] { generation }, fdbDir.listPinnedCommits());
+
+            // The commit stays readable until its last holder unpins it.
+            fdbDir.unpinCommit(generation, "a");
+            fdbDir.unpinCommit(generation);
+            assertArrayEquals(new long[] { generation }, fdbDir.listPinnedCommits());
+            try (final IndexReader reader = DirectoryReader.open(pinned)) {
+                assertEquals(1, reader.numDocs());
+            }
+
+            fdbDir.unpinCommit(generation, "b");
+            assertEquals(0, fdbDir.listPinnedCommits().length);
+        }
+    }
+
+    @Test
+    public void unpinKeepsRenamedFile() throws Exception {
+        final FDBDirectory fdbDir = (FDBDirectory) dir;
+        try (final IndexWriter writer = new IndexWriter(dir, indexWriterConfig())) {
+            addDocument(writer, "doc1");
+            writer.commit();
+        }
+        final long generation = SegmentInfos.getLastCommitGeneration(dir);
+        final String name = fdbDir.pinCommit(generation).getSegmentsFileName();
+        final byte[] expected = readAll(dir, name);
+
+        dir.rename(name, "renamed");
+        fdbDir.unpinCommit(generation);
+        assertArrayEquals(expected, readAll(dir, "renamed"));
+    }
+
+    @Test
+    public void randomAccessSlice() throws Exception {
+        // Odd offsets put some values across page boundaries.
+        final int count = pageSize / 2;
+        try (final IndexOutput out = dir.createOutput("longs", null)) {
+            out.writeByte((byte) 1);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(i * 0x0102030405060708L);
+            }
+        }
+        try (final IndexInput in = dir.openInput("longs", null)) {
+            final RandomAccessInput slice = in.randomAccessSlice(1, count * Long.BYTES);
+            for (int i = count - 1; i >= 0; i--) {
+                final long expected = i * 0x0102030405060708L;
+                assertEquals(expected, slice.readLong(i * Long.BYTES));
+                assertEquals((int) (expected >>> 32), slice.readInt(i * Long.BYTES));
+                assertEquals((short) (expected >>> 48), slice.readShort(i * Long.BYTES));
+                assertEquals((byte) (expected >>> 56), slice.readByte(i * Long.BYTES));
+            }
+            assertEquals(0L, in.getFilePointer());
+            try {
+                slice.readLong((count - 1) * Long.BYTES + 1);
+                Assert.fail("expected EOFException");
+            } catch (final EOFException e) {
+                // expected.
+            }
+        }
+    }
+
+    @Test
+    public void pageSizePolicy() throws Exception {
+        // 3_000 divides neither pageSize nor txnSize.
+        final int smallPageSize = 3_000;
+        final FDBDirectoryConfig config = new FDBDirectoryConfig().setPageSize(pageSize).setTxnSize(txnSize)
+                .setPageSizePolicy(PageSizePolicy.randomAccess(smallPageSize));
+        final Directory dir = FDBDirectory.open(DB, FileSystems.getDefault().getPath("lucene", "test-pagesize"),
+                config);
+        cleanupDir(dir);
+
+        final byte[] expectedBuf = FDBTestUtil.testArray(txnSize * 2 + 1234);
+        for (final String name : new String[] { "_0.tim", "_0.pos" }) {
+            try (final IndexOutput out = dir.createOutput(name, null)) {
+                out.writeBytes(expectedBuf, expectedBuf.length);
+            }
+            try (final IndexInput in = dir.openInput(name, null)) {
+                final byte[] actualBuf = new byte[expectedBuf.length];
+                in.readBytes(actualBuf, 0, actualBuf.length);
+                assertArrayEquals(expectedBuf, actualBuf);
+            }
+        }
+        // Only page sizes other than the directory's are recorded.
+        assertEquals(smallPageSize, ((FDBDirectory) dir).meta("_0.tim").getPageSize(-1));
+        assertEquals(-1, ((FDBDirectory) dir).meta("_0.pos").getPageSize(-1));
+
+        try (final IndexWriter writer = new IndexWriter(dir, indexWriterConfig())) {
+            for (int i = 0; i < 100; i++) {
+                addDocument(writer, "doc" + i);
+            }
+        }
+        try (final IndexReader reader = DirectoryReader.open(dir)) {
+            final IndexSearcher searcher = new IndexSearcher(reader);
+            assertEquals(1, searcher.count(new TermQuery(new Term("_id", "doc42"))));
+        }
+        cleanupDir(dir);
+    }
+
+    @Test
+    public void pageSizeAboveValueLimit() throws Exception {
+        final FDBDirectoryConfig config = new FDBDirectoryConfig().setPageSize(pageSize).setTxnSize(1_000_000)
+                .setPageSizePolicy((name, context, defaultPageSize) -> 100_001);
+        final Directory dir = FDBDirectory.open(DB, FileSystems.getDefault().getPath("lucene", "test-pagesize"),
+                config);
+        try {
+            dir.createOutput("_0.tim", null).close();
+            Assert.fail("expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected.
+        }
+        assertEquals(0, dir.listAll().length);
+    }
+
+    @Test
+    public void copyFromSameDirectory() throws Exception {
+        final byte[] expectedBuf = FDBTestUtil.testArray(pageSize * 3 + 17);
+        try (final IndexOutput out = dir.createOutput("src", null)) {
+            out.writeBytes(expectedBuf, expectedBuf.length);
+        }
+        dir.copyFrom(dir, "src", "dest1", null);
+        dir.copyFrom(dir, "dest1", "dest2", null);
+        dir.deleteFile("src");
+        assertArrayEquals(expectedBuf, readAll(dir, "dest1"));
+        dir.deleteFile("dest1");
+        assertArrayEquals(expectedBuf, readAll(dir, "dest2"));
+        try {
+            dir.copyFrom(dir, "src", "dest3", null);
+            Assert.fail("expected FileNotFoundException");
+        } catch (final FileNotFoundException e) {
+            // expected.
+        }
+    }
+
+    @Test
+    public void copyFromAnotherDirectory() throws Exception {
+        final Directory other = FDBDirectory.open(DB, FileSystems.getDefault().getPath("lucene", "test-copy"),
+                3_000, txnSize);
+        cleanupDir(other);
+        final byte[] expectedBuf = FDBTestUtil.testArray(txnSize * 2 + 1234);
+        try (final IndexOutput out = dir.createOutput("src", null)) {
+            out.writeBytes(expectedBuf, expectedBuf.length);
+        }
+        other.copyFrom(dir, "src", "dest", null);
+        assertEquals(expectedBuf.length, other.fileLength("dest"));
+        assertArrayEquals(expectedBuf, readAll(other, "dest"));
+        cleanupDir(other);
+    }
+
     @Test
     public void addIndexes() throws Exception {
         Directory dir1 = FDBDirectory.open(DB, FileSystems.getDefault().getPath("lucene", "test1"));
@@ -186,6 +385,49 @@ public class SimpleFDBDirectoryTest {
         }
     }
 
+    @Test
+    public void closeCommitsOnce() throws Exception {
+        final FDBDirectoryStats stats = new FDBDirectoryStats();
+        final Directory dir = FDBDirectory.open(DB, FileSystems.getDefault().getPath("lucene", "test-close"),
+                new FDBDirectoryConfig().setPageSize(pageSize).setTxnSize(txnSize).setMetrics(stats));
+        cleanupDir(dir);
+        final byte[] expectedBuf = FDBTestUtil.testArray(pageSize + 1);
+        final IndexOutput out = dir.createOutput("foo", null);
+        out.writeBytes(expectedBuf, expectedBuf.length);
+        final long transactions = stats.getTransactions();
+        out.close();
+        assertEquals(1, stats.getTransactions() - transactions);
+        assertArrayEquals(expectedBuf, readAll(dir, "foo"));
+        cleanupDir(dir);
+    }
+
+    @Test
+    public void asyncClose() throws Exception {
+        final Directory dir = FDBDirectory.open(DB, FileSystems.getDefault().getPath("lucene", "test-async"),
+                new FDBDirectoryConfig().setPageSize(pageSize).setTxnSize(txnSize).setAsyncClose(true));
+        cleanupDir(dir);
+        final byte[] expectedBuf = FDBTestUtil.testArray(txnSize * 2 + 1234);
+        try (final IndexOutput out = dir.createOutput("foo", null)) {
+            out.writeBytes(expectedBuf, expectedBuf.length);
+        }
+        // Reads wait for the close.
+        assertEquals(expectedBuf.length, dir.fileLength("foo"));
+        assertArrayEquals(expectedBuf, readAll(dir, "foo"));
+        dir.sync(Arrays.asList("foo"));
+
+        try (final IndexWriter writer = new IndexWriter(dir, indexWriterConfig())) {
+            addDocument(writer, "foo1");
+            writer.commit();
+            addDocument(writer, "foo2");
+        }
+        try (final IndexReader reader = DirectoryReader.open(dir)) {
+            assertEquals(2, reader.numDocs());
+        }
+
+        assertCloseDoesntThrowOnDeletedFile(dir);
+        dir.close();
+    }
+
     @Test
     public void testCloseAfterDeleteShouldntThrow() throws Exception {
         final Directory dir = FDBDirectory.open(DB, FileSystems.getDefault().getPath("lucene", "test1"));
@@ -199,6 +441,14 @@ public class SimpleFDBDirectoryTest {
         out.close();
     }
 
+    private byte[] readAll(final Directory dir, final String name) throws IOException {
+        try (final IndexInput in = dir.openInput(name, null)) {
+            final byte[] result = new byte[(int) in.length()];
+            in.readBytes(result, 0, result.length);
+            return result;
+        }
+    }
+
     private void addDocument(final IndexWriter writer, final String docId) throws IOException {
         final Document doc = new Document();
         doc.add(new TextField("foo", "hello everybody", Store.NO));
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2019 IBM Corporation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.cloudant.fdblucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+public class TracerTest {
+
+    private MemoryTransactionContext db;
+
+    @Before
+    public void setup() {
+        db = new MemoryTransactionContext(42L);
+    }
+
+    @Test
+    public void disabled() {
+        final Tracer tracer = Tracer.sampling(0);
+        assertSame(Tracer.DISABLED, tracer);
+        assertFalse(tracer.isEnabled());
+        trace(tracer, 100);
+        assertEquals(0, db.getLoggedTransactions());
+    }
+
+    @Test
+    public void everyTransaction() {
+        final Tracer tracer = Tracer.sampling(1);
+        assertTrue(tracer.isEnabled());
+        trace(tracer, 100);
+        assertEquals(100, db.getLoggedTransactions());
+    }
+
+    @Test
+    public void sampled() {
+        trace(Tracer.sampling(10), 10_000);
+        final long logged = db.getLoggedTransactions();
+        assertTrue("logged " + logged, logged > 800 && logged < 1200);
+    }
+
+    @Test
+    public void directoryUsesConfiguredSampling() throws Exception {
+        final FDBDirectory dir = FDBDirectory.open(db, new Subspace(Tuple.from("TracerTest")),
+                new FDBDirectoryConfig().setTraceSampling(1));
+        try (final IndexOutput out = dir.createOutput("foo", null)) {
+            out.writeLong(12L);
+        }
+        try (final IndexInput in = dir.openInput("foo", null)) {
+            assertEquals(12L, in.readLong());
+        }
+        assertTrue(db.getLoggedTransactions() >= 3);
+        dir.close();
+    }
+
+    private void trace(final Tracer tracer, final int transactions) {
+        for (int i = 0; i < transactions; i++) {
+            final long pageNumber = i;
+            db.read(txn -> {
+                tracer.trace(txn, "%s,in,loadPage,%d", "TracerTest", pageNumber);
+                return null;
+            });
+        }
+    }
+
+}